@@ -3,8 +3,6 @@ package com.example.fyp;
 import android.annotation.SuppressLint;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -27,7 +25,7 @@ import android.widget.Toast;
 
 import androidx.annotation.RequiresApi;
 
-import com.example.fyp.customutilities.ImageUtilities;
+import com.example.fyp.customutilities.FrameTimings;
 import com.example.fyp.customutilities.SharedPreferencesUtils;
 import com.example.fyp.customutilities.SharedValues;
 import com.google.android.material.snackbar.Snackbar;
@@ -35,8 +33,8 @@ import com.example.fyp.customview.OverlayView;
 
 import org.opencv.android.OpenCVLoader;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -46,8 +44,13 @@ public class AssistantModeActivity extends CameraCaptureActivity {
 
     // thread handling
     private  ScheduledThreadPoolExecutor threadExecutor = null;
+    // one worker per model, each always working on the newest frame
+    private volatile LatestFrameWorker detectorWorker = null;
+    private volatile LatestFrameWorker signWorker = null;
+    private volatile LatestFrameWorker laneWorker = null;
     private  ScheduledFuture<?> flagCheckTask;
-    private  ScheduledFuture<?> obdStoppedTask;
+    private  ScheduledFuture<?> timingReportTask;
+    private static final long TIMING_REPORT_PERIOD_S = 30;
 
     private static final String TAG = "AssistantModeActivity";
     private static final Size[] DESIRED_PREVIEW_SIZES = SharedValues.DESIRED_PREVIEW_SIZES;
@@ -58,26 +61,28 @@ public class AssistantModeActivity extends CameraCaptureActivity {
     private int mWidth = 0;
     private int mHeight = 0;
 
-    private Bitmap rgbFrameBitmap = null;
-    private Boolean isRgbFrameCreated = false;
+    // one frame being processed per worker, one newest frame waiting and one being filled
+    private static final int FRAME_POOL_SIZE = 5;
+    private FramePool framePool = null;
+    // lane frames have their own resolution, adapted to how long the lane detector takes
+    private static final int LANE_INPUT_WIDTH = 320;
+    private static final float LANE_BUDGET_MS = 40;
+    private LaneInputResolution laneInput = null;
+    private LaneDepartureMonitor departureMonitor = null;
 
     private static TextToSpeech tts;
     private static boolean isDarkModeEnabled = false;
     private Paint bitmapFilterPaint = null;
 
     private static Detector detector = null;
-    private static float timeTakeByObjDetector = 0;
     private static SignDetector signDetector = null;
-    private static float timeTakeBySignDetector = 0;
-    private static volatile boolean isComputingSignDetection = false;
-    private static volatile boolean isComputingDetection = false;
-    private static volatile boolean isComputingLaneDetection = false;
+    // the models this activity created, closed when it finishes; a newer activity may have
+    // replaced the static ones by then
+    private Detector ownDetector = null;
+    private SignDetector ownSignDetector = null;
 
     private static float[][] lanePoints = null;
-    private static ArrayList<PointF> lft_lane_pts = null;
-    private static ArrayList<PointF> rht_lane_pts = null;
     private static ArrayList<PointF> all_lane_pts = null;
-    private static float timeTakeByLaneDetector = 0;
     private Paint lanePointsPaint = null;
 
     private LaneDetector laneDetector = null;
@@ -96,17 +101,50 @@ public class AssistantModeActivity extends CameraCaptureActivity {
     private volatile boolean initialized = false;
 
     private boolean drawDebugInfo = false;
+    // the debug text is formatted at most once per DEBUG_TEXT_PERIOD_MS instead of on every draw
+    private static final long DEBUG_TEXT_PERIOD_MS = 1000;
+    private static final FrameTimings.Stage[] DEBUG_STAGES = {
+            FrameTimings.Stage.OBJECT_TASK, FrameTimings.Stage.SIGN_TASK,
+            FrameTimings.Stage.LANE_TASK, FrameTimings.Stage.CONVERT,
+            FrameTimings.Stage.INFERENCE, FrameTimings.Stage.OVERLAY_DRAW};
+    private static final int[] DEBUG_STAGE_Y = {50, 100, 150, 300, 350, 400};
+    private final String[] debugStageText = new String[DEBUG_STAGES.length];
+    private String debugDropText = null;
+    private String debugLaneInputText = null;
+    private String debugBackendText = null;
+    private long debugTextDueMs = 0;
     private int counterForVolumeDown = 0;
 
     private static OverlayView draw = null;
 
-    private static List<RecognizedObject> mappedRecognitions = null;
-    private static List<RecognizedObject> mappedSignRecognitions = null;
+    // latest results, published by the workers and drawn by the overlay without locks
+    private static final OverlayState overlayState = new OverlayState();
+    private final RectF objectLocation = new RectF();
+    // the overlay draws from these without allocating
+    private OverlayRenderer overlayRenderer = null;
+    // objects that are drawn, and the ones of them that are measured and warned about
+    private static final String SHOWN_OBJECTS =
+            "car|motorcycle|person|bicycle|truck|stop sign|laptop|bottle";
+    private static final String MEASURED_OBJECTS = "(?i)^truck|motorcycle|person|car|bottle$";
+    private static final float MIN_SHOWN_SCORE = 0.6f;
+    // metres
+    private static final float WARNING_DISTANCE = 10;
+    private final LabelFilter shownObjects = new LabelFilter(SHOWN_OBJECTS);
 
     private Paint borderBoxPaint = null;
     private Paint borderTextPaint = null;
 
-    private static String carSpeed = null;
+    // OBD speed in km/h, negative while unknown
+    private static volatile float carSpeed = -1;
+    private final TelemetryBus.Listener speedListener = new TelemetryBus.Listener() {
+        @Override
+        public void onReading(TelemetryBus.Reading reading) {
+            carSpeed = Float.isNaN(reading.value) ? -1 : reading.value;
+            departureMonitor.setCarSpeed(carSpeed);
+            // the speed is only drawn by the debug text, which has no layer
+            draw.invalidateLayers(0);
+        }
+    };
 
     // checks for features
     private static boolean isLaneDetectionAllowed = false;
@@ -177,6 +215,7 @@ public class AssistantModeActivity extends CameraCaptureActivity {
 
         bitmapFilterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         bitmapFilterPaint.setFilterBitmap(true);
+        overlayRenderer = new OverlayRenderer(getResources());
 
         SharedPreferences sp_hs = getSharedPreferences(
                 getString(R.string.sp_homeSettings), 0);
@@ -194,6 +233,16 @@ public class AssistantModeActivity extends CameraCaptureActivity {
         String sp_ld_key_op = getString(R.string.sp_ld_key_original_mask_pts);
         pts_resized = (PointF[]) SharedPreferencesUtils.loadObject(
                 sp_ld, sp_ld_key_tp, PointF[].class);
+        laneInput = new LaneInputResolution(LANE_INPUT_WIDTH, LANE_BUDGET_MS);
+        laneInput.setRegion(pts_resized, CROP_SIZE.getWidth(), CROP_SIZE.getHeight());
+        departureMonitor = new LaneDepartureMonitor(new LaneDepartureMonitor.Listener() {
+            @Override
+            public void onLaneDeparture(int side, float offset, float timeToCrossing) {
+                speak(side == LaneDepartureMonitor.LEFT ?
+                        "You are drifting out of your lane to the left" :
+                        "You are drifting out of your lane to the right");
+            }
+        });
 
         pts = (PointF[]) SharedPreferencesUtils.loadObject(
                 sp_ld, sp_ld_key_op, PointF[].class
@@ -250,42 +299,35 @@ public class AssistantModeActivity extends CameraCaptureActivity {
         mHeight = height;
 
         //object Detection.
-        draw.addCallback(new OverlayView.DrawCallback() {
+        draw.addCallback(OverlayView.LAYER_OBJECTS, new OverlayView.DrawCallback() {
             @Override
             public void drawCallback(Canvas canvas) {
-                if (mappedRecognitions != null && isObjDetectionAllowed) {
-                    int countVoicedWarns = 0;
-                    for (RecognizedObject object : mappedRecognitions) {
-                        if (object.getScore() >= 0.6f &&
-                                object.getLabel().matches("car|motorcycle|person|bicycle|truck|stop sign|laptop|bottle")) {
-                            RectF location = object.getLocation();
-
-                            if (object.getLabel().contentEquals("stop sign"))
-                                speak(object.getLabel());
-
-                            canvas.drawRect(location, borderBoxPaint);
-                            canvas.drawText(
-                                    String.format("%s , %.1f %%", object.getLabel(), object.getScore() * 100),
-                                    location.left, location.top < 50 ? location.top + 60 : location.top - 10, borderTextPaint);
-                            if (distanceCalculator != null && object.getLabel().matches("(?i)^truck|motorcycle|person|car|bottle$")
-                                    && isDistanceCalculatorAllowed) {
-                                float dist = distanceCalculator.calculateDistance(location, object.getLabel());
-                                canvas.drawText(String.format("%.1f m", dist), location.left,
-                                        location.top < 50 ? location.top + 20 : location.top - 35,
-                                        borderTextPaint);
-                                // display warning if car some minimum distance
-                                if (dist < 10 && countVoicedWarns <= 2) {
-                                    countVoicedWarns++;
-                                    Bitmap bmp = BitmapFactory.decodeResource(getResources(), R.drawable.warning_for_distance);
-                                    Bitmap bmp_resized = ImageUtilities.getResizedBitmap(bmp, (int) (location.width() - 5),
-                                            (int) (location.height() - 5), true);
-                                    canvas.drawBitmap(bmp_resized, location.left + 5,
-                                            location.top + 5, bitmapFilterPaint);
-
-                                    // voice warning logic
-                                    if (maskRect != null && object.getLocation().intersect(maskRect))
-                                        speak("A " + object.getLabel() + " is approaching beware");
-                                }
+                if (!isObjDetectionAllowed) return;
+                // distances and warnings are worked out by the DetectorTask, once per frame
+                OverlaySnapshot snapshot = overlayState.get();
+                Detections objects = snapshot.getObjects();
+                if (objects == null) return;
+                int countWarnings = 0;
+                for (int i = 0; i < objects.size(); i++) {
+                    float score = objects.getScore(i);
+                    if (score >= MIN_SHOWN_SCORE && shownObjects.accepts(objects, i)) {
+                        String label = objects.getLabel(i);
+                        RectF location = objects.getBox(i, objectLocation);
+
+                        canvas.drawRect(location, borderBoxPaint);
+                        overlayRenderer.drawScore(canvas, label, score,
+                                location.left, location.top < 50 ? location.top + 60 : location.top - 10, borderTextPaint);
+                        float dist = snapshot.getDistance(i);
+                        if (!Float.isNaN(dist)) {
+                            overlayRenderer.drawDistance(canvas, dist, location.left,
+                                    location.top < 50 ? location.top + 20 : location.top - 35,
+                                    borderTextPaint);
+                            // display warning if car some minimum distance
+                            if (dist < WARNING_DISTANCE && countWarnings <= 2) {
+                                countWarnings++;
+                                overlayRenderer.drawSprite(canvas, R.drawable.warning_for_distance,
+                                        location.left + 5, location.top + 5, location.right, location.bottom,
+                                        bitmapFilterPaint);
                             }
                         }
                     }
@@ -294,31 +336,29 @@ public class AssistantModeActivity extends CameraCaptureActivity {
         });
 
         // SignDetection
-        draw.addCallback(new OverlayView.DrawCallback() {
+        draw.addCallback(OverlayView.LAYER_SIGNS, new OverlayView.DrawCallback() {
             @SuppressLint("DefaultLocale")
             @Override
             public void drawCallback(Canvas canvas) {
-                if (mappedSignRecognitions != null && isSignDetectionAllowed) {
-                    int count = 0;
-                    for (RecognizedObject object : mappedSignRecognitions) {
-                        if (object.getLabel().contentEquals("yield")) continue;
-                        if (object.getLabel().contains("speed")){
-                            speak("Caution Speed limit Ahead");
-                        }
-                        if (count >= 1) break;
-                        RectF location = object.getLocation();
-                        canvas.drawRect(location, borderBoxPaint);
-                        canvas.drawText(
-                                String.format("%s , %.1f %%", object.getLabel(), object.getScore() * 100),
-                                location.left, location.top < 50 ? location.top + 60 : location.top - 10, borderTextPaint);
-                        count++;
-                    }
+                if (!isSignDetectionAllowed) return;
+                Detections signs = overlayState.get().getSigns();
+                if (signs == null) return;
+                int count = 0;
+                for (int i = 0; i < signs.size(); i++) {
+                    String label = signs.getLabel(i);
+                    if (label.contentEquals("yield")) continue;
+                    if (count >= 1) break;
+                    RectF location = signs.getBox(i, objectLocation);
+                    canvas.drawRect(location, borderBoxPaint);
+                    overlayRenderer.drawScore(canvas, label, signs.getScore(i),
+                            location.left, location.top < 50 ? location.top + 60 : location.top - 10, borderTextPaint);
+                    count++;
                 }
             }
         });
 
         //LaneDetection - deprecated
-        draw.addCallback(new OverlayView.DrawCallback() {
+        draw.addCallback(OverlayView.LAYER_LANES, new OverlayView.DrawCallback() {
             @Override
             public void drawCallback(Canvas canvas) {
                 if (lanePoints != null && isLaneDetectionAllowed) {
@@ -332,11 +372,10 @@ public class AssistantModeActivity extends CameraCaptureActivity {
         });
 
         // lane detection advance
-        draw.addCallback(new OverlayView.DrawCallback() {
+        draw.addCallback(OverlayView.LAYER_LANES, new OverlayView.DrawCallback() {
             @Override
             public void drawCallback(Canvas canvas) {
                 if (!isLaneDetectionAllowed) return;
-                Log.d(TAG, "drawCallback: lane detection off center = " + laneDetectorAdvance.getOff_center());
 //                if (lft_lane_pts != null && lft_lane_pts.size() > 3) {
 //                    canvas.drawPath(SharedValues.getPathFromPointF(lft_lane_pts, false), lanePointsPaint);
 //                }
@@ -344,42 +383,8 @@ public class AssistantModeActivity extends CameraCaptureActivity {
 //                    canvas.drawPath(SharedValues.getPathFromPointF(rht_lane_pts, false), lanePointsPaint);
 //                }
 
-                float offset = Math.abs(laneDetectorAdvance.getOff_center());
-                if (offset > 1.5){
-                    if (lft_lane_pts != null && rht_lane_pts != null){
-                        ArrayList<PointF> lane__ = new ArrayList<>();
-
-                        lane__.add(lft_lane_pts.get(lft_lane_pts.size()-1));
-                        lane__.get(0).y = Math.max(lft_lane_pts.get(lft_lane_pts.size()-1).y,
-                                rht_lane_pts.get(rht_lane_pts.size()-1).y);
-                        lane__.add(rht_lane_pts.get(rht_lane_pts.size()-1));
-                        lane__.get(1).y = lane__.get(0).y;
-
-                        lane__.add(rht_lane_pts.get(0));
-                        lane__.get(2).y = Math.min(lft_lane_pts.get(0).y,
-                                rht_lane_pts.get(0).y);
-                        lane__.add(lft_lane_pts.get(0));
-                        lane__.get(3).y = lane__.get(2).y;
-
-                        canvas.drawPath(SharedValues.getPathFromPointF(lane__, true), offsetLinePaint);
-                    }
-                }else {
-                    if (lft_lane_pts != null && rht_lane_pts != null){
-                        ArrayList<PointF> lane__ = new ArrayList<>();
-                        lane__.add(lft_lane_pts.get(lft_lane_pts.size()-1));
-                        lane__.get(0).y = Math.max(lft_lane_pts.get(lft_lane_pts.size()-1).y,
-                                rht_lane_pts.get(rht_lane_pts.size()-1).y);
-                        lane__.add(rht_lane_pts.get(rht_lane_pts.size()-1));
-                        lane__.get(1).y = lane__.get(0).y;
-
-                        lane__.add(rht_lane_pts.get(0));
-                        lane__.get(2).y = Math.min(lft_lane_pts.get(0).y,
-                                rht_lane_pts.get(0).y);
-                        lane__.add(lft_lane_pts.get(0));
-                        lane__.get(3).y = lane__.get(2).y;
-                        canvas.drawPath(SharedValues.getPathFromPointF(lane__, true), lanePointsPaint);
-                    }
-                }
+                // the lanes and whether the car is leaving them come from the same lane frame
+                overlayRenderer.drawLaneArea(canvas, overlayState.get(), lanePointsPaint, offsetLinePaint);
 
 
 //                float x1 = (pts[3].x + pts[2].x) / 2;
@@ -407,7 +412,7 @@ public class AssistantModeActivity extends CameraCaptureActivity {
         });
 
         // lane Mask
-        draw.addCallback(new OverlayView.DrawCallback() {
+        draw.addCallback(OverlayView.LAYER_LANE_GUIDE, new OverlayView.DrawCallback() {
             @Override
             public void drawCallback(Canvas canvas) {
 //                Log.d(TAG, "drawCallback: lanGuidLines = "+laneGuidLines);
@@ -418,21 +423,26 @@ public class AssistantModeActivity extends CameraCaptureActivity {
         });
         // debug information
         draw.addCallback(new OverlayView.DrawCallback() {
-            @SuppressLint("DefaultLocale")
             @Override
             public void drawCallback(Canvas canvas) {
                 if (drawDebugInfo) {
-                    canvas.drawText(
-                            String.format("Time Taken Object Detection: %.0f ms", timeTakeByObjDetector), 10, 50, borderTextPaint);
-                    canvas.drawText(
-                            String.format("Time Taken Sign Detection: %.0f ms", timeTakeBySignDetector), 10, 100, borderTextPaint);
-                    canvas.drawText(
-                            String.format("Time Taken Lane Detection: %.0f ms", timeTakeByLaneDetector), 10, 150, borderTextPaint);
-
-                    if (carSpeed != null)
-                        canvas.drawText(
-                                "Speed of Car: " + carSpeed, 10, 200, borderTextPaint
-                        );
+                    // the speed redraws this up to 10 times a second, the summaries change slower
+                    long now = SystemClock.uptimeMillis();
+                    if (now >= debugTextDueMs) {
+                        updateDebugText();
+                        debugTextDueMs = now + DEBUG_TEXT_PERIOD_MS;
+                    }
+                    for (int i = 0; i < DEBUG_STAGES.length; i++) {
+                        canvas.drawText(debugStageText[i], 10, DEBUG_STAGE_Y[i], borderTextPaint);
+                    }
+                    canvas.drawText(debugDropText, 10, 450, borderTextPaint);
+                    canvas.drawText(debugLaneInputText, 10, 500, borderTextPaint);
+                    if (debugBackendText != null)
+                        canvas.drawText(debugBackendText, 10, 250, borderTextPaint);
+
+                    if (carSpeed >= 0)
+                        overlayRenderer.drawNumber(canvas, "Speed of Car: ", Math.round(carSpeed),
+                                10, 200, borderTextPaint);
                 }
             }
         });
@@ -447,43 +457,52 @@ public class AssistantModeActivity extends CameraCaptureActivity {
 
         if (aqWidth == 0 || aqHeight == 0) return;
 
-        if (!isRgbFrameCreated) {
-            rgbFrameBitmap = Bitmap.createBitmap(
-                    aqWidth,
-                    aqHeight, Bitmap.Config.ARGB_8888);
-            isRgbFrameCreated = true;
+        if (framePool == null) {
+            framePool = new FramePool(
+                    Detector.OBJ_DETECTOR_INPUT_SIZE, Detector.OBJ_DETECTOR_INPUT_SIZE, FRAME_POOL_SIZE);
         }
 
-        if (!initialized ||
-                (!isLaneDetectionAllowed && !isObjDetectionAllowed && !isSignDetectionAllowed) ||
-                (isComputingLaneDetection && isComputingDetection && isComputingSignDetection)) {
+        // onPause may take the workers away while a frame is on its way, so read them once
+        final LatestFrameWorker detectorWorker = this.detectorWorker;
+        final LatestFrameWorker signWorker = this.signWorker;
+        final LatestFrameWorker laneWorker = this.laneWorker;
+        if (!initialized || detectorWorker == null || signWorker == null || laneWorker == null ||
+                (!isLaneDetectionAllowed && !isObjDetectionAllowed && !isSignDetectionAllowed)) {
 
             readyForNextImage();
             return;
         }
 
-
-        rgbFrameBitmap.setPixels(getRgbBytes(),
-                0, aqWidth, 0, 0, aqWidth, aqHeight);
-
-        Bitmap resizedBitmap = ImageUtilities.getResizedBitmap(rgbFrameBitmap,
-                Detector.OBJ_DETECTOR_INPUT_SIZE, Detector.OBJ_DETECTOR_INPUT_SIZE,
-                false);
-
-
-        if (isLaneDetectionAllowed && !isComputingLaneDetection) {
-            threadExecutor.schedule(new LaneTask(resizedBitmap.copy(Bitmap.Config.ARGB_8888, true)),
-                    0, TimeUnit.MILLISECONDS);
+        // the lane detector gets its own frame, cut around the roi at its own resolution
+        if (isLaneDetectionAllowed) {
+            FrameBuffer laneFrame = laneInput.acquire(aqWidth, aqHeight);
+            if (laneFrame == null) {
+                FrameTimings.countDroppedFrame(FrameTimings.DropReason.POOL_EXHAUSTED);
+            } else {
+                fillFrame(laneFrame, 0, laneInput.getTop(), 1, laneInput.getBottom());
+                laneWorker.offer(laneFrame);
+            }
         }
-        if (isSignDetectionAllowed && !isComputingSignDetection) {
-            threadExecutor.schedule(new SignTask(resizedBitmap.copy(Bitmap.Config.ARGB_8888, true)),
-                    10, TimeUnit.MILLISECONDS);
+        if (!isSignDetectionAllowed && !isObjDetectionAllowed) {
+            readyForNextImage();
+            return;
         }
-        if (isObjDetectionAllowed && !isComputingDetection) {
-            threadExecutor.schedule(new DetectorTask(resizedBitmap),
-                    10, TimeUnit.MILLISECONDS);
+
+        // YUV planes -> 300x300 RGB in one pass, straight into a pooled buffer
+        FrameBuffer frame = framePool.acquire();
+        if (frame == null) {
+            FrameTimings.countDroppedFrame(FrameTimings.DropReason.POOL_EXHAUSTED);
+            readyForNextImage();
+            return;
         }
+        fillFrame(frame);
         readyForNextImage();
+
+        // every worker holds its own reference to the same frame, no copies. A worker that is
+        // still busy simply swaps the frame it was going to process next for this one.
+        if (isSignDetectionAllowed) signWorker.offer(frame.retain());
+        if (isObjDetectionAllowed) detectorWorker.offer(frame.retain());
+        frame.release();
     }
 
 
@@ -497,9 +516,10 @@ public class AssistantModeActivity extends CameraCaptureActivity {
     }
 
     @Override
-    public Size getDesiredImageReaderSize() {
-        return new Size(
-                CROP_SIZE.getWidth(), CROP_SIZE.getWidth());
+    public Size getDesiredImageReaderSize(Size[] choices) {
+        // wide enough for the sharpest lane input; the detectors' frames are box filtered down
+        // to 300x300 while converting, so they do not alias
+        return SharedValues.getImageReaderSize(choices, mWidth, mHeight);
     }
 
     private class Init extends AsyncTask<Object, Object, Object> {
@@ -522,17 +542,29 @@ public class AssistantModeActivity extends CameraCaptureActivity {
             try {
                 distanceCalculator = new DistanceCalculator();
 
-                detector = Detector.create(getAssets(), Detector.OBJ_DETECTOR_MODEL, mWidth, mHeight);
-                Log.d(TAG, "run: detector created");
+                detector = Detector.create(getAssets(), Detector.OBJ_DETECTOR_MODEL, mWidth, mHeight,
+                        InferenceBackend.Options.load(getApplicationContext(), Detector.OBJ_DETECTOR_MODEL));
+                Log.d(TAG, "run: detector created on " + detector.getBackend());
 
-                signDetector = SignDetector.create(getAssets(), mWidth, mHeight);
-                Log.d(TAG, "run: SignDetector created");
+                signDetector = SignDetector.create(getAssets(), mWidth, mHeight,
+                        InferenceBackend.Options.load(getApplicationContext(), Detector.SIGN_DETECTOR_MODEL),
+                        InferenceBackend.Options.load(getApplicationContext(), SignDetector.SIGN_CLASSIFIER_MODEL));
+                Log.d(TAG, String.format("run: SignDetector created on %s / %s",
+                        signDetector.getDetectorBackend(), signDetector.getClassifierBackend()));
+                ownDetector = detector;
+                ownSignDetector = signDetector;
 
 //                laneDetector = new LaneDetector(mWidth,mHeight,300,300);
                 laneDetectorAdvance = new LaneDetectorAdvance(mWidth, mHeight,
                         SharedValues.CROP_SIZE.getWidth(), SharedValues.CROP_SIZE.getHeight());
                 laneDetectorAdvance.setPtsResized(pts_resized);
                 laneDetectorAdvance.setCarMidpoint((pts[3].x + pts[2].x) / 2);
+                // undistortion only costs something when the camera has been calibrated
+                SharedPreferences sp_ld = getSharedPreferences(getString(R.string.sp_laneDetection), 0);
+                String sp_ld_key_cal_md = getString(R.string.sp_ld_key_cal_mtx_dist);
+                LaneDetectorAdvance.setSharedPreference(sp_ld, getString(R.string.sp_ld_key_mtx),
+                        getString(R.string.sp_ld_key_dist), sp_ld_key_cal_md);
+                laneDetectorAdvance.setUndistort(SharedPreferencesUtils.loadBool(sp_ld, sp_ld_key_cal_md));
 
             } catch (Exception e) {
                 Log.e(TAG, "run: Exception initializing classifier!", e);
@@ -551,79 +583,116 @@ public class AssistantModeActivity extends CameraCaptureActivity {
     }
 
 
-    private static class DetectorTask implements Runnable {
-        private Bitmap resizedBmp = null;
-
+    private static class DetectorTask implements LatestFrameWorker.FrameProcessor {
+        // the full detector only runs every few frames, the tracker fills the gaps
+        private final ObjectTracker tracker = new ObjectTracker(Detector.getMaxDetections());
+        private final Detections tracks = new Detections(Detector.getMaxDetections());
+        private final float[] distances = new float[Detector.getMaxDetections()];
+        private final LabelFilter shownObjects = new LabelFilter(SHOWN_OBJECTS);
+        private final LabelFilter measuredObjects = new LabelFilter(MEASURED_OBJECTS);
+        private final RectF location = new RectF();
+        private final RectF maskRect;
 
-        public DetectorTask(Bitmap resizedBmp) {
-            this.resizedBmp = resizedBmp;
+        /** @param maskRect the car's lane, objects in it are warned about; may be null */
+        DetectorTask(RectF maskRect) {
+            this.maskRect = maskRect;
         }
 
         @Override
-        public void run() {
-            if (resizedBmp == null) return;
-            if (!isComputingDetection) {
-                isComputingDetection = true;
-                float start = SystemClock.currentThreadTimeMillis();
-                mappedRecognitions = detector.run(resizedBmp, true);
-
-                float end = SystemClock.currentThreadTimeMillis();
-                timeTakeByObjDetector = end - start;
-                draw.postInvalidate();
-                isComputingDetection = false;
+        public void process(FrameBuffer frame) {
+            long wallStart = FrameTimings.wallNow();
+            long cpuStart = FrameTimings.cpuNow();
+            long timestampMs = frame.getTimestamp() / 1000000;
+            if (tracker.needsDetection()) {
+                tracker.update(detector.run(frame), timestampMs);
+            } else {
+                tracker.predict(timestampMs);
+            }
+            tracker.getTracks(tracks);
+            measure();
+            overlayState.publishObjects(tracks, distances);
+            FrameTimings.record(FrameTimings.Stage.OBJECT_TASK, wallStart, cpuStart);
+            draw.invalidateLayers(OverlayView.LAYER_OBJECTS);
+        }
+
+        /**
+         * Measures the distance of the shown objects and speaks the warnings, here rather than
+         * while drawing so the tracks' distance smoothing and the voice see every frame once.
+         */
+        private void measure() {
+            int countVoicedWarns = 0;
+            for (int i = 0; i < tracks.size(); i++) {
+                distances[i] = Float.NaN;
+                if (tracks.getScore(i) < MIN_SHOWN_SCORE || !shownObjects.accepts(tracks, i))
+                    continue;
+                String label = tracks.getLabel(i);
+                if (label.contentEquals("stop sign"))
+                    speak(label);
+                if (distanceCalculator == null || !isDistanceCalculatorAllowed
+                        || !measuredObjects.accepts(tracks, i)) continue;
+
+                tracks.getBox(i, location);
+                float dist = distanceCalculator.calculateDistance(location, label, tracks.getId(i));
+                distances[i] = dist;
+                if (dist < WARNING_DISTANCE && countVoicedWarns <= 2) {
+                    countVoicedWarns++;
+                    // voice warning logic
+                    if (maskRect != null && RectF.intersects(location, maskRect))
+                        speak("A " + label + " is approaching beware");
+                }
             }
-            if (!resizedBmp.isRecycled()) resizedBmp.recycle();
         }
     }
 
-    private static class SignTask implements Runnable {
-        private Bitmap resizedBmp = null;
+    private static class SignTask implements LatestFrameWorker.FrameProcessor {
 
-        public SignTask(Bitmap resizedBmp) {
-            this.resizedBmp = resizedBmp;
+        @Override
+        public void process(FrameBuffer frame) {
+            long wallStart = FrameTimings.wallNow();
+            long cpuStart = FrameTimings.cpuNow();
+            Detections result = signDetector.run(frame);
+            announce(result);
+            overlayState.publishSigns(result);
+            FrameTimings.record(FrameTimings.Stage.SIGN_TASK, wallStart, cpuStart);
+            draw.invalidateLayers(OverlayView.LAYER_SIGNS);
         }
 
-        @Override
-        public void run() {
-            if (resizedBmp == null) return;
-            if (!isComputingSignDetection) {
-                isComputingSignDetection = true;
-                float start = SystemClock.currentThreadTimeMillis();
-                mappedSignRecognitions = signDetector.run(resizedBmp, true);
-                float end = SystemClock.currentThreadTimeMillis();
-//                Log.d(TAG, String.format("doInBackground in SignLaneTask: sign detection time = %f ms", (end-start)));
-                timeTakeBySignDetector = end - start;
-                draw.postInvalidate();
-                isComputingSignDetection = false;
+        /** Warns when one of the first two signs that are not yield signs is a speed limit. */
+        private void announce(Detections signs) {
+            int count = 0;
+            for (int i = 0; i < signs.size() && count < 2; i++) {
+                String label = signs.getLabel(i);
+                if (label.contentEquals("yield")) continue;
+                if (label.contains("speed")) {
+                    speak("Caution Speed limit Ahead");
+                }
+                count++;
             }
-            if (!resizedBmp.isRecycled()) resizedBmp.recycle();
         }
     }
 
-    private static class LaneTask implements Runnable {
-        private Bitmap resizedBmp = null;
+    private static class LaneTask implements LatestFrameWorker.FrameProcessor {
+        private final LaneInputResolution laneInput;
+        private final LaneDepartureMonitor departureMonitor;
 
-        public LaneTask(Bitmap resizedBmp) {
-            this.resizedBmp = resizedBmp;
+        LaneTask(LaneInputResolution laneInput, LaneDepartureMonitor departureMonitor) {
+            this.laneInput = laneInput;
+            this.departureMonitor = departureMonitor;
         }
 
         @Override
-        public void run() {
-            if (resizedBmp == null) return;
-            if (!isComputingLaneDetection) {
-                isComputingLaneDetection = true;
-                float start = SystemClock.currentThreadTimeMillis();
-
-                ArrayList<PointF>[] ret = laneDetectorAdvance.processFrame(resizedBmp, false);
-                lft_lane_pts = ret[0];
-                rht_lane_pts = ret[1];
-                float end = SystemClock.currentThreadTimeMillis();
-                timeTakeByLaneDetector = end - start;
-                draw.postInvalidate();
-                isComputingLaneDetection = false;
+        public void process(FrameBuffer frame) {
+            long wallStart = FrameTimings.wallNow();
+            long cpuStart = FrameTimings.cpuNow();
+
+            ArrayList<PointF>[] ret = laneDetectorAdvance.processFrame(frame, false);
+            departureMonitor.update(laneDetectorAdvance.getOff_center(), laneDetectorAdvance.hasLanes(),
+                    frame.getTimestamp() / 1000000);
+            overlayState.publishLanes(ret[0], ret[1], departureMonitor.isDeparting());
+            FrameTimings.record(FrameTimings.Stage.LANE_TASK, wallStart, cpuStart);
+            laneInput.onFrameProcessed(FrameTimings.wallNow() - wallStart);
+            draw.invalidateLayers(OverlayView.LAYER_LANES);
 //                System.gc();
-            }
-            if (!resizedBmp.isRecycled()) resizedBmp.recycle();
         }
     }
 
@@ -650,7 +719,8 @@ public class AssistantModeActivity extends CameraCaptureActivity {
 
 
 
-    private void speak(String msg) {
+    /** Speaks msg unless warnings are muted or something is being said already, any thread. */
+    private static void speak(String msg) {
         if (isVoiceWarningAllowed && tts !=null) {
             if (!tts.isSpeaking()) {
                 tts.speak(msg, TextToSpeech.QUEUE_ADD, null, null);
@@ -677,16 +747,19 @@ public class AssistantModeActivity extends CameraCaptureActivity {
         super.onResume();
         startPeriodicTask();
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        overlayRenderer.release();
+    }
     @Override
     public void onBackPressed() {
-        mappedRecognitions = null;
-        mappedSignRecognitions = null;
+        overlayState.clear();
         counterForVolumeDown = 0;
         drawDebugInfo = false;
-        lft_lane_pts = null;
-        rht_lane_pts = null;
         showLaneGuidLines = false;
-        draw.postInvalidate();
+        draw.invalidateLayers(OverlayView.ALL_LAYERS);
         finishAffinity();
         Intent i = new Intent(getApplicationContext(), MainActivity.class);
         startActivity(i);
@@ -701,6 +774,7 @@ public class AssistantModeActivity extends CameraCaptureActivity {
                     break;
                 case 1:
                     drawDebugInfo = true;
+                    debugTextDueMs = 0;
                     showLaneGuidLines = false;
                     break;
                 case 2:
@@ -709,33 +783,53 @@ public class AssistantModeActivity extends CameraCaptureActivity {
             }
             counterForVolumeDown++;
             counterForVolumeDown %= 3;
-            draw.postInvalidate();
+            draw.invalidateLayers(OverlayView.ALL_LAYERS);
             return true;
         }
 
         return super.onKeyDown(keyCode, event);
     }
 
+    private void updateDebugText() {
+        for (int i = 0; i < DEBUG_STAGES.length; i++) {
+            debugStageText[i] = FrameTimings.getSummary(DEBUG_STAGES[i]);
+        }
+        debugDropText = FrameTimings.getDropSummary();
+        debugLaneInputText = laneInput.getSummary();
+        debugBackendText = detector == null || signDetector == null ? null :
+                String.format(Locale.US, "Backends: objects %s, signs %s / %s",
+                        detector.getBackend(), signDetector.getDetectorBackend(),
+                        signDetector.getClassifierBackend());
+    }
+
+    private File getTimingReportFile() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) dir = getFilesDir();
+        return new File(dir, FrameTimings.REPORT_FILE_NAME);
+    }
+
     private void startPeriodicTask(){
         initializeTextToSpeech();
         //---------
-        threadExecutor = new ScheduledThreadPoolExecutor(10);
+        // only periodic bookkeeping runs here, the models have their own workers
+        threadExecutor = new ScheduledThreadPoolExecutor(2);
+        FrameTimings.reset();
+        timingReportTask = threadExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                FrameTimings.writeReport(getTimingReportFile());
+            }
+        }, TIMING_REPORT_PERIOD_S, TIMING_REPORT_PERIOD_S, TimeUnit.SECONDS);
+        detectorWorker = new LatestFrameWorker("DetectorWorker", new DetectorTask(maskRect));
+        signWorker = new LatestFrameWorker("SignWorker", new SignTask());
+        laneWorker = new LatestFrameWorker("LaneWorker", new LaneTask(laneInput, departureMonitor));
+        laneInput.startThermalMonitoring(this);
 
 
-        final SharedPreferences sp_bt = getSharedPreferences(getString(R.string.sp_blueTooth), 0);
-        final String key_bt_conn = getString(R.string.sp_bt_key_isDeviceConnected);
-        final String key_bt_speed = getString(R.string.sp_bt_key_car_speed);
-        // if obd connected then get speed at intervals
-        if (SharedPreferencesUtils.loadBool(sp_bt, key_bt_conn)) {
-            obdStoppedTask = threadExecutor.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    Log.d(TAG, "run: OBD-ii speed checker");
-                    carSpeed = sp_bt.getString(key_bt_speed, null);
-                    draw.postInvalidate();
-                }
-            }, 1,1 , TimeUnit.MILLISECONDS);
-        }
+        // the OBD reader publishes the speed whenever it has read it, if it is connected at all
+        carSpeed = TelemetryBus.getValue(TelemetryBus.Channel.SPEED, -1);
+        departureMonitor.setCarSpeed(carSpeed);
+        TelemetryBus.subscribe(speedListener, TelemetryBus.Channel.SPEED);
 
 
         final SharedPreferences sp_fs = getSharedPreferences(getString(R.string.sp_featureSettings), 0);
@@ -751,11 +845,19 @@ public class AssistantModeActivity extends CameraCaptureActivity {
             @Override
             public void run() {
                 Log.d(TAG, "run: AssistantMode flag checks");
-                isLaneDetectionAllowed = SharedPreferencesUtils.loadBool(sp_fs, fs_lane);
-                isSignDetectionAllowed = SharedPreferencesUtils.loadBool(sp_fs, fs_sign);
-                isObjDetectionAllowed = SharedPreferencesUtils.loadBool(sp_fs, fs_obj_detect);
+                boolean lane = SharedPreferencesUtils.loadBool(sp_fs, fs_lane);
+                boolean sign = SharedPreferencesUtils.loadBool(sp_fs, fs_sign);
+                boolean objects = SharedPreferencesUtils.loadBool(sp_fs, fs_obj_detect);
+                // the DetectorTask picks these up with its next frame
                 isDistanceCalculatorAllowed = SharedPreferencesUtils.loadBool(sp_fs, fs_dist);
                 isVoiceWarningAllowed = !SharedPreferencesUtils.loadBool(sp_fs, fs_mute);
+                boolean changed = lane != isLaneDetectionAllowed || sign != isSignDetectionAllowed
+                        || objects != isObjDetectionAllowed;
+                isLaneDetectionAllowed = lane;
+                isSignDetectionAllowed = sign;
+                isObjDetectionAllowed = objects;
+                // the layers only look different when a feature was switched on or off
+                if (changed) draw.invalidateLayers(OverlayView.ALL_LAYERS);
             }
         }, 1, 1, TimeUnit.SECONDS);
 
@@ -763,19 +865,63 @@ public class AssistantModeActivity extends CameraCaptureActivity {
     private void stopPeriodicTask() {
         if (tts != null) tts.shutdown();
         //--------------
+        if (timingReportTask != null){
+            timingReportTask.cancel(false);
+            timingReportTask = null;
+            FrameTimings.writeReport(getTimingReportFile());
+        }
         if (flagCheckTask != null){
             flagCheckTask.cancel(false);
             flagCheckTask = null;
         }
 
-        if (obdStoppedTask !=null){
-            obdStoppedTask.cancel(false);
-            obdStoppedTask = null;
-        }
+        TelemetryBus.unsubscribe(speedListener);
 
         if(threadExecutor != null){
             threadExecutor.shutdown();
             threadExecutor = null;
         }
+
+        final LatestFrameWorker detectorWorker = this.detectorWorker;
+        final LatestFrameWorker signWorker = this.signWorker;
+        final LatestFrameWorker laneWorker = this.laneWorker;
+        final Detector finishedDetector = isFinishing() ? ownDetector : null;
+        final SignDetector finishedSignDetector = isFinishing() ? ownSignDetector : null;
+        if (isFinishing()) {
+            ownDetector = null;
+            ownSignDetector = null;
+        }
+        if (detectorWorker != null) {
+            // a frame still on its way sees no workers, or gets dropped by the shut down ones
+            this.detectorWorker = null;
+            this.signWorker = null;
+            this.laneWorker = null;
+            // a finishing activity closes its interpreters on their own threads, after their
+            // last frame
+            detectorWorker.shutdown(finishedDetector == null ? null : new Runnable() {
+                @Override
+                public void run() {
+                    finishedDetector.close();
+                }
+            });
+            signWorker.shutdown(finishedSignDetector == null ? null : new Runnable() {
+                @Override
+                public void run() {
+                    finishedSignDetector.close();
+                }
+            });
+            // the lane detector's native memory is freed on its own thread, after its last frame
+            laneWorker.shutdown(new Runnable() {
+                @Override
+                public void run() {
+                    if (laneDetectorAdvance != null) laneDetectorAdvance.release();
+                    departureMonitor.reset();
+                }
+            });
+            laneInput.stopThermalMonitoring();
+        } else {
+            if (finishedDetector != null) finishedDetector.close();
+            if (finishedSignDetector != null) finishedSignDetector.close();
+        }
     }
 }
@@ -44,12 +44,9 @@ import android.widget.Toast;
 //import com.github.pires.obd.exceptions.UnableToConnectException;
 
 import com.example.fyp.customutilities.SharedPreferencesUtils;
-import com.github.pires.obd.commands.SpeedCommand;
-import com.github.pires.obd.commands.engine.RPMCommand;
 import com.github.pires.obd.commands.protocol.EchoOffCommand;
 import com.github.pires.obd.commands.protocol.ObdResetCommand;
 import com.github.pires.obd.commands.protocol.SelectProtocolCommand;
-import com.github.pires.obd.commands.temperature.AmbientAirTemperatureCommand;
 import com.github.pires.obd.enums.ObdProtocols;
 import com.github.pires.obd.exceptions.MisunderstoodCommandException;
 import com.github.pires.obd.exceptions.NoDataException;
@@ -61,6 +58,7 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -291,7 +289,7 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
 //                    gtct = new GetTroubleCodesTask();
                     if(mBTDevice.getAddress().equals("00:00:00:33:33:33")||mBTDevice.getName().equalsIgnoreCase("OBDII")) {
                         gtct.setParams(mBTDevice.getAddress());
-                        threadPoolExecutor.scheduleWithFixedDelay(gtct,1,1,TimeUnit.MILLISECONDS);
+                        threadPoolExecutor.schedule(gtct,1,TimeUnit.MILLISECONDS);
                     }else {
                         Toast.makeText(getApplicationContext(), "Please select the OBDII device from the list.", Toast.LENGTH_SHORT).show();
                     }
@@ -1054,6 +1052,7 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
         SharedPreferences sp_bt = getSharedPreferences(getString(R.string.sp_blueTooth),0);
         String key_bt_conn = getString(R.string.sp_bt_key_isDeviceConnected);
         SharedPreferencesUtils.saveBool(sp_bt,key_bt_conn,false);
+        TelemetryBus.disconnected();
         threadPoolExecutor.shutdown();
     }
 
@@ -1095,7 +1094,7 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
             Log.e(TAG, "No bt device is paired.");
         else
             gtct.setParams(remoteDevice);
-        threadPoolExecutor.scheduleWithFixedDelay(gtct,1,1,TimeUnit.MILLISECONDS);
+        threadPoolExecutor.schedule(gtct,1,TimeUnit.MILLISECONDS);
     }
 
 //    private static void connectViaBluetooth() {
@@ -1124,6 +1123,7 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
 
     private class GetTroubleCodesTask implements Runnable {
         private String params= null;
+        private ObdPoller poller = null;
         public GetTroubleCodesTask(){
 
         }
@@ -1174,28 +1174,31 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
                         Log.e(TAG, "There was an error while establishing connection. -> " + e.getMessage());
                         Log.d(TAG, "Message received on handler here");
                         mHandler.obtainMessage(CANNOT_CONNECT_TO_DEVICE).sendToTarget();
+                        scheduleNext(1);
                         return;
                     }
                 }
 
 
                 try {
-                    // Let's configure the connection.
-                    Log.d(TAG, "Queueing jobs for connection configuration..");
+                    // Let's configure the connection, once, the adapter keeps its settings.
+                    if (poller == null) {
+                        Log.d(TAG, "Queueing jobs for connection configuration..");
 
 
-                    new ObdResetCommand().run(sock.getInputStream(), sock.getOutputStream());
-                    Log.d(TAG, "ObdResetCommand successs");
+                        new ObdResetCommand().run(sock.getInputStream(), sock.getOutputStream());
+                        Log.d(TAG, "ObdResetCommand successs");
 
 
-                    new EchoOffCommand().run(sock.getInputStream(), sock.getOutputStream());
-                    Log.d(TAG, " EchoOffCommand succcess");
+                        new EchoOffCommand().run(sock.getInputStream(), sock.getOutputStream());
+                        Log.d(TAG, " EchoOffCommand succcess");
 
 
-                    new SelectProtocolCommand(ObdProtocols.AUTO).run(sock.getInputStream(), sock.getOutputStream());
-                    Log.d(TAG, "SelectProtocolCommand success");
+                        new SelectProtocolCommand(ObdProtocols.AUTO).run(sock.getInputStream(), sock.getOutputStream());
+                        Log.d(TAG, "SelectProtocolCommand success");
 
-                    Log.d(TAG, "nothing");
+                        poller = new ObdPoller();
+                    }
 
 //                    MyTroubleCodesCommand tcoc = new MyTroubleCodesCommand();
 //                    tcoc.run(sock.getInputStream(), sock.getOutputStream());
@@ -1220,40 +1223,9 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
                         //       Read from the InputStream
                         try {
 
-                            RPMCommand engineRpmCommand = new RPMCommand();
-
-                            SpeedCommand speedCommand = new SpeedCommand();
-//
-                            AmbientAirTemperatureCommand atc = new AmbientAirTemperatureCommand();
-
-
-                            //         FuelLevelCommand flc = new FuelLevelCommand();
-//                            while (!Thread.currentThread().isInterrupted()) {
-
-                            MyTroubleCodesCommand tcoc = new MyTroubleCodesCommand();
-                            engineRpmCommand.run(sock.getInputStream(), sock.getOutputStream());
-                            speedCommand.run(sock.getInputStream(), sock.getOutputStream());
-                            atc.run(sock.getInputStream(), sock.getOutputStream());
-                            //            flc.run(sock.getInputStream(), sock.getOutputStream());
-
-                            tcoc.run(sock.getInputStream(), sock.getOutputStream());
-                            result = tcoc.getFormattedResult();
-
-                            // TODO handle commands result
-                            Log.d(TAG, "RPM: " + engineRpmCommand.getCalculatedResult());
-                            Log.d(TAG, "Speed: " + speedCommand.getCalculatedResult());
-                            Log.d(TAG, "Temp: " + atc.getCalculatedResult());
-                            //      Log.d(TAG, "Fuel level: " + flc.getFormattedResult());
-
-                            Log.d(TAG, "Trouble codes: " + result);
-
-                            // save speed to sharedPreferences
-                            String speed = speedCommand.getCalculatedResult();
-                            SharedPreferences sp_bt = getSharedPreferences(getString(R.string.sp_blueTooth),0);
-                            String key_bt_conn = getString(R.string.sp_bt_key_isDeviceConnected);
-                            String key_bt_speed = getString(R.string.sp_bt_key_car_speed);
-                            SharedPreferencesUtils.saveBool(sp_bt,key_bt_conn,true);
-                            SharedPreferencesUtils.saveString(sp_bt,key_bt_speed,speed);
+                            // reads whatever is due and hands it to the TelemetryBus
+                            result = poller.pollDue(sock.getInputStream(), sock.getOutputStream());
+                            if (result != null) Log.d(TAG, "Trouble codes: " + result);
 
                             //          if(result.contains("B1904")||result.contains("B1902")){
 //                            Intent intent = new Intent(getApplicationContext(), Sms.class);
@@ -1262,7 +1234,7 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
                             //        };
 
                             //       }
-                            if (result.contains("B1904") || result.contains("B1902")) {
+                            if (result != null && (result.contains("B1904") || result.contains("B1902"))) {
                                 Intent intent = new Intent(getApplicationContext(), Sms.class);
                                 startActivity(intent);
                                 threadPoolExecutor.schedule(new Runnable() {
@@ -1271,6 +1243,7 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
                                              threadPoolExecutor.shutdown();
                                     }
                                 },10, TimeUnit.MILLISECONDS);
+                                return;
                             }
 
 
@@ -1302,10 +1275,18 @@ public class Bluetooth extends AppCompatActivity implements AdapterView.OnItemCl
                     Log.e("DTCERR", e.getMessage());
                     mHandler.obtainMessage(OBD_COMMAND_FAILURE).sendToTarget();
                 }
+                scheduleNext(poller == null ? 1 : poller.getDelayMs());
             }
         }
 
-
+        /** Runs the task again after delayMs, unless the executor was shut down meanwhile. */
+        private void scheduleNext(long delayMs) {
+            try {
+                threadPoolExecutor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Log.d(TAG, "scheduleNext: OBD reader stopped");
+            }
+        }
     }
     private void closeSocket(BluetoothSocket sock) {
         if (sock != null)
@@ -37,10 +37,10 @@ import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
-import com.example.fyp.customutilities.ImageUtilities;
+import com.example.fyp.customutilities.FrameTimings;
+import com.example.fyp.customutilities.YuvFrameConverter;
 import com.example.fyp.customview.OverlayView;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -57,12 +57,9 @@ public abstract class CameraCaptureActivity extends AppCompatActivity implements
     private int mHeight = 0;
 
     private boolean isProcessingFrame = false;
-    private byte[][] yuvBytes = new byte[3][];
-    private int[] rgbBytes = null;
-    private int yRowStride;
-
-    private Runnable postInferenceCallback;
-    private Runnable imageConverter;
+    private Image currentImage = null;
+    private YuvFrameConverter frameConverter = null;
+    private YuvFrameConverter cropConverter = null;
 
     private TextureView mTextureView;
     private OverlayView mOverlayView;
@@ -259,7 +256,8 @@ public abstract class CameraCaptureActivity extends AppCompatActivity implements
 //                mOverlayView.setLayoutParams(params);
 
 //                mImageReader = ImageReader.newInstance(mWidth,mHeight, ImageFormat.YUV_420_888, 2);
-                Size imageReaderSize = getDesiredImageReaderSize();
+                Size imageReaderSize = getDesiredImageReaderSize(
+                        map.getOutputSizes(ImageFormat.YUV_420_888));
                 mImageReader = ImageReader.newInstance(
                         imageReaderSize.getWidth(),imageReaderSize.getHeight(),ImageFormat.YUV_420_888,2);
 //                mImageReader = ImageReader.newInstance(DESIRED_PREVIEW_SIZES[0].getWidth(),
@@ -425,47 +423,21 @@ public abstract class CameraCaptureActivity extends AppCompatActivity implements
             }
             final int aqWidth = image.getWidth();
             final int aqHeight = image.getHeight();
-            Log.d(TAG, String.format("onImageAvailable: image.width = %d and image.height = %d", aqWidth,aqHeight));
-            if (rgbBytes == null) {
-//            rgbBytes = new int[mWidth * mHeight];
-                rgbBytes = new int[aqWidth * aqHeight];
-            }
             if (isProcessingFrame) {
                 image.close();
+                FrameTimings.countDroppedFrame(FrameTimings.DropReason.CAMERA_BUSY);
                 return;
             }
             isProcessingFrame = true;
             Trace.beginSection("imageAvailable");
-            final Image.Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
-            yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-
-            imageConverter = new Runnable() {
-                @Override
-                public void run() {
-                    ImageUtilities.convertYUV420ToARGB8888(
-                            yuvBytes[0],
-                            yuvBytes[1],
-                            yuvBytes[2],
-                            aqWidth,//mWidth,
-                            aqHeight,//mHeight,
-                            yRowStride,
-                            uvRowStride,
-                            uvPixelStride,
-                            rgbBytes);
-                }
-            };
-
-            postInferenceCallback = new Runnable() {
-                @Override
-                public void run() {
-                    image.close();
-                    isProcessingFrame = false;
-                }
-            };
-            processImage(aqWidth,aqHeight);
+            currentImage = image;
+            try {
+                processImage(aqWidth,aqHeight);
+            } finally {
+                // processImage lets go of the image as soon as it is converted, this is in case
+                // it threw before that; otherwise no frame would ever be processed again
+                readyForNextImage();
+            }
         } catch (final Exception e) {
             Log.e(TAG, String.format("onImageAvailable: Exception %s", e.toString()) );
             Trace.endSection();
@@ -474,27 +446,74 @@ public abstract class CameraCaptureActivity extends AppCompatActivity implements
         Trace.endSection();
     }
 
-    protected void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                Log.d(TAG, String.format("fillBytes: Initilalizing buffer %d at size %d", i,buffer.capacity()));
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
-        }
+    /**
+     * Converts the image currently being processed straight from its YUV planes into
+     * {@code frame}, resizing on the fly. Must be called before {@link #readyForNextImage()}.
+     *
+     * @return false if there is no image to convert.
+     */
+    protected boolean fillFrame(FrameBuffer frame) {
+        return fillFrame(frame, 0, 0, 1, 1);
     }
-    protected void readyForNextImage() {
-        if (postInferenceCallback != null) {
-            postInferenceCallback.run();
+
+    /**
+     * Like {@link #fillFrame(FrameBuffer)}, but only converts the given part of the image,
+     * in fractions of its size. The part actually used, after rounding to whole pixels, is
+     * stored as the frame's source region.
+     */
+    protected boolean fillFrame(FrameBuffer frame, float left, float top, float right, float bottom) {
+        final Image image = currentImage;
+        if (image == null) return false;
+
+        final int aqWidth = image.getWidth();
+        final int aqHeight = image.getHeight();
+        final int cropLeft = Math.round(left * aqWidth);
+        final int cropTop = Math.round(top * aqHeight);
+        final int cropWidth = Math.max(1, Math.round(right * aqWidth) - cropLeft);
+        final int cropHeight = Math.max(1, Math.round(bottom * aqHeight) - cropTop);
+        final boolean cropped = cropWidth != aqWidth || cropHeight != aqHeight;
+
+        // the full frame and the crop both have a converter, so alternating between them is free
+        YuvFrameConverter converter = cropped ? cropConverter : frameConverter;
+        if (converter == null || !converter.matches(aqWidth, aqHeight,
+                cropLeft, cropTop, cropWidth, cropHeight, frame.getWidth(), frame.getHeight())) {
+            Log.d(TAG, String.format("fillFrame: converter %dx%d (%d,%d %dx%d) -> %dx%d",
+                    aqWidth, aqHeight, cropLeft, cropTop, cropWidth, cropHeight,
+                    frame.getWidth(), frame.getHeight()));
+            converter = new YuvFrameConverter(aqWidth, aqHeight,
+                    cropLeft, cropTop, cropWidth, cropHeight, frame.getWidth(), frame.getHeight());
+            if (cropped) cropConverter = converter;
+            else frameConverter = converter;
         }
+
+        long wallStart = FrameTimings.wallNow();
+        long cpuStart = FrameTimings.cpuNow();
+        final Image.Plane[] planes = image.getPlanes();
+        converter.convert(
+                planes[0].getBuffer(),
+                planes[1].getBuffer(),
+                planes[2].getBuffer(),
+                planes[0].getRowStride(),
+                planes[1].getRowStride(),
+                planes[1].getPixelStride(),
+                frame.getWritableBuffer());
+        frame.setTimestamp(image.getTimestamp());
+        frame.setSourceRegion(
+                cropLeft / (float) aqWidth,
+                cropTop / (float) aqHeight,
+                (cropLeft + cropWidth) / (float) aqWidth,
+                (cropTop + cropHeight) / (float) aqHeight);
+        FrameTimings.record(FrameTimings.Stage.CONVERT, wallStart, cpuStart);
+        FrameTimings.countConvertedFrame();
+        return true;
     }
 
-    protected int[] getRgbBytes() {
-        imageConverter.run();
-        return rgbBytes;
+    protected void readyForNextImage() {
+        if (currentImage != null) {
+            currentImage.close();
+            currentImage = null;
+        }
+        isProcessingFrame = false;
     }
 
     private synchronized void runInBackground(final Runnable r) {
@@ -506,6 +525,7 @@ public abstract class CameraCaptureActivity extends AppCompatActivity implements
     public abstract void onPreviewSizeSelected(int width, int height);
     public abstract void processImage(int aqWidth,int aqHeight);
     public abstract Size getDesiredPreviewSize();
-    public abstract Size getDesiredImageReaderSize();
+    /** @param choices the sizes the camera can deliver YUV_420_888 frames in */
+    public abstract Size getDesiredImageReaderSize(Size[] choices);
 
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.example.fyp;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable, fixed-capacity container for detector results. Everything is kept in primitive
+ * arrays so a producer can refill it every frame without allocating, and a consumer can read
+ * it without boxing. Labels are resolved by index against the label table of the model that
+ * produced the results.
+ *
+ * Not thread-safe; producers and consumers on different threads have to synchronize on the
+ * instance (see {@link #copyFrom(Detections)}).
+ */
+public class Detections {
+    // boxes: 4 floats per detection, left, top, right, bottom in frame coordinates
+    private final float[] boxes;
+    private final int[] classes;
+    private final float[] scores;
+    // persistent track id of every detection, -1 for raw detector output
+    private final int[] ids;
+    private final int capacity;
+    private String[] labels;
+    private int count = 0;
+
+    public Detections(int capacity) {
+        this.capacity = capacity;
+        this.boxes = new float[capacity * 4];
+        this.classes = new int[capacity];
+        this.scores = new float[capacity];
+        this.ids = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    /** Sets the label table classes are resolved against. Only the reference is kept. */
+    void setLabels(String[] labels) {
+        this.labels = labels;
+    }
+
+    String[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * Appends a detection, silently ignoring it when the container is full.
+     * @return index of the new detection or -1 if it did not fit
+     */
+    int add(float left, float top, float right, float bottom, int classIndex, float score) {
+        return add(left, top, right, bottom, classIndex, score, -1);
+    }
+
+    /** Same as above for a detection that belongs to the track with the given id. */
+    int add(float left, float top, float right, float bottom, int classIndex, float score, int id) {
+        if (count >= capacity) return -1;
+        int b = count * 4;
+        boxes[b] = left;
+        boxes[b + 1] = top;
+        boxes[b + 2] = right;
+        boxes[b + 3] = bottom;
+        classes[count] = classIndex;
+        scores[count] = score;
+        ids[count] = id;
+        return count++;
+    }
+
+    /** Maps all boxes in place, e.g. from model input to frame coordinates. */
+    void mapBoxes(Matrix matrix) {
+        // left/top and right/bottom are two points, so the array can be mapped directly
+        matrix.mapPoints(boxes, 0, boxes, 0, count * 2);
+        for (int i = 0; i < count; i++) {
+            int b = i * 4;
+            if (boxes[b] > boxes[b + 2]) swap(b, b + 2);
+            if (boxes[b + 1] > boxes[b + 3]) swap(b + 1, b + 3);
+        }
+    }
+
+    private void swap(int a, int b) {
+        float t = boxes[a];
+        boxes[a] = boxes[b];
+        boxes[b] = t;
+    }
+
+    public float getLeft(int i) {
+        return boxes[i * 4];
+    }
+
+    public float getTop(int i) {
+        return boxes[i * 4 + 1];
+    }
+
+    public float getRight(int i) {
+        return boxes[i * 4 + 2];
+    }
+
+    public float getBottom(int i) {
+        return boxes[i * 4 + 3];
+    }
+
+    /** Copies the box of detection i into out and returns it. */
+    public RectF getBox(int i, RectF out) {
+        int b = i * 4;
+        out.set(boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3]);
+        return out;
+    }
+
+    public int getClassIndex(int i) {
+        return classes[i];
+    }
+
+    public float getScore(int i) {
+        return scores[i];
+    }
+
+    /** Track id of detection i, stable across frames, or -1 if it is not tracked. */
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public String getLabel(int i) {
+        int c = classes[i];
+        if (labels == null || c < 0 || c >= labels.length) return "";
+        return labels[c];
+    }
+
+    /** Replaces the contents with those of other. Capacities have to be equal. */
+    public void copyFrom(Detections other) {
+        if (other.capacity != capacity)
+            throw new IllegalArgumentException("capacity mismatch");
+        count = other.count;
+        labels = other.labels;
+        System.arraycopy(other.boxes, 0, boxes, 0, count * 4);
+        System.arraycopy(other.classes, 0, classes, 0, count);
+        System.arraycopy(other.scores, 0, scores, 0, count);
+        System.arraycopy(other.ids, 0, ids, 0, count);
+    }
+
+    /** Builds the old object based representation. Allocates, so keep it off the frame path. */
+    public List<RecognizedObject> toRecognizedObjects() {
+        List<RecognizedObject> recognitions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recognitions.add(new RecognizedObject("" + (ids[i] >= 0 ? ids[i] : i), getLabel(i), getScore(i),
+                    getBox(i, new RectF())));
+        }
+        return recognitions;
+    }
+}
@@ -4,13 +4,11 @@ import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
-import android.graphics.RectF;
 import android.os.Trace;
 import android.util.Log;
 
 import org.jetbrains.annotations.NotNull;
 import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.gpu.GpuDelegate;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -24,8 +22,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 
+import com.example.fyp.customutilities.FrameTimings;
+import com.example.fyp.customutilities.ImagePreprocessor;
 import com.example.fyp.customutilities.ImageUtilities;
 
 
@@ -65,28 +64,38 @@ public class Detector {
 
     private int[] intValues;
 
-    private Vector<String> labels = new Vector<String>();
-    // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
+    private String[] labels;
+    // The output tensors are copied into these direct buffers, which are bound to the
+    // interpreter once in create() so a run does not allocate anything.
+    // outputLocations: float tensor of shape [Batchsize, NUM_DETECTIONS,4]
     // contains the location of detected boxes
-    private float[][][] outputLocations;
-    // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
+    private ByteBuffer outputLocations;
+    // outputClasses: float tensor of shape [Batchsize, NUM_DETECTIONS]
     // contains the classes of detected boxes
-    private float[][] outputClasses;
-    // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
+    private ByteBuffer outputClasses;
+    // outputScores: float tensor of shape [Batchsize, NUM_DETECTIONS]
     // contains the scores of detected boxes
-    private float[][] outputScores;
-    // numDetections: array of shape [Batchsize]
+    private ByteBuffer outputScores;
+    // numDetections: float tensor of shape [Batchsize]
     // contains the number of detected boxes
-    private float[] numDetections;
-
-    private ByteBuffer imgData;
+    private ByteBuffer numDetections;
+    private Object[] inputArray;
+    private Map<Integer, Object> outputMap;
+    // results of the last run, reused
+    private Detections detections;
+
+    // packs Bitmaps and, for float models, frames into the input tensor
+    private ImagePreprocessor preprocessor;
+    // buffer fed to the interpreter, either the preprocessor's or a FrameBuffer view
+    private ByteBuffer inputData;
 //    private ByteBuffer outputBuffer;
 //    private int[] outputValues;
 
+    private InferenceBackend backend;
     private Interpreter tfLite;
 
     /** Memory-map the model file in Assets. */
-    private static ByteBuffer loadModelFile(AssetManager assets,String model_file)
+    static ByteBuffer loadModelFile(AssetManager assets,String model_file)
             throws IOException {
         Log.d(TAG, String.format("loadModelFile: assetManager = %s", assets.toString()));
         AssetFileDescriptor fileDescriptor = assets.openFd(model_file);
@@ -97,44 +106,43 @@ public class Detector {
         return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
     }
 
-    /** Initializes a native TensorFlow session. */
+    /** Initializes a native TensorFlow session with the default backend. */
     public static Detector create(
             AssetManager assetManager,
             String model,int srcWidth, int srcHeight) throws IOException,IllegalArgumentException {
+        return create(assetManager, model, srcWidth, srcHeight, InferenceBackend.Options.defaults());
+    }
 
-        assert  model.contentEquals(OBJ_DETECTOR_MODEL)  ||
-                model.contentEquals(SIGN_DETECTOR_MODEL);
+    /** Initializes a native TensorFlow session on the backend asked for in options. */
+    public static Detector create(
+            AssetManager assetManager,
+            String model,int srcWidth, int srcHeight,
+            InferenceBackend.Options options) throws IOException,IllegalArgumentException {
+        return create(loadModelFile(assetManager, model), model,
+                loadLabels(assetManager, getLabelFile(model)), srcWidth, srcHeight, options);
+    }
 
-        final Detector d = new Detector();
-        try {
-//            GpuDelegate delegate = new GpuDelegate();
-//            Interpreter.Options options = (new Interpreter.Options()).addDelegate(delegate);
-//            d.tfLite = new Interpreter(loadModelFile(assetManager,model), options);
-            d.tfLite = new Interpreter(loadModelFile(assetManager,model));
-        } catch (Exception e) {
-            Log.e(TAG, "create: Exception when loading tflite interpreter with gpu option now trying with gpu option");
-            try {
-                d.tfLite = new Interpreter(loadModelFile(assetManager,model));
-            } catch (Exception ex){
-                throw e;
-            }
-        }
+    /**
+     * Same as {@link #create(AssetManager, String, int, int, InferenceBackend.Options)} with the
+     * model already loaded, e.g. from a file by a benchmark.
+     * @param model which of the models modelData is, for its input size and type
+     */
+    public static Detector create(
+            ByteBuffer modelData, String model, String[] labels, int srcWidth, int srcHeight,
+            InferenceBackend.Options options) throws IllegalArgumentException {
 
         int inputWidth ;
         int inputHeight;
-        String labelFilename;
         Boolean isModelQuantized;
         switch (model){
             case OBJ_DETECTOR_MODEL:
                 inputHeight = OBJ_DETECTOR_INPUT_SIZE;
                 inputWidth = OBJ_DETECTOR_INPUT_SIZE;
-                labelFilename = OBJ_DETECTOR_LABEL;
                 isModelQuantized = OBJ_DETECTOR_IS_QUANTIZED;
                 break;
             case SIGN_DETECTOR_MODEL:
                 inputHeight = SIGN_DETECTOR_INPUT_SIZE;
                 inputWidth = SIGN_DETECTOR_INPUT_SIZE;
-                labelFilename = SIGN_DETECTOR_LABEL;
                 isModelQuantized = SIGN_DETECTOR_IS_QUANTIZED;
                 break;
             default:
@@ -143,47 +151,95 @@ public class Detector {
                                 OBJ_DETECTOR_MODEL,SIGN_DETECTOR_MODEL));
         }
 
+        final Detector d = new Detector();
+        d.backend = InferenceBackend.create(modelData, model, options);
+        d.tfLite = d.backend.getInterpreter();
         d.width = inputWidth;
         d.height = inputHeight;
         d.isModelQuantized = isModelQuantized;
 
         d.cropToFrame = ImageUtilities.getTransformationMatrix(d.width,
                 d.height,srcWidth,srcHeight,0,false);
+        d.labels = labels;
+
+        int BATCH_SIZE = 1;
+        d.preprocessor = new ImagePreprocessor(inputWidth, inputHeight, d.isModelQuantized,
+                IMAGE_MEAN, IMAGE_STD);
+        // Pre-allocate buffers.
+
+        d.intValues = new int[inputWidth * inputHeight];
+        d.outputLocations = allocateFloatBuffer(BATCH_SIZE * NUM_DETECTIONS * 4);
+        d.outputClasses = allocateFloatBuffer(BATCH_SIZE * NUM_DETECTIONS);
+        d.outputScores = allocateFloatBuffer(BATCH_SIZE * NUM_DETECTIONS);
+        d.numDetections = allocateFloatBuffer(BATCH_SIZE);
+
+        d.inputArray = new Object[]{d.preprocessor.getBuffer()};
+        d.outputMap = new HashMap<>();
+        d.outputMap.put(0, d.outputLocations);
+        d.outputMap.put(1, d.outputClasses);
+        d.outputMap.put(2, d.outputScores);
+        d.outputMap.put(3, d.numDetections);
+        d.detections = new Detections(NUM_DETECTIONS);
+        d.detections.setLabels(d.labels);
+
+
+        return d;
+    }
+
+
+    private Detector() {}
+
+    /** Label file of one of the detector models. */
+    public static String getLabelFile(String model) {
+        switch (model) {
+            case OBJ_DETECTOR_MODEL:
+                return OBJ_DETECTOR_LABEL;
+            case SIGN_DETECTOR_MODEL:
+                return SIGN_DETECTOR_LABEL;
+            default:
+                throw new IllegalArgumentException(
+                        String.format("model should be one of %s or %S",
+                                OBJ_DETECTOR_MODEL,SIGN_DETECTOR_MODEL));
+        }
+    }
+
+    /** Reads a label file from the assets, one label per line. */
+    public static String[] loadLabels(AssetManager assetManager, String labelFilename)
+            throws IOException {
         InputStream labelsInput = null;
         labelsInput = assetManager.open(labelFilename);
         BufferedReader br = null;
         br = new BufferedReader(new InputStreamReader(labelsInput));
         String line;
+        List<String> labels = new ArrayList<>();
         while ((line = br.readLine()) != null) {
 //            Log.w(TAG,line);
-            d.labels.add(line.toLowerCase().trim());
+            labels.add(line.toLowerCase().trim());
         }
         br.close();
+        return labels.toArray(new String[0]);
+    }
 
-        int numBytesPerChannel;
-        if (d.isModelQuantized) {
-            numBytesPerChannel = 1; // Quantized
-        } else {
-            numBytesPerChannel = 4; // Floating point
-        }
-
-        int BATCH_SIZE = 1;
-        d.imgData = ByteBuffer.allocateDirect(BATCH_SIZE * inputWidth * inputHeight * 3 * numBytesPerChannel);
-        d.imgData.order(ByteOrder.nativeOrder());
-        // Pre-allocate buffers.
-
-        d.intValues = new int[inputWidth * inputHeight];
-        d.outputLocations = new float[1][NUM_DETECTIONS][4];
-        d.outputClasses = new float[1][NUM_DETECTIONS];
-        d.outputScores = new float[1][NUM_DETECTIONS];
-        d.numDetections = new float[1];
-
+    /** Frees the interpreter and any GPU delegate. The detector can not be used afterwards. */
+    public void close() {
+        backend.close();
+    }
 
-        return d;
+    private static ByteBuffer allocateFloatBuffer(int numFloats) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(numFloats * 4);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
     }
 
+    /** Backend the model is running on, e.g. for the debug overlay. */
+    public InferenceBackend getBackend() {
+        return backend;
+    }
 
-    private Detector() {}
+    /** Maximum number of results a single run can produce. */
+    public static int getMaxDetections() {
+        return NUM_DETECTIONS;
+    }
 
     public List<RecognizedObject> run(@NotNull Bitmap bmp,
                                       boolean allowToRecycleBitmap){
@@ -191,92 +247,113 @@ public class Detector {
 //        int srcHeight = bmp.getHeight();
 //        bmp = ImageUtilities.getResizedBitmap(bmp.copy(Bitmap.Config.ARGB_8888,true),
 //                width,height,true);
-        setImageData(bmp);
-        List<RecognizedObject> recs = detectObjectsInImage();
+        List<RecognizedObject> recs = detect(bmp).toRecognizedObjects();
         if (!bmp.isRecycled() && allowToRecycleBitmap) bmp.recycle();
         return recs;
     }
 
+    /** Same as {@link #run(Bitmap, boolean)} but returns the reused result container. */
+    Detections detect(@NotNull Bitmap bmp){
+        setImageData(bmp);
+        return detectObjectsInImage();
+    }
+
+    /**
+     * Runs the detector on an RGB frame. For quantized models with a matching input size the
+     * frame's buffer is fed to the interpreter as is, otherwise it is normalized into floats.
+     * The frame is only read, so it can be shared with other consumers.
+     *
+     * @return the detector's own result container, overwritten by the next run. Copy it with
+     * {@link Detections#copyFrom(Detections)} to hand it to another thread.
+     */
+    public Detections run(@NotNull FrameBuffer frame){
+        setImageData(frame);
+        return detectObjectsInImage();
+    }
+
     private void setImageData(final Bitmap bmp){
+        // getPixels with the model size would read past a smaller bitmap or crop a larger one
+        if (bmp.getWidth() != width || bmp.getHeight() != height)
+            throw new IllegalArgumentException(String.format(
+                    "bitmap is %dx%d but model expects %dx%d",
+                    bmp.getWidth(), bmp.getHeight(), width, height));
+
         // Log this method so that it can be analyzed with systrace.
         Trace.beginSection("recognizeImage");
 
         Trace.beginSection("preprocessBitmap");
         // Preprocess the image data from 0-255 int to normalized float based
         // on the provided parameters.
-        bmp.getPixels(intValues, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
-
-        imgData.rewind();
-
-        for (int i = 0; i < width; ++i) {
-            for (int j = 0; j < height; ++j) {
-                int pixelValue = intValues[i * width + j];
-                if (isModelQuantized) {
-                    // Quantized model
-                    imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-                    imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-                    imgData.put((byte) (pixelValue & 0xFF));
-                } else { // Float model
-                    imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                }
-            }
-        }
+        bmp.getPixels(intValues, 0, width, 0, 0, width, height);
+        inputData = preprocessor.packArgb(intValues);
         Trace.endSection(); // preprocessBitmap
     }
 
-    public List<RecognizedObject> detectObjectsInImage() {
+    private void setImageData(final FrameBuffer frame){
+        if (frame.getWidth() != width || frame.getHeight() != height)
+            throw new IllegalArgumentException(String.format(
+                    "frame is %dx%d but model expects %dx%d",
+                    frame.getWidth(), frame.getHeight(), width, height));
 
-        //
+        Trace.beginSection("recognizeImage");
+
+        if (isModelQuantized) {
+            // frame layout is already [height, width, 3] uint8
+            inputData = frame.getBuffer();
+            return;
+        }
+
+        Trace.beginSection("preprocessFrame");
+        long wallStart = FrameTimings.wallNow();
+        long cpuStart = FrameTimings.cpuNow();
+        inputData = preprocessor.packRgb(frame.getBuffer());
+        FrameTimings.record(FrameTimings.Stage.PREPROCESS, wallStart, cpuStart);
+        Trace.endSection(); // preprocessFrame
+    }
+
+    public Detections detectObjectsInImage() {
 
         // Copy the input data into TensorFlow.
         Trace.beginSection("feed");
-        outputLocations = new float[1][NUM_DETECTIONS][4];
-        outputClasses = new float[1][NUM_DETECTIONS];
-        outputScores = new float[1][NUM_DETECTIONS];
-        numDetections = new float[1];
-
-        Object[] inputArray = {imgData};
-        Map<Integer, Object> outputMap = new HashMap<>();
-        outputMap.put(0, outputLocations);
-        outputMap.put(1, outputClasses);
-        outputMap.put(2, outputScores);
-        outputMap.put(3, numDetections);
+        inputArray[0] = inputData;
+        outputLocations.rewind();
+        outputClasses.rewind();
+        outputScores.rewind();
+        numDetections.rewind();
         Trace.endSection();
 
         // Run the inference call.
         Trace.beginSection("run");
+        long wallStart = FrameTimings.wallNow();
+        long cpuStart = FrameTimings.cpuNow();
         tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+        FrameTimings.record(FrameTimings.Stage.INFERENCE, wallStart, cpuStart);
         Trace.endSection();
 
         // Show the best detections.
         // after scaling them back to the input size.
-        List<RecognizedObject> recognitions = new ArrayList<>(NUM_DETECTIONS);
+        wallStart = FrameTimings.wallNow();
+        cpuStart = FrameTimings.cpuNow();
+        detections.clear();
         for (int i = 0; i < NUM_DETECTIONS; ++i) {
-            RectF detection =
-                    new RectF(
-                            outputLocations[0][i][1] * width,
-                            outputLocations[0][i][0] * width,
-                            outputLocations[0][i][3] * height,
-                            outputLocations[0][i][2] * height);
-
+            int box = i * 4 * 4;
             // SSD Mobilenet V1 Model assumes class 0 is background class
             // in label file and class labels start from 1 to number_of_classes+1,
             // while outputClasses correspond to class index from 0 to number_of_classes
             int labelOffset = 1;
-            cropToFrame.mapRect(detection);
-            RecognizedObject rc = new RecognizedObject("" + i,
-                    labels.get((int) outputClasses[0][i] + labelOffset),
-                    outputScores[0][i],
-                    detection);
-            recognitions.add(rc);
-            Log.d(TAG, "detectObjectsInImage: "+rc);
-
+            detections.add(
+                    outputLocations.getFloat(box + 4) * width,
+                    outputLocations.getFloat(box) * width,
+                    outputLocations.getFloat(box + 12) * height,
+                    outputLocations.getFloat(box + 8) * height,
+                    (int) outputClasses.getFloat(i * 4) + labelOffset,
+                    outputScores.getFloat(i * 4));
         }
+        detections.mapBoxes(cropToFrame);
+        FrameTimings.record(FrameTimings.Stage.POSTPROCESS, wallStart, cpuStart);
         Trace.endSection(); // "recognizeImage"
-        return recognitions;
+        return detections;
     }
 
 
-}
\ No newline at end of file
+}
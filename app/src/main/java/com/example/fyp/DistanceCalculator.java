@@ -3,6 +3,8 @@ package com.example.fyp;
 import android.graphics.RectF;
 import android.util.Log;
 
+import java.util.Arrays;
+
 
 public class DistanceCalculator {
     private static final String TAG = "DistanceCalculator";
@@ -15,8 +17,36 @@ public class DistanceCalculator {
 
     private static final float FOCAL_LENGTH = 950f;
 
+    // per track smoothing of the distance, keyed by track id modulo HISTORY_SIZE
+    private static final int HISTORY_SIZE = 32;
+    private static final float SMOOTHING = 0.3f;
+    private final int[] historyIds = new int[HISTORY_SIZE];
+    private final float[] historyDistances = new float[HISTORY_SIZE];
+
     private float distance;
-    public DistanceCalculator(){ }
+    public DistanceCalculator(){
+        Arrays.fill(historyIds, -1);
+    }
+
+    /**
+     * Same as {@link #calculateDistance(RectF, String)}, but smoothed over the history of the
+     * tracked object so the reading does not jump with every box jitter.
+     * @param trackId persistent id of the object, or -1 for no smoothing
+     */
+    public float calculateDistance(RectF location, String label, int trackId){
+        float raw = calculateDistance(location, label);
+        if (trackId < 0) return raw;
+
+        int slot = trackId % HISTORY_SIZE;
+        if (historyIds[slot] != trackId) {
+            historyIds[slot] = trackId;
+            historyDistances[slot] = raw;
+        } else {
+            historyDistances[slot] += SMOOTHING * (raw - historyDistances[slot]);
+        }
+        distance = historyDistances[slot];
+        return distance;
+    }
 
     public float calculateDistance(RectF location, String label){
         float perceived_width = location.width();
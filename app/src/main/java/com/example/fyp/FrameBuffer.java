@@ -0,0 +1,155 @@
+package com.example.fyp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pre-sized, direct RGB888 frame owned by a {@link FramePool}. Pixels are stored row-major,
+ * three bytes per pixel (R, G, B), which is exactly the input layout of the quantized
+ * detector models, so the buffer can be handed to the interpreter without repacking.
+ *
+ * Frames are reference counted so one frame can be fanned out to several consumers without
+ * copying: every consumer {@link #retain()}s it before taking it and {@link #release()}s it
+ * when done. The frame goes back to the pool when the last reference is released, and its
+ * pixels must be treated as read-only while more than one reference exists.
+ */
+public class FrameBuffer {
+    public static final int CHANNELS = 3;
+
+    private final FramePool pool;
+    private final int width;
+    private final int height;
+    private final ByteBuffer data;
+    private final AtomicInteger refCount = new AtomicInteger(0);
+    private volatile long timestampNs;
+    // part of the camera image the frame was converted from, as fractions of its size
+    private float sourceLeft = 0;
+    private float sourceTop = 0;
+    private float sourceRight = 1;
+    private float sourceBottom = 1;
+
+    FrameBuffer(FramePool pool, int width, int height) {
+        this.pool = pool;
+        this.width = width;
+        this.height = height;
+        this.data = ByteBuffer.allocateDirect(width * height * CHANNELS);
+        this.data.order(ByteOrder.nativeOrder());
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Capture time of the camera image the frame was converted from, in nanoseconds. */
+    public long getTimestamp() {
+        return timestampNs;
+    }
+
+    void setTimestamp(long timestampNs) {
+        this.timestampNs = timestampNs;
+    }
+
+    /**
+     * Left edge of the part of the camera image the frame shows, as a fraction of the image
+     * width. The source region is the whole image unless the frame was converted from a crop.
+     */
+    public float getSourceLeft() {
+        return sourceLeft;
+    }
+
+    public float getSourceTop() {
+        return sourceTop;
+    }
+
+    public float getSourceRight() {
+        return sourceRight;
+    }
+
+    public float getSourceBottom() {
+        return sourceBottom;
+    }
+
+    /** Set by the producer together with the pixels, before the frame is handed out. */
+    void setSourceRegion(float left, float top, float right, float bottom) {
+        sourceLeft = left;
+        sourceTop = top;
+        sourceRight = right;
+        sourceBottom = bottom;
+    }
+
+    /** Size of the frame in bytes. */
+    public int getByteSize() {
+        return data.capacity();
+    }
+
+    /**
+     * Returns a view of the pixel data positioned at 0. Every caller gets its own view so
+     * position/limit changes made by one consumer never affect another.
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer view = data.duplicate();
+        view.order(ByteOrder.nativeOrder());
+        view.rewind();
+        return view;
+    }
+
+    /** Buffer the converter writes into. Only the producer should use this. */
+    ByteBuffer getWritableBuffer() {
+        data.rewind();
+        return data;
+    }
+
+    /** Copies the packed RGB bytes into out, which must hold {@link #getByteSize()} bytes. */
+    public void getBytes(byte[] out) {
+        getBuffer().get(out, 0, data.capacity());
+    }
+
+    /**
+     * Unpacks the frame into ARGB_8888 ints, e.g. for {@link android.graphics.Bitmap#setPixels}.
+     * Only meant for the rare paths that still need a Bitmap.
+     */
+    public void getPixels(int[] out, byte[] rowScratch) {
+        ByteBuffer view = getBuffer();
+        int rowBytes = width * CHANNELS;
+        int p = 0;
+        for (int row = 0; row < height; row++) {
+            view.get(rowScratch, 0, rowBytes);
+            for (int b = 0; b < rowBytes; b += CHANNELS) {
+                out[p++] = 0xff000000
+                        | ((rowScratch[b] & 0xff) << 16)
+                        | ((rowScratch[b + 1] & 0xff) << 8)
+                        | (rowScratch[b + 2] & 0xff);
+            }
+        }
+    }
+
+    /** Called by the pool when the frame is handed out; the caller owns the first reference. */
+    void onAcquired() {
+        refCount.set(1);
+    }
+
+    /** Adds a reference for another consumer. Only valid while the caller holds a reference. */
+    public FrameBuffer retain() {
+        int count = refCount.getAndIncrement();
+        if (count <= 0) {
+            refCount.getAndDecrement();
+            throw new IllegalStateException("retain() on a released frame");
+        }
+        return this;
+    }
+
+    /** Drops one reference; the frame returns to its pool when none are left. */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            pool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("frame released more times than it was retained");
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.fyp;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size pool of reference counted {@link FrameBuffer}s of a single size. Frames are
+ * allocated lazily up to {@code capacity}; once all of them are in use {@link #acquire()}
+ * returns null and the caller is expected to drop the camera frame instead of allocating.
+ * A frame comes back to the pool when its last reference is released.
+ */
+public class FramePool {
+    private final int width;
+    private final int height;
+    private final int capacity;
+    private final AtomicInteger allocated = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<FrameBuffer> free = new ConcurrentLinkedQueue<>();
+
+    public FramePool(int width, int height, int capacity) {
+        this.width = width;
+        this.height = height;
+        this.capacity = capacity;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** @return a free frame holding one reference, or null if the whole pool is in use. */
+    public FrameBuffer acquire() {
+        FrameBuffer frame = free.poll();
+        while (frame == null) {
+            int count = allocated.get();
+            if (count >= capacity) return null;
+            if (allocated.compareAndSet(count, count + 1)) {
+                frame = new FrameBuffer(this, width, height);
+            }
+        }
+        frame.onAcquired();
+        return frame;
+    }
+
+    void recycle(FrameBuffer frame) {
+        free.offer(frame);
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.fyp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.gpu.GpuDelegate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Builds a TFLite {@link Interpreter} for a model with the requested acceleration and falls
+ * back step by step when that does not work on the device:
+ * GPU / NNAPI -> XNNPACK -> plain CPU. The backend that actually ended up running the model is
+ * reported by {@link #getActiveType()}.
+ */
+public class InferenceBackend {
+    private static final String TAG = "InferenceBackend";
+
+    public enum Type {
+        CPU, XNNPACK, NNAPI, GPU
+    }
+
+    /** What to ask for when creating an interpreter. */
+    public static class Options {
+        private static final Type DEFAULT_TYPE = Type.XNNPACK;
+        private static final int DEFAULT_NUM_THREADS =
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+        private final Type type;
+        private final int numThreads;
+
+        public Options(Type type, int numThreads) {
+            this.type = type;
+            this.numThreads = Math.max(1, numThreads);
+        }
+
+        public static Options defaults() {
+            return new Options(DEFAULT_TYPE, DEFAULT_NUM_THREADS);
+        }
+
+        /**
+         * Reads the options for a model from the inference settings. A value stored under
+         * {@code <key>_<model>} wins over the global {@code <key>}.
+         */
+        public static Options load(Context context, String model) {
+            SharedPreferences sp = context.getSharedPreferences(
+                    context.getString(R.string.sp_inferenceSettings), 0);
+            String backendKey = context.getString(R.string.sp_is_key_backend);
+            String threadsKey = context.getString(R.string.sp_is_key_numThreads);
+
+            String backend = sp.getString(backendKey + "_" + model,
+                    sp.getString(backendKey, DEFAULT_TYPE.name()));
+            int numThreads = sp.getInt(threadsKey + "_" + model,
+                    sp.getInt(threadsKey, DEFAULT_NUM_THREADS));
+
+            Type type;
+            try {
+                type = Type.valueOf(backend.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, String.format("load: unknown backend %s, using %s", backend, DEFAULT_TYPE));
+                type = DEFAULT_TYPE;
+            }
+            return new Options(type, numThreads);
+        }
+
+        /**
+         * Stores these options for one model in the inference settings, where
+         * {@link #load(Context, String)} finds them.
+         */
+        public void save(Context context, String model) {
+            SharedPreferences sp = context.getSharedPreferences(
+                    context.getString(R.string.sp_inferenceSettings), 0);
+            sp.edit()
+                    .putString(context.getString(R.string.sp_is_key_backend) + "_" + model, type.name())
+                    .putInt(context.getString(R.string.sp_is_key_numThreads) + "_" + model, numThreads)
+                    .apply();
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public int getNumThreads() {
+            return numThreads;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final Type activeType;
+    private final int numThreads;
+    private final GpuDelegate gpuDelegate;
+
+    private InferenceBackend(Interpreter interpreter, Type activeType, int numThreads,
+                             GpuDelegate gpuDelegate) {
+        this.interpreter = interpreter;
+        this.activeType = activeType;
+        this.numThreads = numThreads;
+        this.gpuDelegate = gpuDelegate;
+    }
+
+    /** Memory-maps a model file, e.g. one pushed to the device for a benchmark. */
+    public static ByteBuffer loadModelFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = inputStream.getChannel();
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Creates an interpreter for the model, trying the requested backend first.
+     * @param name used in logs only
+     */
+    public static InferenceBackend create(ByteBuffer model, String name, Options options) {
+        Type type = options.getType();
+        while (true) {
+            try {
+                InferenceBackend backend = tryCreate(model, type, options.getNumThreads());
+                Log.d(TAG, String.format("create: %s running on %s", name, backend));
+                return backend;
+            } catch (RuntimeException e) {
+                if (type == Type.CPU) throw e;
+                Type next = type == Type.XNNPACK ? Type.CPU : Type.XNNPACK;
+                Log.e(TAG, String.format("create: %s failed on %s, falling back to %s",
+                        name, type, next), e);
+                type = next;
+            }
+        }
+    }
+
+    private static InferenceBackend tryCreate(ByteBuffer model, Type type, int numThreads) {
+        Interpreter.Options tfOptions = new Interpreter.Options();
+        tfOptions.setNumThreads(numThreads);
+        GpuDelegate gpuDelegate = null;
+        switch (type) {
+            case GPU:
+                gpuDelegate = new GpuDelegate();
+                tfOptions.addDelegate(gpuDelegate);
+                break;
+            case NNAPI:
+                // NNAPI only became usable with the 1.1 HAL
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1)
+                    throw new UnsupportedOperationException("NNAPI needs API 27");
+                tfOptions.setUseNNAPI(true);
+                break;
+            case XNNPACK:
+                tfOptions.setUseXNNPACK(true);
+                break;
+            case CPU:
+                tfOptions.setUseXNNPACK(false);
+                break;
+        }
+        try {
+            return new InferenceBackend(new Interpreter(model, tfOptions), type, numThreads, gpuDelegate);
+        } catch (RuntimeException e) {
+            if (gpuDelegate != null) gpuDelegate.close();
+            throw e;
+        }
+    }
+
+    public Interpreter getInterpreter() {
+        return interpreter;
+    }
+
+    /** Backend the interpreter is actually running on, after any fallback. */
+    public Type getActiveType() {
+        return activeType;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void close() {
+        interpreter.close();
+        if (gpuDelegate != null) gpuDelegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s x%d", activeType, numThreads);
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.fyp;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.example.fyp.customutilities.FrameTimings;
+import com.example.fyp.customutilities.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Times the object detector, the sign detector and the sign classifier on every inference
+ * backend: plain CPU and XNNPACK with 1 thread up to one per core, and NNAPI and GPU where the
+ * device has them.
+ *
+ * A model file named like the model's asset in the directory is used instead of the asset, so
+ * other builds of a model can be compared without rebuilding the app. Every configuration gets
+ * fresh interpreters, {@link #WARMUP_RUNS} untimed runs and {@link #RUNS} timed ones on the
+ * given frame. The whole detect or classify call is timed; packing the input costs the same on
+ * every backend. A configuration whose backend could not be created and fell back to another
+ * one is reported but not timed. The report is appended to {@value #REPORT_FILE} in the
+ * directory, and the fastest configuration of every model by median is kept so it can be
+ * stored with {@link InferenceBackend.Options#save}.
+ */
+class InferenceBenchmark {
+    private static final String TAG = "InferenceBenchmark";
+
+    static final String REPORT_FILE = "inference_benchmark.log";
+    private static final int MAX_THREADS = 8;
+    private static final int WARMUP_RUNS = 5;
+    private static final int RUNS = 50;
+
+    private final File dir;
+    private final Bitmap frame;
+    private final Bitmap signCrop;
+
+    private final ByteBuffer objectModel;
+    private final ByteBuffer signModel;
+    private final ByteBuffer classifierModel;
+    private final String[] objectLabels;
+    private final String[] signLabels;
+    private final String[] classifierLabels;
+
+    // fastest configuration and its median in microseconds, per model
+    private final Map<String, InferenceBackend.Options> best = new LinkedHashMap<>();
+    private final Map<String, Long> bestMicros = new LinkedHashMap<>();
+
+    /**
+     * @param frame input of the detectors, {@link Detector#OBJ_DETECTOR_INPUT_SIZE} pixels
+     * square; it is scaled down for the classifier
+     */
+    InferenceBenchmark(AssetManager assets, File dir, Bitmap frame) throws IOException {
+        this.dir = dir;
+        this.frame = frame;
+        signCrop = Bitmap.createScaledBitmap(frame, SignDetector.SIGN_CLASSIFIER_INPUT_SIZE,
+                SignDetector.SIGN_CLASSIFIER_INPUT_SIZE, true);
+        objectModel = loadModel(assets, Detector.OBJ_DETECTOR_MODEL);
+        signModel = loadModel(assets, Detector.SIGN_DETECTOR_MODEL);
+        classifierModel = loadModel(assets, SignDetector.SIGN_CLASSIFIER_MODEL);
+        objectLabels = Detector.loadLabels(assets, Detector.getLabelFile(Detector.OBJ_DETECTOR_MODEL));
+        signLabels = Detector.loadLabels(assets, Detector.getLabelFile(Detector.SIGN_DETECTOR_MODEL));
+        classifierLabels = Detector.loadLabels(assets, SignDetector.SIGN_CLASSIFIER_LABEL);
+    }
+
+    private ByteBuffer loadModel(AssetManager assets, String model) throws IOException {
+        File file = new File(dir, model);
+        if (!file.exists()) return Detector.loadModelFile(assets, model);
+        Log.d(TAG, "loadModel: using " + file);
+        return InferenceBackend.loadModelFile(file);
+    }
+
+    /** The configurations to time, the CPU ones first. */
+    static List<InferenceBackend.Options> getConfigurations() {
+        List<InferenceBackend.Options> configurations = new ArrayList<>();
+        int maxThreads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        for (InferenceBackend.Type type : new InferenceBackend.Type[]{
+                InferenceBackend.Type.CPU, InferenceBackend.Type.XNNPACK}) {
+            for (int threads = 1; threads <= maxThreads; threads++) {
+                configurations.add(new InferenceBackend.Options(type, threads));
+            }
+        }
+        // the delegates run on their own hardware, the threads only matter for fallback ops
+        configurations.add(new InferenceBackend.Options(InferenceBackend.Type.NNAPI, maxThreads));
+        configurations.add(new InferenceBackend.Options(InferenceBackend.Type.GPU, maxThreads));
+        return configurations;
+    }
+
+    /** Times every configuration, appends the report to the directory and returns it. */
+    String run() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# ")
+                .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date()))
+                .append(String.format(Locale.US, ": %d cores, %d runs per configuration\n",
+                        Runtime.getRuntime().availableProcessors(), RUNS));
+        best.clear();
+        bestMicros.clear();
+        for (InferenceBackend.Options options : getConfigurations()) {
+            try {
+                runObjectDetector(options, sb);
+                runSignModels(options, sb);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "run: " + options.getType() + " failed", e);
+                sb.append(String.format(Locale.US, "%s x%d: failed, %s\n",
+                        options.getType(), options.getNumThreads(), e));
+            }
+        }
+        sb.append("best:");
+        for (Map.Entry<String, InferenceBackend.Options> entry : best.entrySet()) {
+            InferenceBackend.Options options = entry.getValue();
+            sb.append(String.format(Locale.US, " %s on %s x%d, p50 %.2f ms;", entry.getKey(),
+                    options.getType(), options.getNumThreads(),
+                    bestMicros.get(entry.getKey()) / 1000f));
+        }
+        sb.append('\n');
+        String report = sb.toString();
+        Log.d(TAG, "run:\n" + report);
+
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(new File(dir, REPORT_FILE), true);
+            writer.write(report);
+        } catch (IOException e) {
+            Log.e(TAG, "run: could not write the report", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return report;
+    }
+
+    /** Fastest configuration of every model in the last run, keyed by the model's asset name. */
+    Map<String, InferenceBackend.Options> getBest() {
+        return best;
+    }
+
+    private void runObjectDetector(InferenceBackend.Options options, StringBuilder sb) {
+        final Detector detector = Detector.create(objectModel, Detector.OBJ_DETECTOR_MODEL,
+                objectLabels, frame.getWidth(), frame.getHeight(), options);
+        try {
+            time(Detector.OBJ_DETECTOR_MODEL, options, detector.getBackend(), new Runnable() {
+                @Override
+                public void run() {
+                    detector.detect(frame);
+                }
+            }, sb);
+        } finally {
+            detector.close();
+        }
+    }
+
+    private void runSignModels(InferenceBackend.Options options, StringBuilder sb) {
+        final Detector detector = Detector.create(signModel, Detector.SIGN_DETECTOR_MODEL,
+                signLabels, frame.getWidth(), frame.getHeight(), options);
+        final SignDetector signDetector;
+        try {
+            time(Detector.SIGN_DETECTOR_MODEL, options, detector.getBackend(), new Runnable() {
+                @Override
+                public void run() {
+                    detector.detect(frame);
+                }
+            }, sb);
+            signDetector = SignDetector.create(detector, classifierModel, classifierLabels,
+                    frame.getWidth(), frame.getHeight(), options);
+        } catch (RuntimeException e) {
+            detector.close();
+            throw e;
+        }
+        try {
+            time(SignDetector.SIGN_CLASSIFIER_MODEL, options, signDetector.getClassifierBackend(),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            signDetector.runOnlyClassification(signCrop, false);
+                        }
+                    }, sb);
+        } finally {
+            signDetector.close();
+        }
+    }
+
+    /** Times task, reports it and keeps it if it is the fastest for the model so far. */
+    private void time(String model, InferenceBackend.Options options, InferenceBackend backend,
+                      Runnable task, StringBuilder sb) {
+        String name = String.format(Locale.US, "%-26s %-7s x%d", model,
+                options.getType(), options.getNumThreads());
+        if (backend.getActiveType() != options.getType()) {
+            sb.append(name).append(": not available, fell back to ")
+                    .append(backend.getActiveType()).append('\n');
+            return;
+        }
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            task.run();
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < RUNS; i++) {
+            long start = FrameTimings.wallNow();
+            task.run();
+            histogram.recordNanos(FrameTimings.wallNow() - start);
+        }
+        long median = histogram.getPercentileMicros(50);
+        sb.append(String.format(Locale.US, "%s: p50/p95/max %.2f/%.2f/%.2f ms\n", name,
+                median / 1000f,
+                histogram.getPercentileMicros(95) / 1000f,
+                histogram.getMaxMicros() / 1000f));
+        Long fastest = bestMicros.get(model);
+        if (fastest == null || median < fastest) {
+            best.put(model, options);
+            bestMicros.put(model, median);
+        }
+    }
+}
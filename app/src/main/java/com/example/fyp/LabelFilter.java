@@ -0,0 +1,40 @@
+package com.example.fyp;
+
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+/**
+ * Tells whether a detection's label matches a regular expression, without running the
+ * expression per detection.
+ *
+ * The expression is run once over every label of a model's label table and the answers are
+ * kept in a bit set by class index, so checking a detection is a single bit lookup. The table
+ * is taken from the detections themselves and the bits are recomputed when a different table
+ * shows up. Not thread-safe, meant for the UI thread.
+ */
+class LabelFilter {
+
+    private final Pattern pattern;
+    private final BitSet matches = new BitSet();
+    private String[] labels = null;
+
+    LabelFilter(String regex) {
+        this.pattern = Pattern.compile(regex);
+    }
+
+    /** Whether the whole label of detection i matches, like {@link String#matches(String)}. */
+    boolean accepts(Detections detections, int i) {
+        String[] table = detections.getLabels();
+        if (table != labels) {
+            matches.clear();
+            if (table != null) {
+                for (int c = 0; c < table.length; c++) {
+                    if (pattern.matcher(table[c]).matches()) matches.set(c);
+                }
+            }
+            labels = table;
+        }
+        int c = detections.getClassIndex(i);
+        return c >= 0 && matches.get(c);
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.fyp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.PointF;
+import android.util.Log;
+
+import com.example.fyp.customutilities.FrameTimings;
+import com.example.fyp.customutilities.LatencyHistogram;
+import com.example.fyp.customutilities.SharedValues;
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replays a directory of recorded camera frames through {@link LaneDetectorAdvance} and reports
+ * throughput, per-stage timing and, where labels are given, how far the detected lanes are from
+ * where they really are.
+ *
+ * The directory holds the frames as .jpg/.png files, replayed in name order as one drive, and
+ * optionally:
+ * <ul>
+ *     <li>{@value #ROI_FILE}: the region of interest as stored by {@link LanePointsActivity}, a
+ *     JSON array of four points in crop size coordinates. Without it the region passed to the
+ *     constructor is used.</li>
+ *     <li>{@value #LABELS_FILE}: lines of {@code frame name,y,left x,right x} giving where the
+ *     lane lines cross row y of the frame, in frame pixels. An empty x is not scored, and a
+ *     labelled lane counts as missed on frames where the detector had no confident fit for
+ *     it.</li>
+ * </ul>
+ * "Lanes found" counts the frames where the detector tracked both lanes, the ones the lane
+ * departure warning gets to see.
+ * Every input width is a separate run with a fresh detector, and the frames are made the same
+ * way the camera activities make them for {@link LaneInputResolution}. Decoding and converting
+ * the frames is not timed, only processFrame. The report is appended to {@value #REPORT_FILE}
+ * in the directory.
+ *
+ * Uses the process wide {@link FrameTimings}, so it must not run while a camera activity is
+ * processing frames.
+ */
+class LaneBenchmark {
+    private static final String TAG = "LaneBenchmark";
+
+    static final String ROI_FILE = "roi.json";
+    static final String LABELS_FILE = "labels.csv";
+    static final String REPORT_FILE = "lane_benchmark.log";
+    // frame interval the timestamps are made up with
+    private static final long FRAME_INTERVAL_NS = 33333333;
+
+    private final File dir;
+    private final PointF[] roi;
+    private final File[] frameFiles;
+    private final Map<String, float[]> labels = new HashMap<>();
+
+    // scratch for converting a Bitmap into a frame
+    private int[] argb = new int[0];
+    private byte[] rgb = new byte[0];
+
+    /**
+     * @param defaultRoi region of interest used when the directory has no {@value #ROI_FILE}
+     */
+    LaneBenchmark(File dir, PointF[] defaultRoi) throws IOException {
+        this.dir = dir;
+        File roiFile = new File(dir, ROI_FILE);
+        roi = roiFile.exists() ? readRoi(roiFile) : defaultRoi;
+        if (roi == null) throw new IOException("no region of interest for " + dir);
+
+        File[] files = dir.listFiles();
+        List<File> frames = new ArrayList<>();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName().toLowerCase(Locale.US);
+                if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")) {
+                    frames.add(f);
+                }
+            }
+        }
+        frameFiles = frames.toArray(new File[0]);
+        Arrays.sort(frameFiles);
+        if (frameFiles.length == 0) throw new IOException("no frames in " + dir);
+
+        File labelFile = new File(dir, LABELS_FILE);
+        if (labelFile.exists()) readLabels(labelFile);
+        Log.d(TAG, String.format(Locale.US, "LaneBenchmark: %d frames, %d labels",
+                frameFiles.length, labels.size()));
+    }
+
+    private static PointF[] readRoi(File file) throws IOException {
+        FileReader reader = new FileReader(file);
+        try {
+            return new Gson().fromJson(reader, PointF[].class);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readLabels(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split(",", -1);
+                if (parts.length < 4) continue;
+                try {
+                    labels.put(parts[0].trim(), new float[]{
+                            Float.parseFloat(parts[1].trim()),
+                            parseOptional(parts[2]),
+                            parseOptional(parts[3])});
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "readLabels: skipping " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static float parseOptional(String s) {
+        s = s.trim();
+        return s.isEmpty() ? Float.NaN : Float.parseFloat(s);
+    }
+
+    /** Runs the replay once per width, appends the report to the directory and returns it. */
+    String run(int[] widths) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# ")
+                .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date()))
+                .append(' ').append(dir.getName())
+                .append(String.format(Locale.US, ": %d frames, %d labels\n", frameFiles.length, labels.size()));
+        for (int width : widths) {
+            sb.append(run(width)).append('\n');
+        }
+        String report = sb.toString();
+        Log.d(TAG, "run:\n" + report);
+
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(new File(dir, REPORT_FILE), true);
+            writer.write(report);
+        } catch (IOException e) {
+            Log.e(TAG, "run: could not write the report", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return report;
+    }
+
+    private String run(int width) {
+        FrameTimings.reset();
+        LatencyHistogram total = new LatencyHistogram();
+        LaneInputResolution input = new LaneInputResolution(width, Float.MAX_VALUE);
+        input.setFixedWidth(width);
+        input.setRegion(roi, SharedValues.CROP_SIZE.getWidth(), SharedValues.CROP_SIZE.getHeight());
+
+        LaneDetectorAdvance detector = null;
+        int processed = 0;
+        int lanesFound = 0;
+        double[] errorSum = new double[2];
+        int[] scored = new int[2];
+        int[] missed = new int[2];
+        long totalNanos = 0;
+        int frameWidth = 0;
+        int frameHeight = 0;
+
+        for (File file : frameFiles) {
+            Bitmap bmp = BitmapFactory.decodeFile(file.getAbsolutePath());
+            if (bmp == null) {
+                Log.w(TAG, "run: could not decode " + file);
+                continue;
+            }
+            if (detector == null) {
+                detector = new LaneDetectorAdvance(bmp.getWidth(), bmp.getHeight(),
+                        SharedValues.CROP_SIZE.getWidth(), SharedValues.CROP_SIZE.getHeight());
+                detector.setPtsResized(roi);
+                detector.setCarMidpoint(carMidpoint(bmp.getWidth()));
+            }
+            FrameBuffer frame = input.acquire(bmp.getWidth(), bmp.getHeight());
+            fill(frame, bmp, input.getTop(), input.getBottom());
+            frame.setTimestamp(processed * FRAME_INTERVAL_NS);
+            frameWidth = frame.getWidth();
+            frameHeight = frame.getHeight();
+            bmp.recycle();
+
+            long start = FrameTimings.wallNow();
+            ArrayList<PointF>[] lanes = detector.processFrame(frame, false);
+            long nanos = FrameTimings.wallNow() - start;
+            frame.release();
+            total.recordNanos(nanos);
+            totalNanos += nanos;
+            processed++;
+            if (detector.hasLanes()) lanesFound++;
+
+            float[] label = labels.get(file.getName());
+            if (label == null) continue;
+            for (int side = LaneTracker.LEFT; side <= LaneTracker.RIGHT; side++) {
+                float expected = label[1 + side];
+                if (Float.isNaN(expected)) continue;
+                // the detector always returns points, they only mean something with a fit
+                float x = detector.hasLane(side) ? xAt(lanes[side], label[0]) : Float.NaN;
+                if (Float.isNaN(x)) {
+                    missed[side]++;
+                } else {
+                    errorSum[side] += Math.abs(x - expected);
+                    scored[side]++;
+                }
+            }
+        }
+        if (detector != null) detector.release();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "width %d (%dx%d): %d frames, %.1f fps, p50/p95/max %.2f/%.2f/%.2f ms, lanes found %.0f%%\n",
+                width, frameWidth, frameHeight, processed,
+                totalNanos > 0 ? processed * 1e9 / totalNanos : 0,
+                total.getPercentileMicros(50) / 1000f,
+                total.getPercentileMicros(95) / 1000f,
+                total.getMaxMicros() / 1000f,
+                processed > 0 ? 100f * lanesFound / processed : 0));
+        sb.append("  ").append(FrameTimings.getSummary(FrameTimings.Stage.LANE_EDGES)).append('\n');
+        sb.append("  ").append(FrameTimings.getSummary(FrameTimings.Stage.LANE_WARP)).append('\n');
+        sb.append("  ").append(FrameTimings.getSummary(FrameTimings.Stage.LANE_SEARCH)).append('\n');
+        if (!labels.isEmpty()) {
+            sb.append(String.format(Locale.US,
+                    "  error left %.1f px (n=%d, missed %d), right %.1f px (n=%d, missed %d)\n",
+                    scored[0] > 0 ? errorSum[0] / scored[0] : 0, scored[0], missed[0],
+                    scored[1] > 0 ? errorSum[1] / scored[1] : 0, scored[1], missed[1]));
+        }
+        return sb.toString();
+    }
+
+    /** Middle of the bottom edge of the roi, in frame pixels. */
+    private float carMidpoint(int frameWidth) {
+        PointF[] sorted = roi.clone();
+        Arrays.sort(sorted, new Comparator<PointF>() {
+            @Override
+            public int compare(PointF a, PointF b) {
+                return Float.compare(b.y, a.y);
+            }
+        });
+        return (sorted[0].x + sorted[1].x) / 2 * frameWidth / SharedValues.CROP_SIZE.getWidth();
+    }
+
+    /**
+     * Cuts the rows between top and bottom out of bmp and scales them into frame, nearest
+     * neighbour like the camera conversion.
+     */
+    private void fill(FrameBuffer frame, Bitmap bmp, float top, float bottom) {
+        int cropTop = Math.round(top * bmp.getHeight());
+        int cropHeight = Math.max(1, Math.round(bottom * bmp.getHeight()) - cropTop);
+        Bitmap crop = Bitmap.createBitmap(bmp, 0, cropTop, bmp.getWidth(), cropHeight);
+        Bitmap scaled = Bitmap.createScaledBitmap(crop, frame.getWidth(), frame.getHeight(), false);
+
+        int n = frame.getWidth() * frame.getHeight();
+        if (argb.length < n) {
+            argb = new int[n];
+            rgb = new byte[n * FrameBuffer.CHANNELS];
+        }
+        scaled.getPixels(argb, 0, frame.getWidth(), 0, 0, frame.getWidth(), frame.getHeight());
+        int o = 0;
+        for (int i = 0; i < n; i++) {
+            int c = argb[i];
+            rgb[o++] = (byte) (c >> 16);
+            rgb[o++] = (byte) (c >> 8);
+            rgb[o++] = (byte) c;
+        }
+        ByteBuffer out = frame.getWritableBuffer();
+        out.put(rgb, 0, o);
+        out.rewind();
+        frame.setSourceRegion(0, cropTop / (float) bmp.getHeight(),
+                1, (cropTop + cropHeight) / (float) bmp.getHeight());
+        if (scaled != crop) scaled.recycle();
+        if (crop != bmp) crop.recycle();
+    }
+
+    /** x of the lane at row y, interpolated between its points, NaN if y is not covered. */
+    private static float xAt(List<PointF> lane, float y) {
+        for (int i = 1; i < lane.size(); i++) {
+            PointF a = lane.get(i - 1);
+            PointF b = lane.get(i);
+            if ((a.y - y) * (b.y - y) > 0) continue;
+            if (a.y == b.y) return (a.x + b.x) / 2;
+            return a.x + (b.x - a.x) * (y - a.y) / (b.y - a.y);
+        }
+        return Float.NaN;
+    }
+}
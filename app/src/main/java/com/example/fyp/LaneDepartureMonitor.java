@@ -0,0 +1,158 @@
+package com.example.fyp;
+
+import android.util.Log;
+
+/**
+ * Decides from the lane detector's offset over time whether the car is leaving its lane.
+ *
+ * The offset from the lane centre (metres, positive to the right) is smoothed and
+ * differentiated into a lateral speed, which gives the time until the car's side reaches the
+ * lane line it is drifting towards. A departure starts when the car is past
+ * {@link #ENTER_OFFSET}, or is drifting out and will cross within {@link #MAX_TIME_TO_CROSSING}
+ * seconds, for {@link #ENTER_FRAMES} frames in a row; it only ends once the car is back within
+ * {@link #EXIT_OFFSET} and no longer heading for the line within
+ * {@link #EXIT_TIME_TO_CROSSING} seconds. The gap between the enter and exit thresholds keeps a
+ * car driving close to a line from flickering in and out of the warning.
+ *
+ * Every departure is logged, and reported to the {@link Listener} at most once per
+ * {@link #MIN_ALERT_INTERVAL_MS} so the voice warning is not repeated over and over. Below
+ * {@link #MIN_SPEED_KMH}, when the car's speed is known from OBD, nothing is reported at all:
+ * lane keeping at walking pace in town is not a departure. Frames without both lanes are
+ * skipped; after {@link #LOST_TIMEOUT_MS} without lanes the state is reset.
+ *
+ * {@link #update(float, boolean, long)} is meant to be called on the lane worker, the state
+ * can be read from any thread.
+ */
+class LaneDepartureMonitor {
+    private static final String TAG = "LaneDepartureMonitor";
+
+    static final int NONE = 0;
+    static final int LEFT = -1;
+    static final int RIGHT = 1;
+
+    /** Gets a departure once when it starts. Called on the thread calling update. */
+    interface Listener {
+        void onLaneDeparture(int side, float offset, float timeToCrossing);
+    }
+
+    private static final float LANE_WIDTH = 3.7f;          // same as LaneDetectorAdvance
+    private static final float CAR_HALF_WIDTH = 0.9f;
+    // offset from the lane centre (m) that starts and ends a departure
+    private static final float ENTER_OFFSET = 1.5f;
+    private static final float EXIT_OFFSET = 1.0f;
+    // crossing times (s) below this start a departure, if the car is drifting out
+    private static final float MAX_TIME_TO_CROSSING = 1.0f;
+    private static final float EXIT_TIME_TO_CROSSING = 2.0f;
+    // lateral speeds (m/s) below this are noise, not drifting
+    private static final float MIN_LATERAL_SPEED = 0.1f;
+    private static final int ENTER_FRAMES = 3;
+    private static final long MIN_ALERT_INTERVAL_MS = 5000;
+    private static final long LOST_TIMEOUT_MS = 1000;
+    private static final float MIN_SPEED_KMH = 40;
+    // weight of a new frame in the smoothed offset and lateral speed
+    private static final float OFFSET_SMOOTHING = 0.5f;
+    private static final float SPEED_SMOOTHING = 0.3f;
+
+    private final Listener listener;
+
+    // lane worker only
+    private float offset = 0;
+    private float lateralSpeed = 0;
+    private long lastTimestampMs = -1;
+    private int enterFrames = 0;
+    private long lastAlertMs = Long.MIN_VALUE / 2;
+
+    private volatile int departure = NONE;
+    private volatile float timeToCrossing = Float.POSITIVE_INFINITY;
+    // km/h, negative while unknown
+    private volatile float carSpeed = -1;
+
+    LaneDepartureMonitor(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Sets the car's speed in km/h, or a negative value when it is not known. */
+    void setCarSpeed(float kmh) {
+        carSpeed = kmh;
+    }
+
+    /** {@link #LEFT}, {@link #RIGHT} or {@link #NONE}. */
+    int getDeparture() {
+        return departure;
+    }
+
+    boolean isDeparting() {
+        return departure != NONE;
+    }
+
+    /** Estimated seconds until the car crosses a lane line, infinite if it is not drifting. */
+    float getTimeToCrossing() {
+        return timeToCrossing;
+    }
+
+    /**
+     * Feeds the result of one lane frame.
+     * @param offCenter offset of the car from the lane centre in metres, positive to the right
+     * @param lanesFound whether both lanes were found, the offset is meaningless otherwise
+     * @param timestampMs capture time of the frame
+     */
+    void update(float offCenter, boolean lanesFound, long timestampMs) {
+        if (!lanesFound) {
+            if (lastTimestampMs >= 0 && timestampMs - lastTimestampMs > LOST_TIMEOUT_MS) reset();
+            return;
+        }
+        if (lastTimestampMs < 0 || timestampMs - lastTimestampMs > LOST_TIMEOUT_MS) {
+            offset = offCenter;
+            lateralSpeed = 0;
+        } else if (timestampMs > lastTimestampMs) {
+            float dt = (timestampMs - lastTimestampMs) / 1000f;
+            float previous = offset;
+            offset += OFFSET_SMOOTHING * (offCenter - offset);
+            lateralSpeed += SPEED_SMOOTHING * ((offset - previous) / dt - lateralSpeed);
+        }
+        lastTimestampMs = timestampMs;
+
+        // time until the side of the car reaches the line it is drifting towards
+        float ttc = Float.POSITIVE_INFINITY;
+        if (Math.abs(lateralSpeed) > MIN_LATERAL_SPEED) {
+            float toLine = Math.max(0, LANE_WIDTH / 2 - CAR_HALF_WIDTH - Math.abs(offset));
+            if (Math.signum(lateralSpeed) == Math.signum(offset)) ttc = toLine / Math.abs(lateralSpeed);
+        }
+        timeToCrossing = ttc;
+
+        int side = offset > 0 ? RIGHT : LEFT;
+        if (departure == NONE) {
+            boolean out = Math.abs(offset) > ENTER_OFFSET ||
+                    (ttc < MAX_TIME_TO_CROSSING && Math.abs(offset) > EXIT_OFFSET / 2);
+            enterFrames = out ? enterFrames + 1 : 0;
+            if (enterFrames >= ENTER_FRAMES) {
+                departure = side;
+                enterFrames = 0;
+                onDeparture(side, ttc, timestampMs);
+            }
+        } else if (Math.abs(offset) < EXIT_OFFSET && ttc > EXIT_TIME_TO_CROSSING) {
+            Log.d(TAG, String.format("update: back in lane, offset = %.2f", offset));
+            departure = NONE;
+        }
+    }
+
+    private void onDeparture(int side, float ttc, long timestampMs) {
+        Log.i(TAG, String.format("onDeparture: %s, offset = %.2f m, lateral speed = %.2f m/s, " +
+                        "crossing in %.1f s, car speed = %.0f km/h",
+                side == LEFT ? "left" : "right", offset, lateralSpeed, ttc, carSpeed));
+        float speed = carSpeed;
+        if (speed >= 0 && speed < MIN_SPEED_KMH) return;
+        if (timestampMs - lastAlertMs < MIN_ALERT_INTERVAL_MS) return;
+        lastAlertMs = timestampMs;
+        if (listener != null) listener.onLaneDeparture(side, offset, ttc);
+    }
+
+    void reset() {
+        departure = NONE;
+        timeToCrossing = Float.POSITIVE_INFINITY;
+        offset = 0;
+        lateralSpeed = 0;
+        enterFrames = 0;
+        lastTimestampMs = -1;
+    }
+}
@@ -51,6 +51,12 @@ public class LaneDetector {
     private Mat image;
     private Matrix cropToFrame;
 
+    // bounding box of the roi shape in the image and the shape as a mask of just that box,
+    // built once per image size
+    private Rect roiRect;
+    private Mat roiMask;
+    private Size roiSize;
+
     public LaneDetector(int srcWidth, int srcHeight, int cropWidth, int cropHeight){
         this.image  = new Mat();
         cropToFrame = ImageUtilities.getTransformationMatrix(
@@ -86,6 +92,7 @@ public class LaneDetector {
         return gary;
     }
 
+    /** Edges inside the roi shape only, see {@link #edgeDetection(Mat)}. */
     public Bitmap getEdge(){
         Mat edge_m = edgeDetection(convertToGrayScale());
         Bitmap edge = Bitmap.createBitmap(this.image.width(), this.image.height(), Bitmap.Config.ARGB_8888);
@@ -97,7 +104,6 @@ public class LaneDetector {
     public Bitmap getRoi() {
 //        roiSeperation();
         Mat roi_m = edgeDetection(convertToGrayScale());
-        roiSeperation2(roi_m);
         Bitmap roi = Bitmap.createBitmap(this.image.width(), this.image.height(), Bitmap.Config.ARGB_8888);
         Utils.matToBitmap(roi_m,roi);
         return roi;
@@ -111,7 +117,6 @@ public class LaneDetector {
         }
 
         Mat edge_m = edgeDetection(convertToGrayScale());
-        roiSeperation2(edge_m);
 //        Mat result_m = drawLines(edge_m);
         Mat result_m = drawLinesOnImage(edge_m);
 
@@ -125,7 +130,6 @@ public class LaneDetector {
         Utils.bitmapToMat(bmp,this.image);
 
         Mat edge_m = edgeDetection(convertToGrayScale());
-        roiSeperation2(edge_m);
 //        Mat result_m = drawLines(edge_m);
         float[][] points = drawLinesOnImageAndRetrunPoints(edge_m);
         if(!this.image.empty()) this.image.release();
@@ -149,11 +153,24 @@ public class LaneDetector {
         this.image.submat(new Rect(0, 0, this.image.width(), this.image.height()/2)).setTo(new Scalar(0));
     }
 
+    /** The roi shape as a mask of the full image, for display. */
     private Mat maskShape(){
-        Mat mask = new Mat();
-        mask.create(new Size(this.image.width(),this.image.height()),CvType.CV_8UC1);
-        mask.setTo(new Scalar(0));
+        updateRoi();
+        Mat mask = Mat.zeros(this.image.rows(),this.image.cols(),CvType.CV_8UC1);
+        Mat box = mask.submat(roiRect);
+        roiMask.copyTo(box);
+        box.release();
+        return mask;
+    }
 
+    /**
+     * Builds roiRect and roiMask for the current image size, unless they are already there.
+     * The shape only depends on pts_resized, so this is done once instead of every frame.
+     */
+    private void updateRoi(){
+        int width = this.image.cols();
+        int height = this.image.rows();
+        if (roiMask != null && roiSize.width == width && roiSize.height == height) return;
 
         Point p1 = new Point(pts_resized[0],pts_resized[1]);
         Point p2 = new Point(pts_resized[2],pts_resized[3]);
@@ -161,23 +178,30 @@ public class LaneDetector {
         Point p3 = new Point(pts_resized[4],pts_resized[5]);
         Point p4 = new Point(pts_resized[6],pts_resized[7]);
 
-// test
-
-//        Point p1 = new Point(100,720);
-//        Point p2 = new Point(600,420);
-//
-//        Point p3 = new Point(700,420);
-//        Point p4 = new Point(1280,720);
-
         MatOfPoint shape = new MatOfPoint();
         shape.fromArray(p1,p2,p3,p4);
-        Imgproc.fillConvexPoly(mask,shape,new Scalar(255));
-        return mask;
-    }
-
-    private void roiSeperation2(Mat edge){
-        Mat mask = maskShape();
-        bitwise_and(edge,mask,edge);
+        Rect box = Imgproc.boundingRect(shape);
+        int left = Math.max(box.x, 0);
+        int top = Math.max(box.y, 0);
+        int right = Math.min(box.x + box.width, width);
+        int bottom = Math.min(box.y + box.height, height);
+        if (right <= left || bottom <= top) {
+            left = 0;
+            top = 0;
+            right = width;
+            bottom = height;
+        }
+        roiRect = new Rect(left, top, right - left, bottom - top);
+
+        // the shape in box coordinates
+        shape.fromArray(
+                new Point(p1.x - left, p1.y - top), new Point(p2.x - left, p2.y - top),
+                new Point(p3.x - left, p3.y - top), new Point(p4.x - left, p4.y - top));
+        if (roiMask != null) roiMask.release();
+        roiMask = Mat.zeros(roiRect.height, roiRect.width, CvType.CV_8UC1);
+        Imgproc.fillConvexPoly(roiMask,shape,new Scalar(255));
+        shape.release();
+        roiSize = new Size(width, height);
     }
 
     private Mat convertToGrayScale(){
@@ -187,9 +211,9 @@ public class LaneDetector {
     }
 
 
-    private Mat isolateColor(Mat gray){
+    private Mat isolateColor(Mat gray, Mat color){
         Mat hsv = new Mat();
-        Imgproc.cvtColor(this.image,hsv,Imgproc.COLOR_BGR2HSV);
+        Imgproc.cvtColor(color,hsv,Imgproc.COLOR_BGR2HSV);
 
         Mat mask_w = new Mat();
         Mat mask_y = new Mat();
@@ -210,9 +234,25 @@ public class LaneDetector {
         Imgproc.Canny(edge,edge,50,150);
     }
 
+    /**
+     * Edges of the white and yellow parts of the image inside the roi shape. Colour isolation,
+     * blur and Canny only run on the bounding box of the shape, the result is masked with the
+     * cached shape and everything outside the box is black.
+     */
     private Mat edgeDetection(Mat gray){
-        Mat edge = isolateColor(gray);
-        cannay(edge);
+        updateRoi();
+        Mat grayBox = gray.submat(roiRect);
+        Mat colorBox = this.image.submat(roiRect);
+        Mat edgeBox = isolateColor(grayBox, colorBox);
+        cannay(edgeBox);
+
+        Mat edge = Mat.zeros(gray.rows(),gray.cols(),CvType.CV_8UC1);
+        Mat box = edge.submat(roiRect);
+        bitwise_and(edgeBox,roiMask,box);
+        box.release();
+        grayBox.release();
+        colorBox.release();
+        edgeBox.release();
         return edge;
     }
 
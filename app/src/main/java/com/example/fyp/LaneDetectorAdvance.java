@@ -6,19 +6,19 @@ import android.graphics.Matrix;
 import android.graphics.PointF;
 import android.util.Log;
 
+import com.example.fyp.customutilities.FrameTimings;
 import com.example.fyp.customutilities.ImageUtilities;
 import com.example.fyp.customutilities.SharedPreferencesUtils;
 
-import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
-import org.apache.commons.math3.fitting.PolynomialCurveFitter;
-import org.apache.commons.math3.fitting.WeightedObservedPoints;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.android.Utils;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
 import org.opencv.core.Point3;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.core.TermCriteria;
@@ -36,6 +36,12 @@ public class LaneDetectorAdvance {
     private static final String TAG = "LaneDetectorAdvance";
     private final Scalar lower_yellow = new Scalar(20,100,100);
     private final Scalar upper_yellow = new Scalar(30,255,255);
+    private final Scalar lower_white = new Scalar(190);
+    private final Scalar upper_white = new Scalar(255);
+    private final Size blur_size = new Size(5,5);
+    private final Scalar black = new Scalar(0);
+    // geometry version the black border of the edge image was cleared for
+    private int edgesVersion = -1;
     private PointF[] pts_resized ; //roi
     private Matrix cropToFrame;
 
@@ -47,20 +53,42 @@ public class LaneDetectorAdvance {
     private Bitmap edgesBmp;
     private Bitmap warperBmp;
     private Bitmap markedBmp;
-    private Mat M_inv;
     private Mat image;
+    private final LaneGeometry geometry = new LaneGeometry();
+    private final LaneWorkspace workspace = new LaneWorkspace();
+    private boolean calibrationLoaded = false;
 
     private float carMidpoint = 0;
     private float off_center;
+    private boolean lanesFound = false;
 
     private static SharedPreferences config;
     private static String mtx_in_sp;
     private static String dist_in_sp;
     private static String has_cal_mtx_dist;
 
-    private ArrayList<PointF>[] lft_point_mem = new ArrayList[2];
-    private ArrayList<PointF>[] rht_point_mem = new ArrayList[2];
-    private int frameCounter;
+    private final LaneTracker laneTracker = new LaneTracker();
+
+    // bird's eye view pixels, copied out of the Mat once per frame for the window search
+    private byte[] warpedPixels = new byte[0];
+    private int[] laneHistogram = new int[0];
+    // results of the last scanWindow call
+    private int windowCount;
+    private long windowSumX;
+
+    // the bird's eye view is searched in bands of BAND_ROWS rows from the bottom up, lane
+    // points are reported at the centre row of every band
+    private static final int BAND_ROWS = 30;
+    // half width of the strip searched around the tracked lane
+    private static final int SEARCH_MARGIN = 20;
+    // pixels a band of that strip needs to count as found
+    private static final int MIN_BAND_PIXELS = 40;
+    private float[] bandY = new float[0];
+    private final float[][] bandX = new float[2][0];
+    private final boolean[][] bandFound = new boolean[2][0];
+    // every band, the full search fits all window centres
+    private boolean[] allBands = new boolean[0];
+    private final boolean[] fullSearch = new boolean[2];
 
 
 
@@ -73,7 +101,9 @@ public class LaneDetectorAdvance {
 
         cropToFrame = new Matrix();
         frameToCrop.invert(cropToFrame);
-        frameCounter = 0;
+        geometry.setCropToFrame(cropToFrame);
+        // the roi, the calibration and the bird's eye view all refer to the crop size
+        geometry.setReferenceSize(cropWidth,cropHeight);
     }
 
     public void setPtsResized (PointF[] pts){
@@ -81,6 +111,26 @@ public class LaneDetectorAdvance {
         orderedPoints();
     }
 
+    /**
+     * Corrects lens distortion using the stored calibration. Undistortion is not a separate
+     * pass: it is folded into the bird's eye view remap, so it costs nothing per frame. Has no
+     * effect until a calibration is available.
+     */
+    public void setUndistort(boolean enabled){
+        if (enabled) loadCalibration();
+        geometry.setFuseUndistort(enabled);
+    }
+
+    /**
+     * Frees the native memory held by the detector's working Mats and cached geometry. Has to be
+     * called on the thread that runs processFrame, or once it is no longer running; the
+     * detector stays usable and reallocates on the next frame.
+     */
+    public void release(){
+        workspace.release();
+        geometry.release();
+    }
+
     public void setNewSize(int srcWidth, int srcHeight, int cropWidth, int cropHeight){
         Matrix frameToCrop = ImageUtilities.getTransformationMatrix(
                 srcWidth,srcHeight,
@@ -90,6 +140,9 @@ public class LaneDetectorAdvance {
 
         cropToFrame = new Matrix();
         frameToCrop.invert(cropToFrame);
+        geometry.setCropToFrame(cropToFrame);
+        // the roi, the calibration and the bird's eye view all refer to the crop size
+        geometry.setReferenceSize(cropWidth,cropHeight);
     }
 
     public void calibration(int nx, int ny, List<Bitmap> bmps,boolean forceCalibrate) {
@@ -164,6 +217,8 @@ public class LaneDetectorAdvance {
             if(SharedPreferencesUtils.saveMat(config,dist_in_sp,dist))
                 Log.d(TAG, "calibration: could not save "+dist_in_sp);
             SharedPreferencesUtils.saveBool(config,has_cal_mtx_dist,true);
+            geometry.setCalibration(mtx,dist);
+            calibrationLoaded = true;
         } catch (Exception e) {
             e.printStackTrace();
             Log.d(TAG, "calibration: could not save "+key);
@@ -172,10 +227,30 @@ public class LaneDetectorAdvance {
 
     public ArrayList<PointF>[] processFrame(Bitmap bmp, boolean visualize){
 
-        // un-distort skipped
-//        this.image = unDistortImage(bmp);
-        this.image = new Mat();
+        // un-distortion, when enabled, is fused into the bird's eye view warp (setUndistort)
+        this.image = workspace.rgba;
         Utils.bitmapToMat(bmp,this.image);
+        geometry.setInputRegion(0,0,1,1);
+        return processImage(visualize);
+    }
+
+    /**
+     * Same as {@link #processFrame(Bitmap, boolean)} but reads the pixels of an RGB frame in
+     * place; the Mat only wraps the frame's buffer, nothing is copied. The frame does not need
+     * to have the crop size: it can have any resolution and show only part of the camera image
+     * (its source region), the geometry is scaled to it.
+     */
+    public ArrayList<PointF>[] processFrame(FrameBuffer frame, boolean visualize){
+        this.image = new Mat(frame.getHeight(), frame.getWidth(), CvType.CV_8UC3, frame.getBuffer());
+        geometry.setInputRegion(frame.getSourceLeft(), frame.getSourceTop(),
+                frame.getSourceRight(), frame.getSourceBottom());
+        ArrayList<PointF>[] res = processImage(visualize);
+        // the header must not outlive the frame it wraps
+        this.image.release();
+        return res;
+    }
+
+    private ArrayList<PointF>[] processImage(boolean visualize){
 //        Point[] p = orderedPoints();
 
 //        Imgproc.drawMarker(this.image,p[0],new Scalar(255,255,255));
@@ -187,14 +262,20 @@ public class LaneDetectorAdvance {
 //        markedBmp = Bitmap.createBitmap(this.image.width(),this.image.height(), Bitmap.Config.ARGB_8888);
 //        Utils.matToBitmap(this.image,markedBmp);
 
+        long wallStart = FrameTimings.wallNow();
+        long cpuStart = FrameTimings.cpuNow();
         Mat img_binray  = findEdges();
+        FrameTimings.record(FrameTimings.Stage.LANE_EDGES, wallStart, cpuStart);
         if(visualize){
             edgesBmp = Bitmap.createBitmap(
                     img_binray.width(),img_binray.height(),
                     Bitmap.Config.ARGB_8888);
             Utils.matToBitmap(img_binray,edgesBmp);
         }
+        wallStart = FrameTimings.wallNow();
+        cpuStart = FrameTimings.cpuNow();
         Mat img_bird_view = wraper(img_binray);
+        FrameTimings.record(FrameTimings.Stage.LANE_WARP, wallStart, cpuStart);
         if (visualize){
             warperBmp = Bitmap.createBitmap(
                     img_bird_view.width(),img_bird_view.height(),
@@ -202,9 +283,11 @@ public class LaneDetectorAdvance {
             Utils.matToBitmap(img_bird_view,warperBmp);
         }
 
-        ArrayList<PointF>[] lanes_points = windowSearch(img_bird_view,visualize);
-        ArrayList<PointF> lft_lane_pts = lanes_points[0];
-        ArrayList<PointF> rht_lane_pts = lanes_points[1];
+        wallStart = FrameTimings.wallNow();
+        cpuStart = FrameTimings.cpuNow();
+        searchLanes(img_bird_view,visualize);
+        ArrayList<PointF> lft_lane_pts = sampleLane(LaneTracker.LEFT);
+        ArrayList<PointF> rht_lane_pts = sampleLane(LaneTracker.RIGHT);
 
         float[] p_lft_float = pointFArrayToFloat(lft_lane_pts);
         float[] p_rht_float = pointFArrayToFloat(rht_lane_pts);
@@ -217,46 +300,19 @@ public class LaneDetectorAdvance {
         }
         //
 
-        //
-        Matrix android_M_inv = new Matrix();
-        transformMatrix(M_inv,android_M_inv);
-
-        android_M_inv.mapPoints(p_lft_float);
-        cropToFrame.mapPoints(p_lft_float);
-
-        android_M_inv.mapPoints(p_rht_float);
-        cropToFrame.mapPoints(p_rht_float);
+        // bird's eye view -> frame, inverse warp, lens and crop mapping come from the geometry
+        geometry.mapBirdViewToFrame(p_lft_float);
+        geometry.mapBirdViewToFrame(p_rht_float);
 
         lft_lane_pts = arrayToPointF(p_lft_float);
         rht_lane_pts = arrayToPointF(p_rht_float);
         offCenter(lft_lane_pts,rht_lane_pts);
-        polyFit(lft_lane_pts,2);
-        polyFit(rht_lane_pts,2);
-        avg(lft_lane_pts,rht_lane_pts);
+        FrameTimings.record(FrameTimings.Stage.LANE_SEARCH, wallStart, cpuStart);
         ArrayList<PointF>[] res = new ArrayList[2];
         res[0] = lft_lane_pts;
         res[1] = rht_lane_pts;
         return res;
     }
-    private ArrayList<PointF> polyFit(ArrayList<PointF> pts, int degree){
-        if (pts.size() == 0) return null;
-        ArrayList<PointF> specfic_points = new ArrayList<>();
-        PolynomialCurveFitter
-                curveFitter = PolynomialCurveFitter.create(degree)
-                .withMaxIterations(500);
-
-        WeightedObservedPoints points = new WeightedObservedPoints();
-        for(int i = 0; i < pts.size(); i++) {
-            points.add(pts.get(i).x, pts.get(i).y);
-        }
-        PolynomialFunction func = new PolynomialFunction(curveFitter.fit(points.toList()));
-
-        for(int i = 0; i < pts.size(); i++) {
-            pts.get(i).y = (float) func.value(pts.get(i).x);
-        }
-
-        return specfic_points;
-    }
     private void orderedPoints(){
         points = new Point[4];
         Point[] temp = new Point[4];
@@ -289,6 +345,7 @@ public class LaneDetectorAdvance {
         points[1] = temp[min_diff];
         points[2] = temp[max_sum];
         points[3] = temp[max_diff];
+        geometry.setRoi(points);
     }
 
     private String pointArrayToString(Point[] ps){
@@ -309,6 +366,23 @@ public class LaneDetectorAdvance {
         return off_center;
     }
 
+    /**
+     * Whether both lanes are tracked, i.e. were found with confidence within the last few
+     * frames, and so whether the offset means anything.
+     */
+    public boolean hasLanes() {
+        return lanesFound;
+    }
+
+    /**
+     * Whether the lane on side, {@link LaneTracker#LEFT} or {@link LaneTracker#RIGHT}, was
+     * confidently found on the last frame. Otherwise its points only come from an older fit or
+     * from the histogram.
+     */
+    boolean hasLane(int side) {
+        return laneTracker.isConfirmed(side);
+    }
+
     private float pixOffcenter;
     public float getPixOffcenter(){
         return pixOffcenter;
@@ -316,11 +390,15 @@ public class LaneDetectorAdvance {
 
     private void offCenter(ArrayList<PointF> lft, ArrayList<PointF> rht){
 
-        if (lft.size() < 10 || rht.size() < 10) {
+        // sampleLane always returns a point per band, without a tracked fit they are only the
+        // histogram's guesses
+        if (!laneTracker.isTracking(LaneTracker.LEFT) || !laneTracker.isTracking(LaneTracker.RIGHT)) {
              off_center = 0;
              pixOffcenter = 0;
+             lanesFound = false;
             return;
         }
+        lanesFound = true;
         float left = 0;
         int total = 0;
         for (int i = lft.size()/3; i < lft.size() - lft.size()/3 ; i++) {
@@ -366,26 +444,128 @@ public class LaneDetectorAdvance {
 
     }
 
-    private ArrayList<PointF>[] windowSearch(Mat wrapped, boolean visualize){
-        int midpoint = wrapped.cols()/2;
-        Mat roi = wrapped.submat(wrapped.rows() - wrapped.rows()/4,
-                wrapped.rows(),0,wrapped.cols());
-        Log.d(TAG, "windowSearch: roi = "+roi.size());
-        float[] hist_lane = histogram(roi);
+    /**
+     * Finds both lanes in the bird's eye view and updates the lane tracker. A lane that was
+     * tracked on the last frame is only looked for in a narrow strip around its fit; the full
+     * histogram and sliding window search only runs for lanes that are not tracked or got lost.
+     */
+    private void searchLanes(Mat wrapped, boolean visualize){
+        int rows = wrapped.rows();
+        int cols = wrapped.cols();
+
+        // one copy across JNI instead of a Mat.get per pixel; the visualization draws into the
+        // Mat, so it also keeps the search from seeing its own rectangles
+        if (!wrapped.isContinuous()) wrapped = wrapped.clone();
+        if (warpedPixels.length != rows * cols) warpedPixels = new byte[rows * cols];
+        wrapped.get(0,0,warpedPixels);
+        ensureBands(rows);
+        int n = bandY.length;
+
+        boolean anyFullSearch = false;
+        for (int side = LaneTracker.LEFT; side <= LaneTracker.RIGHT; side++) {
+            fullSearch[side] = true;
+            if (laneTracker.isTracking(side)) {
+                float confidence = searchAroundLane(side, cols, rows);
+                if (confidence >= LaneTracker.MIN_CONFIDENCE) {
+                    laneTracker.update(side, bandY, bandX[side], bandFound[side], n, confidence);
+                    fullSearch[side] = false;
+                }
+            }
+            anyFullSearch |= fullSearch[side];
+        }
+        if (!anyFullSearch) return;
+
+        windowSearch(wrapped, visualize);
+        for (int side = LaneTracker.LEFT; side <= LaneTracker.RIGHT; side++) {
+            if (!fullSearch[side]) continue;
+            int found = 0;
+            for (int i = 0; i < n; i++) {
+                if (bandFound[side][i]) found++;
+            }
+            laneTracker.update(side, bandY, bandX[side], allBands, n, found / (float) n);
+        }
+    }
+
+    private void ensureBands(int rows){
+        int n = (rows + BAND_ROWS - 1) / BAND_ROWS;
+        if (bandY.length == n) return;
+        bandY = new float[n];
+        allBands = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            bandY[i] = rows - i * BAND_ROWS - BAND_ROWS/2f;
+            allBands[i] = true;
+        }
+        for (int side = LaneTracker.LEFT; side <= LaneTracker.RIGHT; side++) {
+            bandX[side] = new float[n];
+            bandFound[side] = new boolean[n];
+        }
+        // fits of another size are meaningless
+        laneTracker.reset();
+    }
+
+    /**
+     * Collects the lane pixels within SEARCH_MARGIN of the tracked fit of side, band by band,
+     * into bandX and bandFound.
+     * @return fraction of bands with enough lane pixels
+     */
+    private float searchAroundLane(int side, int cols, int rows){
+        int n = bandY.length;
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            int bottom = rows - i * BAND_ROWS;
+            int top = Math.max(bottom - BAND_ROWS, 0);
+            int count = 0;
+            long sumX = 0;
+            for (int row = top; row < bottom; row++) {
+                int centre = (int) laneTracker.xAt(side, row);
+                int left = Math.max(centre - SEARCH_MARGIN, 0);
+                int right = Math.min(centre + SEARCH_MARGIN, cols);
+                if (left >= right) continue;
+                scanWindow(cols, row, row + 1, left, right);
+                count += windowCount;
+                sumX += windowSumX;
+            }
+            boolean enough = count >= MIN_BAND_PIXELS;
+            bandFound[side][i] = enough;
+            bandX[side][i] = enough ? sumX / (float) count : (float) laneTracker.xAt(side, bandY[i]);
+            if (enough) found++;
+        }
+        return found / (float) n;
+    }
+
+    /** Points of the tracked lane of side at the centre of every band, in bird's eye view. */
+    private ArrayList<PointF> sampleLane(int side){
+        int n = bandY.length;
+        ArrayList<PointF> pts = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            float x = laneTracker.hasFit(side) ?
+                    (float) laneTracker.xAt(side, bandY[i]) : bandX[side][i];
+            pts.add(new PointF(x, bandY[i]));
+        }
+        return pts;
+    }
+
+    /**
+     * Histogram and sliding window search over warpedPixels, writing the window centre of
+     * every band to bandX and whether the window had enough pixels to bandFound.
+     */
+    private void windowSearch(Mat wrapped, boolean visualize){
+        int rows = wrapped.rows();
+        int cols = wrapped.cols();
+        int midpoint = cols/2;
+
+        int[] hist_lane = histogram(cols, rows - rows/4, rows);
         int left_lane_index = getMaxIndex(hist_lane,0,midpoint-30);
-        int right_lane_index = getMaxIndex(hist_lane,midpoint+30,wrapped.cols());
+        int right_lane_index = getMaxIndex(hist_lane,midpoint+30,cols);
         Log.d(TAG, String.format("windowSearch: hist point lft=%d, rht=%d", left_lane_index,right_lane_index));
 
-        ArrayList<PointF> left_lane_indexes= new ArrayList<>();
-        ArrayList<PointF> right_lane_indexes = new ArrayList<>();
-
         int min_px = 80;
         int windows_n_rows = 30;
         int windows_n_cols = 60;
         // Step of each window
-        int StepSlide = 30;
-        int index = 0;
-        for (int row = wrapped.rows() ; row > windows_n_rows - StepSlide ; row -= StepSlide) {
+        int StepSlide = BAND_ROWS;
+        int band = 0;
+        for (int row = rows ; row > windows_n_rows - StepSlide ; row -= StepSlide, band++) {
 
             int topX_lft = left_lane_index - windows_n_cols/2;
             int topX_rht = right_lane_index - windows_n_cols/2;
@@ -394,24 +574,15 @@ public class LaneDetectorAdvance {
 
             int y_axis = row-windows_n_rows;
             if (y_axis < 0) y_axis = 0;
-            index++;
-
-            Log.d(TAG, String.format("windowSearch: y_axis = %d , topX_lft = %d, topX_rht=%d", y_axis,topX_lft,topX_rht));
+            // only the upper half of every window is searched
+            int y_end = Math.min(y_axis + windows_n_rows/2, rows);
 
-            Mat mat_lft = wrapped.submat(y_axis,
-                    y_axis+windows_n_rows ,
-                    topX_lft, Math.min(topX_lft + windows_n_cols, wrapped.cols()));
-
-            Mat mat_rht = wrapped.submat(y_axis,
-                    y_axis+windows_n_rows,
-                    topX_rht, Math.min(topX_rht + windows_n_cols, wrapped.cols()));
-//            Log.d(TAG, "windowSearch: mat content ="+matContentInString(mat_lft));
-//            break;
-//
-            ArrayList<PointF> nz_pts_lft_lane = nonZerosIndex(mat_lft,topX_lft,y_axis);
-            Log.d(TAG, "windowSearch: nz_lft = "+nz_pts_lft_lane.size());
-            ArrayList<PointF> nz_pts_rht_lane = nonZerosIndex(mat_rht,topX_rht,y_axis);
-            Log.d(TAG, "windowSearch: nz_rht = "+nz_pts_rht_lane.size());
+            scanWindow(cols, y_axis, y_end, topX_lft, Math.min(topX_lft + windows_n_cols, cols));
+            int nz_lft = windowCount;
+            long sum_lft = windowSumX;
+            scanWindow(cols, y_axis, y_end, topX_rht, Math.min(topX_rht + windows_n_cols, cols));
+            int nz_rht = windowCount;
+            long sum_rht = windowSumX;
 
             if (visualize){
                 Imgproc.rectangle(wrapped,new Point(topX_lft,y_axis),
@@ -427,63 +598,57 @@ public class LaneDetectorAdvance {
                 Imgproc.drawMarker(wrapped,new Point(right_lane_index,row - windows_n_rows/2f),new Scalar(255,255,255));
             }
 
-//            left_lane_indexes.addAll(
-//                    nz_pts_lft_lane
-//            );
-//            right_lane_indexes.addAll(
-//                    nz_pts_rht_lane
-//            );
-            left_lane_indexes.add(new PointF(left_lane_index,row - windows_n_rows/2f));
-            right_lane_indexes.add(new PointF(right_lane_index,row - windows_n_rows/2f));
-            if(nz_pts_lft_lane.size() >= min_px){
-                left_lane_index = meanXIndex(nz_pts_lft_lane);
-                Log.d(TAG, "windowSearch: new mean lft = "+ left_lane_index);
+            bandX[LaneTracker.LEFT][band] = left_lane_index;
+            bandX[LaneTracker.RIGHT][band] = right_lane_index;
+            bandFound[LaneTracker.LEFT][band] = nz_lft >= min_px;
+            bandFound[LaneTracker.RIGHT][band] = nz_rht >= min_px;
+            if(nz_lft >= min_px){
+                left_lane_index = (int) (sum_lft / nz_lft);
             }
-            if (nz_pts_rht_lane.size() >= min_px){
-                right_lane_index = meanXIndex(nz_pts_rht_lane);
-                Log.d(TAG, "windowSearch: new mean rht = "+ right_lane_index);
+            if (nz_rht >= min_px){
+                right_lane_index = (int) (sum_rht / nz_rht);
             }
         }
-        ArrayList<PointF>[] res = new ArrayList[2];
-        res[0] = left_lane_indexes;
-        res[1] = right_lane_indexes;
-        return res;
-    }
-
-    private int meanXIndex(ArrayList<PointF> pts){
-        int mean = 0;
-        for (PointF p :
-                pts) {
-            mean += p.x;
-        }
-        mean /= pts.size();
-        return mean;
     }
 
-    private ArrayList<PointF> nonZerosIndex(Mat mat,int offsetX,int offsetY){
-        ArrayList<PointF>  non_zero_points = new ArrayList<>();
-        for(int row =  0; row < mat.rows()/2; row++){
-            for(int col = 0;  col < mat.cols(); col++) {
-                if ((int)mat.get(row,col)[0] > 0d){
-                    non_zero_points.add(new PointF(offsetX+col, offsetY+row));
+    /**
+     * Counts the nonzero pixels of warpedPixels in rows [top, bottom) and columns [left, right)
+     * into windowCount and sums their column indexes into windowSumX.
+     */
+    private void scanWindow(int cols, int top, int bottom, int left, int right){
+        int count = 0;
+        long sumX = 0;
+        byte[] px = warpedPixels;
+        for (int row = top; row < bottom; row++) {
+            int offset = row * cols;
+            for (int col = left; col < right; col++) {
+                if (px[offset + col] != 0) {
+                    count++;
+                    sumX += col;
                 }
             }
         }
-        return non_zero_points;
-    }
-    private float[] histogram(Mat mat){
-        float[] sum_of_y = new float[mat.cols()];
-        for (int i = 0; i < mat.cols(); i++) {
-            float sum = 0;
-            for (int j = 0; j < mat.rows(); j++) {
-                sum += (float) mat.get(j,i)[0];
+        windowCount = count;
+        windowSumX = sumX;
+    }
+
+    /** Column sums of warpedPixels over rows [top, bottom). */
+    private int[] histogram(int cols, int top, int bottom){
+        if (laneHistogram.length != cols) laneHistogram = new int[cols];
+        int[] sum_of_y = laneHistogram;
+        Arrays.fill(sum_of_y, 0);
+        byte[] px = warpedPixels;
+        // row by row so the array is walked in memory order
+        for (int row = top; row < bottom; row++) {
+            int offset = row * cols;
+            for (int col = 0; col < cols; col++) {
+                sum_of_y[col] += px[offset + col] & 0xFF;
             }
-            sum_of_y[i] = sum;
         }
         return sum_of_y;
     }
 
-    private int getMaxIndex(float[] sum_of_y,int offset, int end){
+    private int getMaxIndex(int[] sum_of_y,int offset, int end){
         if(end > sum_of_y.length || end < offset )
             throw new IllegalArgumentException("end should be <= sum_of_y and > offset");
         if(offset < 0 )
@@ -497,58 +662,62 @@ public class LaneDetectorAdvance {
     }
 
     private Mat wraper(Mat edge){
-        Mat warped = new Mat();
-
-//        Log.d(TAG, "warper: order points = "+ pointArrayToString(points));
-        MatOfPoint2f inshape = new MatOfPoint2f(points);
-        Point[] p_d = new Point[4];
-        p_d[0] = new Point(0,0);
-        p_d[1] = new Point(0,edge.rows() -1); //new Point(width - 1,0);
-
-        p_d[2] = new Point(edge.cols() -1 ,edge.rows() - 1);
-        p_d[3] = new Point(edge.cols() - 1,0); //new Point(0,height -1);
-
-        MatOfPoint2f outshape = new MatOfPoint2f(p_d);
-
-        Mat M = Imgproc.getPerspectiveTransform(inshape,outshape);
-        M_inv = Imgproc.getPerspectiveTransform(outshape,inshape);
-//        Log.d(TAG, "warper: M = "+ matContentInString(M));
-//        Log.d(TAG, "warper: M_inv = "+ matContentInString(M_inv));
-
-        Imgproc.warpPerspective(edge,warped,M,
-                edge.size());
+        Mat warped = workspace.warped;
+        // the warp only changes with the roi or the input, findEdges brought it up to date
+        if (geometry.isFused()){
+            // undistortion and warp in a single resample
+            Imgproc.remap(edge,warped,geometry.getFusedMap1(),geometry.getFusedMap2(),
+                    Imgproc.INTER_LINEAR);
+        } else {
+            Imgproc.warpPerspective(edge,warped,geometry.getWarp(),
+                    geometry.getBirdViewSize());
+        }
         return warped;
     }
     private Mat findEdges(){
-//        Mat edge = isolateColor(convertToGrayScale());
-        Mat edge = convertToGrayScale();
-        cannay(edge);
+        // only the part of the frame the bird's eye view is sampled from is processed; the
+        // rest of the edge image is cleared once per roi and stays black
+        geometry.update(image.cols(),image.rows());
+        Rect roi = geometry.getSourceRect();
+        Mat edge = workspace.gray;
+        if (edgesVersion != geometry.getVersion() ||
+                edge.cols() != image.cols() || edge.rows() != image.rows()){
+            edge.create(image.rows(),image.cols(),CvType.CV_8UC1);
+            edge.setTo(black);
+            edgesVersion = geometry.getVersion();
+        }
+        Mat imageRoi = image.submat(roi);
+        Mat edgeRoi = edge.submat(roi);
+//        isolateColor(gray, imageRoi) instead of the plain gray scale to keep white/yellow only
+        convertToGrayScale(imageRoi,edgeRoi);
+        cannay(edgeRoi);
+        imageRoi.release();
+        edgeRoi.release();
         return edge;
     }
 
-    private Mat convertToGrayScale(){
-        Mat gray = new Mat();
-        Imgproc.cvtColor(image,gray,Imgproc.COLOR_RGBA2GRAY);
-        return gray;
+    private void convertToGrayScale(Mat color, Mat gray){
+        Imgproc.cvtColor(color,gray,
+                color.channels() == 4 ? Imgproc.COLOR_RGBA2GRAY : Imgproc.COLOR_RGB2GRAY);
     }
 
 
-    private Mat isolateColor(Mat gray){
-        Mat hsv = new Mat();
-        Imgproc.cvtColor(this.image,hsv,Imgproc.COLOR_BGR2HSV);
+    private Mat isolateColor(Mat gray, Mat color){
+        Mat hsv = workspace.hsv;
+        Imgproc.cvtColor(color,hsv,Imgproc.COLOR_BGR2HSV);
 
-        Mat mask_w = new Mat();
-        Mat mask_y = new Mat();
-        Mat mask_yw = new Mat();
-        Mat temp = new Mat();
-        Mat edge = new Mat();
+        Mat mask_w = workspace.maskWhite;
+        Mat mask_y = workspace.maskYellow;
+        Mat mask_yw = workspace.maskLane;
+        Mat temp = workspace.masked;
+        Mat edge = workspace.blurred;
 
-        inRange(gray,new Scalar(190),new Scalar(255),mask_w);
+        inRange(gray,lower_white,upper_white,mask_w);
         inRange(hsv,lower_yellow,upper_yellow,mask_y);
         Core.bitwise_or(mask_w,mask_y,mask_yw);
 
         Core.bitwise_and(gray,mask_yw,temp);
-        Imgproc.GaussianBlur(temp,edge,new Size(5,5),0);
+        Imgproc.GaussianBlur(temp,edge,blur_size,0);
         return edge;
     }
 
@@ -557,20 +726,16 @@ public class LaneDetectorAdvance {
     }
 
     public Mat unDistortImage(Bitmap bmp){
-        if (!hasCalibConfigValues()) return null;
-        try{
-            mtx  = SharedPreferencesUtils.loadMat(config,mtx_in_sp);
-            dist = SharedPreferencesUtils.loadMat(config,dist_in_sp);
-        } catch (IllegalArgumentException  ex){
-            return null;
-        }
-        Log.d(TAG, "unDistortImage: mtx => "+ matContentInString(mtx));
-        Log.d(TAG, "unDistortImage: dist => "+ matContentInString(dist));
+        if (!loadCalibration()) return null;
 
         Mat img = new Mat();
         Mat un_img = new Mat();
         Utils.bitmapToMat(bmp,img);
-        Imgproc.undistort(img,un_img,mtx,dist);
+        // the remap tables are built once per calibration and frame size
+        geometry.setInputRegion(0,0,1,1);
+        geometry.update(img.cols(),img.rows());
+        Imgproc.remap(img,un_img,geometry.getUndistortMap1(),geometry.getUndistortMap2(),
+                Imgproc.INTER_LINEAR);
         unDistImg = Bitmap.createBitmap(
                 un_img.width(),un_img.height(), Bitmap.Config.ARGB_8888);
         Utils.matToBitmap(un_img,unDistImg);
@@ -589,6 +754,27 @@ public class LaneDetectorAdvance {
         LaneDetectorAdvance.has_cal_mtx_dist = has_cal_mtx_dist;
     }
 
+    /**
+     * Reads the stored calibration into the geometry the first time it is needed; the JSON in
+     * the shared preferences is not parsed again after that.
+     * @return whether a calibration is available
+     */
+    private boolean loadCalibration(){
+        if (!calibrationLoaded && config != null){
+            calibrationLoaded = true;
+            try{
+                mtx  = SharedPreferencesUtils.loadMat(config,mtx_in_sp);
+                dist = SharedPreferencesUtils.loadMat(config,dist_in_sp);
+                Log.d(TAG, "loadCalibration: mtx => "+ matContentInString(mtx));
+                Log.d(TAG, "loadCalibration: dist => "+ matContentInString(dist));
+                geometry.setCalibration(mtx,dist);
+            } catch (IllegalArgumentException  ex){
+                geometry.setCalibration(null,null);
+            }
+        }
+        return mtx != null && dist != null;
+    }
+
     private static boolean hasCalibConfigValues(){
         try{
             SharedPreferencesUtils.loadMat(config,mtx_in_sp);
@@ -639,45 +825,7 @@ public class LaneDetectorAdvance {
         return dist_s.toString();
     }
 
-    private void avg(ArrayList<PointF> new_lft, ArrayList<PointF> new_rht){
-        int counter = 1;
-        for (int i = 0; i < lft_point_mem.length; i++) {
-            if(lft_point_mem[i] != null && !lft_point_mem[i].isEmpty()){
-                for (int j = 0; j < new_lft.size(); j++) {
-                    new_lft.get(j).x += lft_point_mem[i].get(j).x;
-                    new_lft.get(j).y += lft_point_mem[i].get(j).y;
-                }
-                counter++;
-            }
-        }
-        for (int j = 0; j < new_lft.size(); j++) {
-            new_lft.get(j).x /= counter;
-            new_lft.get(j).y /= counter;
-        }
-        lft_point_mem[frameCounter] = new_lft;
-
-        counter = 1;
-        for (int i = 0; i < rht_point_mem.length; i++) {
-            if(rht_point_mem[i] != null && !rht_point_mem[i].isEmpty()){
-                for (int j = 0; j < new_lft.size(); j++) {
-                    new_rht.get(j).x += rht_point_mem[i].get(j).x;
-                    new_rht.get(j).y += rht_point_mem[i].get(j).y;
-                }
-                counter++;
-            }
-        }
-        for (int j = 0; j < new_rht.size(); j++) {
-            new_rht.get(j).x /= counter;
-            new_rht.get(j).y /= counter;
-        }
-
-        rht_point_mem[frameCounter] = new_rht;
-        frameCounter ++;
-        frameCounter %= lft_point_mem.length;
-
-
-    }
-    private static void transformMatrix(Mat src, Matrix dst) {
+    static void transformMatrix(Mat src, Matrix dst) {
 
         int columns = src.cols();
         int rows = src.rows();
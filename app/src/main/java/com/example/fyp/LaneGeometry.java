@@ -0,0 +1,445 @@
+package com.example.fyp;
+
+import android.graphics.Matrix;
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * Caches everything about the lane detector's view that only changes when the user edits the
+ * region of interest in {@link LanePointsActivity}, the frame size changes or the camera is
+ * recalibrated:
+ * <ul>
+ *     <li>the perspective warp into the bird's eye view and its inverse,</li>
+ *     <li>the inverse warp composed with the crop to frame mapping, as one android Matrix for
+ *     mapping lane points back onto the preview,</li>
+ *     <li>the undistortion remap tables, when a calibration is set,</li>
+ *     <li>the bounding box of the frame pixels the bird's eye view is sampled from, so the edge
+ *     pipeline can skip everything outside of it.</li>
+ * </ul>
+ * With {@link #setFuseUndistort(boolean)} and a calibration, undistortion and the warp are
+ * fused into one pair of remap tables instead: every bird's eye view pixel is traced back
+ * through the inverse warp and the lens model to the raw frame, so a single
+ * {@link Imgproc#remap} does both and the frame is only resampled once. The region of interest
+ * is undistorted first so the warp operates on straight lane lines.
+ * <p>
+ * The roi, the calibration and the crop to frame mapping all refer to one reference image
+ * ({@link #setReferenceSize(int, int)}). The input images may show it at another resolution or
+ * only a part of it ({@link #setInputRegion(float, float, float, float)}); the roi and the lens
+ * model are scaled to the input, while the bird's eye view keeps the reference size so the
+ * lane search behaves the same whatever the input resolution. Its window sizes and pixel
+ * thresholds are tuned for that size, so a larger input only improves the edges the view is
+ * sampled from, not the resolution of the search or the fit.
+ * {@link #update(int, int)} recomputes whatever went stale and is a couple of compares
+ * otherwise, so it can be called every frame. Not thread-safe, owned by the lane worker.
+ */
+class LaneGeometry {
+    private static final String TAG = "LaneGeometry";
+
+    // ordered top left, bottom left, bottom right, top right
+    private Point[] roi;
+    private final Matrix cropToFrame = new Matrix();
+    private Mat cameraMatrix;
+    private Mat distCoeffs;
+    private boolean fuseUndistort = false;
+
+    private int width = -1;
+    private int height = -1;
+    // reference image, -1 while it is the input itself
+    private int referenceWidth = -1;
+    private int referenceHeight = -1;
+    // part of the reference image the input shows, as fractions of its size
+    private float regionLeft = 0;
+    private float regionTop = 0;
+    private float regionRight = 1;
+    private float regionBottom = 1;
+    private boolean inputStale = true;
+    // reference -> input pixels: x * scaleX + offsetX, y * scaleY + offsetY
+    private double scaleX = 1;
+    private double scaleY = 1;
+    private double offsetX = 0;
+    private double offsetY = 0;
+    private final Size birdViewSize = new Size();
+    private final Matrix inputToFrame = new Matrix();
+    private boolean warpStale = true;
+    private boolean undistortStale = true;
+
+    private Mat warp;
+    private Mat warpInv;
+    private final Matrix birdViewToFrame = new Matrix();
+    private final Mat undistortMap1 = new Mat();
+    private final Mat undistortMap2 = new Mat();
+    private boolean hasUndistort = false;
+
+    // fused undistort + warp, only valid while fused is set
+    private boolean fused = false;
+    private final Mat fusedMap1 = new Mat();
+    private final Mat fusedMap2 = new Mat();
+    // warpInv as an android Matrix, for mapping points when fused
+    private final Matrix warpInvMatrix = new Matrix();
+    // lens model: fx, fy, cx, cy and k1, k2, p1, p2, k3, k4, k5, k6
+    private double fx, fy, cx, cy;
+    private final double[] k = new double[8];
+    private final float[] distorted = new float[2];
+
+    // bounding box of the source pixels of the bird's eye view, and a counter that changes
+    // whenever it is recomputed
+    private final Rect sourceRect = new Rect();
+    private int version = 0;
+
+    /** Sets the region of interest, ordered as returned by LaneDetectorAdvance.orderedPoints. */
+    void setRoi(Point[] orderedPoints) {
+        roi = orderedPoints;
+        warpStale = true;
+    }
+
+    void setCropToFrame(Matrix cropToFrame) {
+        this.cropToFrame.set(cropToFrame);
+        warpStale = true;
+    }
+
+    /**
+     * Sets the size of the image the roi, the calibration and the crop to frame mapping refer
+     * to, which is also the size of the bird's eye view. Until it is set the input images are
+     * taken to be the reference.
+     */
+    void setReferenceSize(int width, int height) {
+        if (width == referenceWidth && height == referenceHeight) return;
+        referenceWidth = width;
+        referenceHeight = height;
+        inputStale = true;
+    }
+
+    /** Sets the part of the reference image the input images show, in fractions of its size. */
+    void setInputRegion(float left, float top, float right, float bottom) {
+        if (left == regionLeft && top == regionTop && right == regionRight && bottom == regionBottom) {
+            return;
+        }
+        regionLeft = left;
+        regionTop = top;
+        regionRight = right;
+        regionBottom = bottom;
+        inputStale = true;
+    }
+
+    /** Sets the camera calibration, or clears it when either argument is null. */
+    void setCalibration(Mat cameraMatrix, Mat distCoeffs) {
+        this.cameraMatrix = cameraMatrix;
+        this.distCoeffs = distCoeffs;
+        undistortStale = true;
+        warpStale = true;
+    }
+
+    /** Whether to fold undistortion into the warp when a calibration is available. */
+    void setFuseUndistort(boolean enabled) {
+        fuseUndistort = enabled;
+        warpStale = true;
+    }
+
+    /** Whether the bird's eye view has to be made with the fused maps instead of the warp. */
+    boolean isFused() {
+        return fused;
+    }
+
+    /** Brings the cached values up to date for input images of the given size. */
+    void update(int width, int height) {
+        if (width != this.width || height != this.height || inputStale) {
+            this.width = width;
+            this.height = height;
+            computeInputScale();
+            inputStale = false;
+            warpStale = true;
+            undistortStale = true;
+        }
+        // the roi may still be missing when only the undistortion maps are needed
+        if (warpStale && roi != null) {
+            computeWarp();
+            warpStale = false;
+        }
+        if (undistortStale) {
+            computeUndistort();
+            undistortStale = false;
+        }
+    }
+
+    private void computeInputScale() {
+        int refWidth = referenceWidth > 0 ? referenceWidth : width;
+        int refHeight = referenceHeight > 0 ? referenceHeight : height;
+        scaleX = width / ((regionRight - regionLeft) * refWidth);
+        scaleY = height / ((regionBottom - regionTop) * refHeight);
+        offsetX = -regionLeft * refWidth * scaleX;
+        offsetY = -regionTop * refHeight * scaleY;
+        birdViewSize.width = refWidth;
+        birdViewSize.height = refHeight;
+    }
+
+    /** The camera matrix of the calibration, scaled to the input. */
+    private Mat inputCameraMatrix() {
+        Mat m = cameraMatrix.clone();
+        double[] v = new double[9];
+        m.get(0, 0, v);
+        v[0] *= scaleX;
+        v[2] = v[2] * scaleX + offsetX;
+        v[4] *= scaleY;
+        v[5] = v[5] * scaleY + offsetY;
+        m.put(0, 0, v);
+        return m;
+    }
+
+    private void computeWarp() {
+        fused = fuseUndistort && cameraMatrix != null && distCoeffs != null;
+        Point[] inputRoi = new Point[roi.length];
+        for (int i = 0; i < roi.length; i++) {
+            inputRoi[i] = new Point(roi[i].x * scaleX + offsetX, roi[i].y * scaleY + offsetY);
+        }
+        MatOfPoint2f inshape = new MatOfPoint2f(inputRoi);
+        if (fused) {
+            loadLensModel();
+            // the roi was picked on the raw preview, the warp works on the undistorted image
+            MatOfPoint2f undistorted = new MatOfPoint2f();
+            Mat k = inputCameraMatrix();
+            Imgproc.undistortPoints(inshape, undistorted, k, distCoeffs, new Mat(), k);
+            k.release();
+            inshape.release();
+            inshape = undistorted;
+        }
+        int birdWidth = (int) birdViewSize.width;
+        int birdHeight = (int) birdViewSize.height;
+        MatOfPoint2f outshape = new MatOfPoint2f(
+                new Point(0, 0),
+                new Point(0, birdHeight - 1),
+                new Point(birdWidth - 1, birdHeight - 1),
+                new Point(birdWidth - 1, 0));
+
+        if (warp != null) warp.release();
+        if (warpInv != null) warpInv.release();
+        warp = Imgproc.getPerspectiveTransform(inshape, outshape);
+        warpInv = Imgproc.getPerspectiveTransform(outshape, inshape);
+        inshape.release();
+        outshape.release();
+
+        // bird's eye view -> input -> reference (crop) -> frame in one matrix
+        inputToFrame.setTranslate((float) -offsetX, (float) -offsetY);
+        inputToFrame.postScale((float) (1 / scaleX), (float) (1 / scaleY));
+        inputToFrame.postConcat(cropToFrame);
+        LaneDetectorAdvance.transformMatrix(warpInv, warpInvMatrix);
+        birdViewToFrame.set(warpInvMatrix);
+        birdViewToFrame.postConcat(inputToFrame);
+
+        if (fused) {
+            computeFusedMaps();
+        } else {
+            fusedMap1.release();
+            fusedMap2.release();
+            double minX = inputRoi[0].x, maxX = inputRoi[0].x, minY = inputRoi[0].y, maxY = inputRoi[0].y;
+            for (Point p : inputRoi) {
+                minX = Math.min(minX, p.x);
+                maxX = Math.max(maxX, p.x);
+                minY = Math.min(minY, p.y);
+                maxY = Math.max(maxY, p.y);
+            }
+            setSourceRect(minX, minY, maxX, maxY);
+        }
+        version++;
+        Log.d(TAG, "computeWarp: " + width + "x" + height + " -> " + birdWidth + "x" + birdHeight +
+                (fused ? ", fused with undistortion" : ""));
+    }
+
+    private void loadLensModel() {
+        double[] m = new double[9];
+        cameraMatrix.get(0, 0, m);
+        fx = m[0] * scaleX;
+        fy = m[4] * scaleY;
+        cx = m[2] * scaleX + offsetX;
+        cy = m[5] * scaleY + offsetY;
+        Arrays.fill(k, 0);
+        double[] d = new double[(int) distCoeffs.total()];
+        distCoeffs.get(0, 0, d);
+        System.arraycopy(d, 0, k, 0, Math.min(d.length, k.length));
+    }
+
+    /**
+     * Applies the lens distortion to a point of the undistorted image, the inverse of what
+     * undistortion does, into {@link #distorted}.
+     */
+    private void distort(double x, double y) {
+        double xn = (x - cx) / fx;
+        double yn = (y - cy) / fy;
+        double r2 = xn * xn + yn * yn;
+        double r4 = r2 * r2;
+        double r6 = r4 * r2;
+        double radial = (1 + k[0] * r2 + k[1] * r4 + k[4] * r6) /
+                (1 + k[5] * r2 + k[6] * r4 + k[7] * r6);
+        double xd = xn * radial + 2 * k[2] * xn * yn + k[3] * (r2 + 2 * xn * xn);
+        double yd = yn * radial + k[2] * (r2 + 2 * yn * yn) + 2 * k[3] * xn * yn;
+        distorted[0] = (float) (fx * xd + cx);
+        distorted[1] = (float) (fy * yd + cy);
+    }
+
+    /** For every bird's eye view pixel, the raw input position it comes from. */
+    private void computeFusedMaps() {
+        int width = (int) birdViewSize.width;
+        int height = (int) birdViewSize.height;
+        double[] h = new double[9];
+        warpInv.get(0, 0, h);
+        float[] mapX = new float[width * height];
+        float[] mapY = new float[width * height];
+        float minX = Float.MAX_VALUE, maxX = -Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        int i = 0;
+        for (int v = 0; v < height; v++) {
+            for (int u = 0; u < width; u++) {
+                double w = h[6] * u + h[7] * v + h[8];
+                distort((h[0] * u + h[1] * v + h[2]) / w, (h[3] * u + h[4] * v + h[5]) / w);
+                mapX[i] = distorted[0];
+                mapY[i] = distorted[1];
+                minX = Math.min(minX, distorted[0]);
+                maxX = Math.max(maxX, distorted[0]);
+                minY = Math.min(minY, distorted[1]);
+                maxY = Math.max(maxY, distorted[1]);
+                i++;
+            }
+        }
+        // the undistorted roi has curved sides, so its bounds come from the map itself
+        setSourceRect(minX, minY, maxX, maxY);
+        Mat floatMapX = new Mat(height, width, CvType.CV_32FC1);
+        Mat floatMapY = new Mat(height, width, CvType.CV_32FC1);
+        floatMapX.put(0, 0, mapX);
+        floatMapY.put(0, 0, mapY);
+        // fixed point maps, the fastest format for remap
+        Imgproc.convertMaps(floatMapX, floatMapY, fusedMap1, fusedMap2, CvType.CV_16SC2);
+        floatMapX.release();
+        floatMapY.release();
+    }
+
+    /** Clips the given bounds, widened by a pixel for the interpolation, to the input. */
+    private void setSourceRect(double minX, double minY, double maxX, double maxY) {
+        int left = Math.max(0, (int) Math.floor(minX) - 1);
+        int top = Math.max(0, (int) Math.floor(minY) - 1);
+        int right = Math.min(width, (int) Math.ceil(maxX) + 2);
+        int bottom = Math.min(height, (int) Math.ceil(maxY) + 2);
+        if (right <= left || bottom <= top) {
+            // roi entirely off the frame, fall back to everything
+            left = 0;
+            top = 0;
+            right = width;
+            bottom = height;
+        }
+        sourceRect.x = left;
+        sourceRect.y = top;
+        sourceRect.width = right - left;
+        sourceRect.height = bottom - top;
+    }
+
+    /**
+     * Bounding box of the input pixels the bird's eye view is sampled from; nothing outside of
+     * it can end up in the view.
+     */
+    Rect getSourceRect() {
+        return sourceRect;
+    }
+
+    /** Changes every time the warp, and with it the source rect, is recomputed. */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Maps points (x, y pairs) from the bird's eye view to frame (preview) coordinates in place,
+     * going through the lens model when undistortion is fused into the warp.
+     */
+    void mapBirdViewToFrame(float[] pts) {
+        if (!fused) {
+            birdViewToFrame.mapPoints(pts);
+            return;
+        }
+        warpInvMatrix.mapPoints(pts);
+        for (int i = 0; i < pts.length; i += 2) {
+            distort(pts[i], pts[i + 1]);
+            pts[i] = distorted[0];
+            pts[i + 1] = distorted[1];
+        }
+        inputToFrame.mapPoints(pts);
+    }
+
+    private void computeUndistort() {
+        hasUndistort = cameraMatrix != null && distCoeffs != null;
+        if (!hasUndistort) {
+            undistortMap1.release();
+            undistortMap2.release();
+            return;
+        }
+        // fixed point maps, the fastest format for remap
+        Mat k = inputCameraMatrix();
+        Imgproc.initUndistortRectifyMap(k, distCoeffs, new Mat(), k,
+                new Size(width, height), CvType.CV_16SC2, undistortMap1, undistortMap2);
+        k.release();
+        Log.d(TAG, "computeUndistort: " + width + "x" + height);
+    }
+
+    /** Perspective transform from the input into the bird's eye view. */
+    Mat getWarp() {
+        return warp;
+    }
+
+    /** Size of the bird's eye view, the reference size. */
+    Size getBirdViewSize() {
+        return birdViewSize;
+    }
+
+    Mat getWarpInverse() {
+        return warpInv;
+    }
+
+    /**
+     * Maps bird's eye view coordinates straight to frame (preview) coordinates. Ignores the
+     * lens, see {@link #mapBirdViewToFrame(float[])}.
+     */
+    Matrix getBirdViewToFrame() {
+        return birdViewToFrame;
+    }
+
+    boolean hasUndistort() {
+        return hasUndistort;
+    }
+
+    Mat getUndistortMap1() {
+        return undistortMap1;
+    }
+
+    Mat getUndistortMap2() {
+        return undistortMap2;
+    }
+
+    Mat getFusedMap1() {
+        return fusedMap1;
+    }
+
+    Mat getFusedMap2() {
+        return fusedMap2;
+    }
+
+    void release() {
+        if (warp != null) warp.release();
+        if (warpInv != null) warpInv.release();
+        warp = null;
+        warpInv = null;
+        undistortMap1.release();
+        undistortMap2.release();
+        fusedMap1.release();
+        fusedMap2.release();
+        hasUndistort = false;
+        fused = false;
+        width = -1;
+        height = -1;
+        inputStale = true;
+    }
+}
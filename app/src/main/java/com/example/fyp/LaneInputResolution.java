@@ -0,0 +1,208 @@
+package com.example.fyp;
+
+import android.content.Context;
+import android.graphics.PointF;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Decides at which resolution, and from which part of the camera image, the lane detector gets
+ * its frames, independently of the square object detector input.
+ *
+ * Lane frames are cut from the camera image across its full width and only over the rows of
+ * the region of interest, and they keep the camera's aspect ratio, so lane lines are not
+ * squashed and no pixels are converted for the sky. Their width is one of {@link #WIDTHS}.
+ *
+ * The width only decides how sharp the gray scale and edge images are that the bird's eye view
+ * is warped from. The bird's eye view itself, and with it the window search and the polynomial
+ * fit, always has the 300x300 reference size (see {@link LaneGeometry}), so a wider frame gives
+ * cleaner, better placed edges but not a finer search or fit.
+ *
+ * The lane worker reports how long each frame took; the width steps down when the average goes
+ * over the budget and up again when the next width is expected to fit with some headroom,
+ * waiting {@link #HOLD_FRAMES} frames after every change so a single slow frame does not make
+ * it oscillate. While the device reports thermal pressure the width is capped. A fixed width
+ * turns the adaptation off.
+ *
+ * {@link #acquire(int, int)} is called on the camera thread, {@link #onFrameProcessed(long)}
+ * on the lane worker.
+ */
+class LaneInputResolution {
+    private static final String TAG = "LaneInputResolution";
+
+    /**
+     * Possible lane frame widths, from the cheapest to the sharpest edges. The camera frames
+     * are read at most the widest of these wide, see
+     * {@link com.example.fyp.customutilities.SharedValues#IMAGE_READER_MAX_WIDTH}.
+     */
+    static final int[] WIDTHS = {160, 240, 320, 480, 640};
+    // rows kept above and below the roi, as a fraction of the image height, for the
+    // interpolation and the curved sides of an undistorted roi
+    private static final float ROI_MARGIN = 0.05f;
+    // weight of a new frame in the average processing time
+    private static final float SMOOTHING = 0.1f;
+    private static final int HOLD_FRAMES = 30;
+    // a larger width is only taken when it is expected to stay this far under the budget
+    private static final float HEADROOM = 0.8f;
+    // highest level while the device is throttling
+    private static final int THROTTLED_LEVEL = 1;
+    // one frame being processed, one waiting and one being filled
+    private static final int POOL_SIZE = 3;
+
+    private final float budgetMs;
+    private volatile int level;
+    private volatile boolean adaptive = true;
+    private volatile boolean throttled = false;
+
+    // lane worker only
+    private float averageMs = -1;
+    private int framesSinceChange = 0;
+
+    // rows of the camera image the lane frames are cut from, as fractions of its height
+    private volatile float top = 0;
+    private volatile float bottom = 1;
+
+    // camera thread only
+    private FramePool pool = null;
+    private volatile int frameWidth = 0;
+    private volatile int frameHeight = 0;
+
+    private PowerManager powerManager = null;
+    private PowerManager.OnThermalStatusChangedListener thermalListener = null;
+
+    /**
+     * @param initialWidth width to start with, rounded down to one of {@link #WIDTHS}
+     * @param budgetMs average lane processing time per frame the width is adapted to
+     */
+    LaneInputResolution(int initialWidth, float budgetMs) {
+        this.budgetMs = budgetMs;
+        this.level = levelFor(initialWidth);
+    }
+
+    private static int levelFor(int width) {
+        int l = 0;
+        while (l + 1 < WIDTHS.length && WIDTHS[l + 1] <= width) l++;
+        return l;
+    }
+
+    /** Uses the given width, rounded down to one of {@link #WIDTHS}, and stops adapting. */
+    void setFixedWidth(int width) {
+        adaptive = false;
+        level = levelFor(width);
+    }
+
+    /**
+     * Restricts the lane frames to the rows of the region of interest.
+     * @param roi corners of the region in an image of the reference size showing the whole
+     *            camera image, e.g. the lane detector's crop size
+     */
+    void setRegion(PointF[] roi, int referenceWidth, int referenceHeight) {
+        float minY = roi[0].y;
+        float maxY = roi[0].y;
+        for (PointF p : roi) {
+            minY = Math.min(minY, p.y);
+            maxY = Math.max(maxY, p.y);
+        }
+        top = Math.max(0, minY / referenceHeight - ROI_MARGIN);
+        bottom = Math.min(1, maxY / referenceHeight + ROI_MARGIN);
+        if (bottom <= top) {
+            top = 0;
+            bottom = 1;
+        }
+        Log.d(TAG, String.format(Locale.US, "setRegion: rows %.2f - %.2f", top, bottom));
+    }
+
+    float getTop() {
+        return top;
+    }
+
+    float getBottom() {
+        return bottom;
+    }
+
+    private int getMaxLevel() {
+        return throttled ? Math.min(THROTTLED_LEVEL, WIDTHS.length - 1) : WIDTHS.length - 1;
+    }
+
+    /**
+     * A free lane frame for a camera image of the given size, or null if they are all in use.
+     * The pool is replaced when the frame size changes; frames of the old size still in use
+     * are dropped with it once released.
+     */
+    FrameBuffer acquire(int imageWidth, int imageHeight) {
+        int width = Math.min(WIDTHS[Math.min(level, getMaxLevel())], imageWidth);
+        int height = Math.max(1, Math.round(width * (bottom - top) * imageHeight / imageWidth));
+        if (pool == null || pool.getWidth() != width || pool.getHeight() != height) {
+            Log.d(TAG, String.format(Locale.US, "acquire: lane frames %dx%d from %dx%d",
+                    width, height, imageWidth, imageHeight));
+            pool = new FramePool(width, height, POOL_SIZE);
+            frameWidth = width;
+            frameHeight = height;
+        }
+        return pool.acquire();
+    }
+
+    /** Reports how long the lane detector took for one frame, from the lane worker. */
+    void onFrameProcessed(long wallNanos) {
+        if (!adaptive) return;
+        int current = level;
+        int max = getMaxLevel();
+        if (current > max) {
+            changeLevel(max);
+            return;
+        }
+        float ms = wallNanos / 1e6f;
+        averageMs = averageMs < 0 ? ms : averageMs + SMOOTHING * (ms - averageMs);
+        if (++framesSinceChange < HOLD_FRAMES) return;
+
+        if (averageMs > budgetMs && current > 0) {
+            changeLevel(current - 1);
+        } else if (current < max) {
+            // the cost grows at most with the number of pixels
+            float ratio = WIDTHS[current + 1] / (float) WIDTHS[current];
+            if (averageMs * ratio * ratio < budgetMs * HEADROOM) changeLevel(current + 1);
+        }
+    }
+
+    private void changeLevel(int newLevel) {
+        Log.d(TAG, String.format(Locale.US, "changeLevel: width %d -> %d, average %.1f ms",
+                WIDTHS[level], WIDTHS[newLevel], averageMs));
+        level = newLevel;
+        averageMs = -1;
+        framesSinceChange = 0;
+    }
+
+    /**
+     * Caps the width while the device reports moderate or worse thermal status. Only
+     * available from Android 10 on, a no-op before.
+     */
+    void startThermalMonitoring(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || thermalListener != null) return;
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null) return;
+        thermalListener = new PowerManager.OnThermalStatusChangedListener() {
+            @Override
+            public void onThermalStatusChanged(int status) {
+                throttled = status >= PowerManager.THERMAL_STATUS_MODERATE;
+                Log.d(TAG, "onThermalStatusChanged: status = " + status);
+            }
+        };
+        powerManager.addThermalStatusListener(thermalListener);
+    }
+
+    void stopThermalMonitoring() {
+        if (thermalListener == null) return;
+        powerManager.removeThermalStatusListener(thermalListener);
+        thermalListener = null;
+        throttled = false;
+    }
+
+    /** One line for the debug overlay. */
+    String getSummary() {
+        return String.format(Locale.US, "lane input %dx%d%s%s", frameWidth, frameHeight,
+                adaptive ? "" : " (fixed)", throttled ? " (throttled)" : "");
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.fyp;
+
+import com.example.fyp.customutilities.PolynomialFitter;
+
+/**
+ * Keeps a smoothed second order fit {@code x = c0 + c1 * y + c2 * y^2} of both lane lines in
+ * the bird's eye view from frame to frame.
+ *
+ * While a lane was found with confidence on the previous frame, the detector only has to look
+ * in a narrow margin around {@link #xAt(int, double)} instead of redoing the histogram and the
+ * sliding window search. New fits are blended into the kept one with an exponential moving
+ * average, which replaces averaging the raw points of the last two frames. A lane that is not
+ * confirmed for {@link #MAX_MISSES} frames in a row is dropped back to a full search.
+ *
+ * A fit is confident when enough search bands had lane pixels and the points stay close to
+ * the fitted curve ({@link #MAX_RESIDUAL}); the residual is kept per lane for callers that
+ * want to judge the quality of the current fit.
+ *
+ * Not thread-safe, owned by the lane worker.
+ */
+class LaneTracker {
+
+    static final int LEFT = 0;
+    static final int RIGHT = 1;
+
+    // weight of a new fit in the moving average
+    private static final double SMOOTHING = 0.4;
+    // fraction of bands that need lane pixels for a fit to count as confident
+    static final float MIN_CONFIDENCE = 0.5f;
+    // RMS distance in pixels of the points from a fit above which it is not trusted
+    private static final double MAX_RESIDUAL = 12;
+    private static final int MAX_MISSES = 5;
+    private static final int DEGREE = 2;
+
+    private final PolynomialFitter fitter = new PolynomialFitter(DEGREE);
+    private final double[] residuals = new double[2];
+
+    private final double[][] fits = new double[2][DEGREE + 1];
+    private final boolean[] hasFit = new boolean[2];
+    private final boolean[] tracking = new boolean[2];
+    private final int[] misses = new int[2];
+
+    /** Whether the lane on side was confidently found recently enough to search around it. */
+    boolean isTracking(int side) {
+        return tracking[side];
+    }
+
+    /** Whether the lane on side was confidently found on the last frame, not just kept. */
+    boolean isConfirmed(int side) {
+        return tracking[side] && misses[side] == 0;
+    }
+
+    /** Whether there is any fit for side yet. */
+    boolean hasFit(int side) {
+        return hasFit[side];
+    }
+
+    /** x of the smoothed lane on side at row y of the bird's eye view. */
+    double xAt(int side, double y) {
+        double[] c = fits[side];
+        return c[0] + (c[1] + c[2] * y) * y;
+    }
+
+    /** RMS distance of the points of the last accepted fit of side from its curve. */
+    double getResidual(int side) {
+        return residuals[side];
+    }
+
+    void reset() {
+        for (int side = LEFT; side <= RIGHT; side++) {
+            hasFit[side] = false;
+            tracking[side] = false;
+            misses[side] = 0;
+        }
+    }
+
+    /**
+     * Fits the lane points of one frame and folds the result into the kept fit.
+     * @param ys rows of the points
+     * @param xs columns of the points
+     * @param use which of the n points take part in the fit
+     * @param confidence fraction of the search bands where lane pixels were found
+     */
+    void update(int side, float[] ys, float[] xs, boolean[] use, int n, float confidence) {
+        if (!fit(ys, xs, use, n)) {
+            miss(side);
+            return;
+        }
+        double[] newFit = fitter.getCoefficients();
+        residuals[side] = fitter.getRmsResidual();
+        boolean confident = confidence >= MIN_CONFIDENCE && residuals[side] <= MAX_RESIDUAL;
+        double[] c = fits[side];
+        if (!hasFit[side] || (confident && !tracking[side])) {
+            // nothing to blend with, or the lane was just (re)acquired
+            System.arraycopy(newFit, 0, c, 0, c.length);
+            hasFit[side] = true;
+        } else {
+            // weak fits still nudge the kept one, just less
+            double alpha = confident ? SMOOTHING : SMOOTHING * confidence;
+            for (int i = 0; i < c.length; i++) {
+                c[i] += alpha * (newFit[i] - c[i]);
+            }
+        }
+        if (confident) {
+            tracking[side] = true;
+            misses[side] = 0;
+        } else {
+            miss(side);
+        }
+    }
+
+    /** Records a frame where the lane on side could not be confirmed. */
+    void miss(int side) {
+        if (++misses[side] > MAX_MISSES) tracking[side] = false;
+    }
+
+    private boolean fit(float[] ys, float[] xs, boolean[] use, int n) {
+        fitter.clear();
+        for (int i = 0; i < n; i++) {
+            if (use[i]) fitter.add(ys[i], xs[i]);
+        }
+        return fitter.fit();
+    }
+}
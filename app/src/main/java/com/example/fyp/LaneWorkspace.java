@@ -0,0 +1,41 @@
+package com.example.fyp;
+
+import org.opencv.core.Mat;
+
+/**
+ * The Mats the lane pipeline writes into on every frame.
+ *
+ * They start out empty and OpenCV allocates them on first use; after that every function
+ * writing into them finds the right size and type already there, so a running detector does not
+ * allocate native memory per frame. {@link #release()} frees all of it; if the workspace is
+ * used again afterwards the Mats are simply allocated again.
+ *
+ * Not thread-safe, owned by the lane worker.
+ */
+class LaneWorkspace {
+
+    /** RGBA copy of a Bitmap input. */
+    final Mat rgba = new Mat();
+    /** Gray scale frame, turned into the edge image in place. */
+    final Mat gray = new Mat();
+    final Mat hsv = new Mat();
+    final Mat maskWhite = new Mat();
+    final Mat maskYellow = new Mat();
+    final Mat maskLane = new Mat();
+    final Mat masked = new Mat();
+    final Mat blurred = new Mat();
+    /** Bird's eye view of the edge image. */
+    final Mat warped = new Mat();
+
+    void release() {
+        rgba.release();
+        gray.release();
+        hsv.release();
+        maskWhite.release();
+        maskYellow.release();
+        maskLane.release();
+        masked.release();
+        blurred.release();
+        warped.release();
+    }
+}
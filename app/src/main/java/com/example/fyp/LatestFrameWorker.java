@@ -0,0 +1,125 @@
+package com.example.fyp;
+
+import android.util.Log;
+
+import com.example.fyp.customutilities.FrameTimings;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs one model on a dedicated thread, always on the newest frame.
+ *
+ * Frames are handed over through a single-slot mailbox: {@link #offer(FrameBuffer)} atomically
+ * replaces whatever frame is still waiting (releasing the stale one), so work never queues up
+ * behind a slow model and the processor never runs twice at the same time.
+ */
+public class LatestFrameWorker {
+    private static final String TAG = "LatestFrameWorker";
+
+    /**
+     * Interface defining the work done for every frame. The frame is only valid during the call
+     * and must not be released by the processor.
+     */
+    public interface FrameProcessor {
+        public void process(final FrameBuffer frame);
+    }
+
+    private final String name;
+    private final FrameProcessor processor;
+    private final ExecutorService executor;
+    private final AtomicReference<FrameBuffer> mailbox = new AtomicReference<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final AtomicLong droppedFrames = new AtomicLong(0);
+
+    public LatestFrameWorker(final String name, FrameProcessor processor) {
+        this.name = name;
+        this.processor = processor;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name);
+            }
+        });
+    }
+
+    /**
+     * Hands a frame to the worker, which takes over the caller's reference to it. A frame that
+     * is still waiting in the mailbox is dropped in favour of the new one.
+     */
+    public void offer(FrameBuffer frame) {
+        FrameBuffer stale = mailbox.getAndSet(frame);
+        if (stale != null) {
+            stale.release();
+            droppedFrames.incrementAndGet();
+            FrameTimings.countDroppedFrame(FrameTimings.DropReason.SUPERSEDED);
+        }
+        scheduleDrain();
+    }
+
+    /** Number of frames that were replaced by a newer one before the model got to them. */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /** Stops the worker thread; a frame still waiting in the mailbox is released. */
+    public void shutdown() {
+        shutdown(null);
+    }
+
+    /**
+     * Same as {@link #shutdown()}, and runs finalTask on the worker thread once the frame that
+     * is being processed, if any, is done. Meant for freeing what the processor holds on to.
+     */
+    public void shutdown(Runnable finalTask) {
+        if (finalTask != null) {
+            try {
+                executor.execute(finalTask);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, String.format("shutdown: %s was already shut down", name));
+            }
+        }
+        executor.shutdown();
+        FrameBuffer pending = mailbox.getAndSet(null);
+        if (pending != null) pending.release();
+    }
+
+    private void scheduleDrain() {
+        if (!drainScheduled.compareAndSet(false, true)) return;
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) {
+            // shut down, nobody is going to pick the frame up
+            drainScheduled.set(false);
+            FrameBuffer pending = mailbox.getAndSet(null);
+            if (pending != null) pending.release();
+        }
+    }
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                FrameBuffer frame = mailbox.getAndSet(null);
+                if (frame == null) {
+                    drainScheduled.set(false);
+                    // a frame may have arrived between the getAndSet and clearing the flag
+                    if (mailbox.get() == null || !drainScheduled.compareAndSet(false, true)) return;
+                    continue;
+                }
+                try {
+                    processor.process(frame);
+                } catch (Exception e) {
+                    Log.e(TAG, String.format("run: %s failed to process frame", name), e);
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+    };
+}
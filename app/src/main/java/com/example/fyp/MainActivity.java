@@ -140,8 +140,6 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         SharedPreferences sp_bt = getSharedPreferences(getString(R.string.sp_blueTooth),0);
         String key_bt_conn = getString(R.string.sp_bt_key_isDeviceConnected);
         SharedPreferencesUtils.saveBool(sp_bt,key_bt_conn,false);
-        String key_bt_speed = getString(R.string.sp_bt_key_car_speed);
-        SharedPreferencesUtils.saveString(sp_bt,key_bt_speed,"25");
 
         SharedPreferences sp_hs = getSharedPreferences(getString(R.string.sp_homeSettings),0);
         String hs_preview_size = getString(R.string.sp_hs_key_previewSize);
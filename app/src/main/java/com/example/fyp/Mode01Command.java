@@ -0,0 +1,155 @@
+package com.example.fyp;
+
+import com.github.pires.obd.commands.ObdCommand;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads one or more current data (mode 01) PIDs in a single request, e.g. "01 0C 0D" for RPM
+ * and speed, which an ELM327 on a CAN car answers in one round trip.
+ *
+ * The answer may come from several ECUs and, with more than a few bytes, in several numbered
+ * frames; all of them are parsed and every requested PID found is decoded. PIDs the car did
+ * not answer stay NaN, so the caller can tell when it has to ask for them one at a time. The
+ * request never changes, so one instance is made per set of PIDs and run over and over.
+ */
+class Mode01Command extends ObdCommand {
+
+    /** The PIDs the app reads, with how many data bytes they answer with. */
+    enum Pid {
+        RPM(0x0C, 2, TelemetryBus.Channel.RPM),
+        SPEED(0x0D, 1, TelemetryBus.Channel.SPEED),
+        AMBIENT_TEMPERATURE(0x46, 1, TelemetryBus.Channel.AMBIENT_TEMPERATURE);
+
+        final int code;
+        final int length;
+        final TelemetryBus.Channel channel;
+
+        Pid(int code, int length, TelemetryBus.Channel channel) {
+            this.code = code;
+            this.length = length;
+            this.channel = channel;
+        }
+
+        /**
+         * The value from the first two data bytes, b is 0 for one byte PIDs. Formulas from
+         * SAE J1979.
+         */
+        float decode(int a, int b) {
+            switch (this) {
+                case RPM:
+                    return (a * 256 + b) / 4f;
+                case SPEED:
+                    return a;
+                default:
+                    return a - 40;
+            }
+        }
+    }
+
+    private static final int MODE_01_RESPONSE = 0x41;
+
+    private final Pid[] pids;
+    private final float[] values;
+
+    Mode01Command(Pid... pids) {
+        super(request(pids));
+        this.pids = pids.clone();
+        this.values = new float[pids.length];
+        Arrays.fill(values, Float.NaN);
+    }
+
+    private static String request(Pid[] pids) {
+        StringBuilder sb = new StringBuilder("01");
+        for (Pid p : pids) sb.append(String.format(Locale.US, " %02X", p.code));
+        return sb.toString();
+    }
+
+    Pid[] getPids() {
+        return pids;
+    }
+
+    /** Value of the i-th requested PID from the last run, NaN if it was not in the answer. */
+    float getValue(int i) {
+        return values[i];
+    }
+
+    @Override
+    protected void fillBuffer() {
+        String data = rawData.replaceAll("\\s", "").replaceAll("(BUSINIT)|(SEARCHING)|\\.", "");
+        // multi frame answers start with the byte count and number their frames "0:", "1:", ...
+        int count = -1;
+        int colon = data.indexOf(':');
+        if (colon > 0) {
+            count = parseHex(data, 0, colon - 1);
+            data = data.substring(colon - 1).replaceAll("[0-9A-F]:", "");
+        }
+        buffer.clear();
+        // the last frame is padded, the byte count tells where the answer ends
+        for (int i = 0; i + 2 <= data.length() && (count < 0 || buffer.size() < count); i += 2) {
+            int b = Character.digit(data.charAt(i), 16) << 4 | Character.digit(data.charAt(i + 1), 16);
+            if (b < 0) break;
+            buffer.add(b);
+        }
+    }
+
+    /** The hex number in data from start to end, -1 if there is none. */
+    private static int parseHex(String data, int start, int end) {
+        if (start >= end) return -1;
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            int d = Character.digit(data.charAt(i), 16);
+            if (d < 0) return -1;
+            n = n << 4 | d;
+        }
+        return n;
+    }
+
+    @Override
+    protected void performCalculations() {
+        Arrays.fill(values, Float.NaN);
+        int n = buffer.size();
+        int i = 0;
+        // one "41 pid data pid data ..." sequence per answering ECU
+        while (i < n && buffer.get(i) == MODE_01_RESPONSE) {
+            i++;
+            while (i < n) {
+                int k = indexOf(buffer.get(i));
+                // another ECU's answer, padding or a cut off answer
+                if (k < 0 || i + pids[k].length >= n) break;
+                int a = buffer.get(i + 1);
+                int b = pids[k].length > 1 ? buffer.get(i + 2) : 0;
+                values[k] = pids[k].decode(a, b);
+                i += 1 + pids[k].length;
+            }
+        }
+    }
+
+    private int indexOf(int code) {
+        for (int k = 0; k < pids.length; k++) {
+            if (pids[k].code == code) return k;
+        }
+        return -1;
+    }
+
+    @Override
+    public String getFormattedResult() {
+        return getCalculatedResult();
+    }
+
+    @Override
+    public String getCalculatedResult() {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < pids.length; k++) {
+            if (k > 0) sb.append(", ");
+            sb.append(pids[k].name()).append(' ').append(values[k]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String getName() {
+        return "Mode 01 " + Arrays.toString(pids);
+    }
+}
@@ -25,6 +25,8 @@ class MyTroubleCodesCommand extends TroubleCodesCommand {
      */
     @Override
     protected void performCalculations() {
+        // the command is reused, drop the codes of the previous run
+        codes.setLength(0);
         final String result = getResult();
         String workingData;
         int startIndex = 0;//Header size.
@@ -0,0 +1,162 @@
+package com.example.fyp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.pires.obd.exceptions.MisunderstoodCommandException;
+import com.github.pires.obd.exceptions.NoDataException;
+import com.github.pires.obd.exceptions.NonNumericResponseException;
+import com.github.pires.obd.exceptions.UnsupportedCommandException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Decides which OBD-II values to read from the ELM327 and when, and publishes them on the
+ * {@link TelemetryBus}.
+ *
+ * Every value has its own period: speed and RPM, which the distance and lane warnings use, as
+ * often as the link allows, the ambient temperature rarely and the trouble codes every few
+ * seconds, often enough for the crash codes that trigger the emergency SMS. The mode 01 values
+ * due at the same time are asked for in one request; if the car leaves some of them out of
+ * the answer, as older protocols do, or the adapter does not understand the request, as some
+ * ELM327 clones do, they are asked for one at a time for a while before a combined request is
+ * tried again. A value that goes unanswered several times in a row, because the car does not
+ * have it or its ECU is still waking up, is only asked for every few seconds until it answers
+ * again. The commands are made once per set of PIDs and reused.
+ *
+ * Not thread-safe, runs on the OBD reader's thread.
+ */
+class ObdPoller {
+    private static final String TAG = "ObdPoller";
+
+    private static final long FAST_PERIOD_MS = 100;
+    private static final long TEMPERATURE_PERIOD_MS = 10000;
+    private static final long TROUBLE_CODES_PERIOD_MS = 5000;
+    // a PID unanswered this many times in a row is only asked for every RETRY_PERIOD_MS
+    private static final int MAX_FAILURES = 10;
+    private static final long RETRY_PERIOD_MS = 10000;
+    // how long to read PIDs one at a time after a combined request was not answered in full
+    private static final long MULTI_PID_RETRY_MS = 60000;
+
+    private static final Mode01Command.Pid[] PIDS = Mode01Command.Pid.values();
+
+    private final long[] periodMs = new long[PIDS.length];
+    // next time each PID is due, 0 to read it right away
+    private final long[] dueMs = new long[PIDS.length];
+    // unanswered single PID requests in a row
+    private final int[] failures = new int[PIDS.length];
+    // one command per set of PIDs, indexed by the bit mask of their ordinals
+    private final Mode01Command[] requests = new Mode01Command[1 << PIDS.length];
+    // next time a combined request may be tried
+    private long multiPidDueMs = 0;
+
+    private final MyTroubleCodesCommand troubleCodes = new MyTroubleCodesCommand();
+    private long troubleCodesDueMs = 0;
+
+    ObdPoller() {
+        for (Mode01Command.Pid pid : PIDS) {
+            periodMs[pid.ordinal()] = pid == Mode01Command.Pid.AMBIENT_TEMPERATURE ?
+                    TEMPERATURE_PERIOD_MS : FAST_PERIOD_MS;
+        }
+    }
+
+    /**
+     * Reads and publishes everything that is due.
+     * @return the trouble codes if they were read this time, null otherwise
+     */
+    String pollDue(InputStream in, OutputStream out) throws IOException, InterruptedException {
+        long now = SystemClock.elapsedRealtime();
+        int due = 0;
+        // PIDs that went unanswered lately are asked for alone, so they do not spoil the rest
+        int combined = 0;
+        for (int i = 0; i < PIDS.length; i++) {
+            if (dueMs[i] <= now) {
+                due |= 1 << i;
+                if (failures[i] == 0) combined |= 1 << i;
+                dueMs[i] = now + periodMs[i];
+            }
+        }
+
+        int missing = due;
+        if (Integer.bitCount(combined) > 1 && multiPidDueMs <= now) {
+            missing = due & ~combined | read(combined, in, out);
+            if ((missing & combined) != 0) {
+                Log.d(TAG, String.format(Locale.US, "pollDue: multi PID request answered without "
+                        + "%x, reading PIDs one at a time for a while", missing & combined));
+                multiPidDueMs = now + MULTI_PID_RETRY_MS;
+            }
+        }
+        readEach(missing, now, in, out);
+
+        if (troubleCodesDueMs > now) return null;
+        troubleCodesDueMs = now + TROUBLE_CODES_PERIOD_MS;
+        troubleCodes.run(in, out);
+        String codes = troubleCodes.getFormattedResult();
+        TelemetryBus.publishText(TelemetryBus.Channel.TROUBLE_CODES, codes);
+        return codes;
+    }
+
+    /** Milliseconds until the next value is due. */
+    long getDelayMs() {
+        long next = troubleCodesDueMs;
+        for (long due : dueMs) {
+            next = Math.min(next, due);
+        }
+        return Math.max(0, next - SystemClock.elapsedRealtime());
+    }
+
+    private void readEach(int mask, long now, InputStream in, OutputStream out)
+            throws IOException, InterruptedException {
+        for (int i = 0; i < PIDS.length; i++) {
+            if ((mask & 1 << i) == 0 || read(1 << i, in, out) == 0) continue;
+            if (++failures[i] >= MAX_FAILURES) {
+                if (failures[i] == MAX_FAILURES) {
+                    Log.d(TAG, "readEach: no answer for " + PIDS[i] + ", asking every "
+                            + RETRY_PERIOD_MS + " ms");
+                }
+                dueMs[i] = now + RETRY_PERIOD_MS;
+            }
+        }
+    }
+
+    /**
+     * Reads the PIDs in mask with one request and publishes those in the answer. An error
+     * answer from the adapter counts as none of them answered.
+     * @return mask of the PIDs that were not in the answer
+     */
+    private int read(int mask, InputStream in, OutputStream out)
+            throws IOException, InterruptedException {
+        Mode01Command request = requests[mask];
+        if (request == null) {
+            Mode01Command.Pid[] pids = new Mode01Command.Pid[Integer.bitCount(mask)];
+            int n = 0;
+            for (int i = 0; i < PIDS.length; i++) {
+                if ((mask & 1 << i) != 0) pids[n++] = PIDS[i];
+            }
+            request = new Mode01Command(pids);
+            requests[mask] = request;
+        }
+        try {
+            request.run(in, out);
+        } catch (NoDataException | MisunderstoodCommandException | UnsupportedCommandException
+                | NonNumericResponseException e) {
+            Log.d(TAG, "read: " + request.getName() + " failed, " + e.getClass().getSimpleName());
+            return mask;
+        }
+        int missing = 0;
+        Mode01Command.Pid[] pids = request.getPids();
+        for (int k = 0; k < pids.length; k++) {
+            float value = request.getValue(k);
+            if (Float.isNaN(value)) {
+                missing |= 1 << pids[k].ordinal();
+            } else {
+                failures[pids[k].ordinal()] = 0;
+                TelemetryBus.publish(pids[k].channel, value);
+            }
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.fyp;
+
+/**
+ * Keeps objects alive between detector runs so the detector does not have to look at every
+ * frame.
+ *
+ * Detections are matched to existing tracks of the same class by IoU (greedy, best pair first).
+ * Every track has a constant velocity model on its centre, updated with an alpha-beta filter,
+ * so on frames where the detector is skipped the boxes are predicted forward instead of
+ * freezing. Tracks get a persistent id that callers can use to keep per-object state.
+ *
+ * The detection interval adapts: while every detection lands close to where its track was
+ * predicted the detector runs less often (up to every {@link #MAX_DETECTION_INTERVAL}th
+ * frame); as soon as an object appears, disappears or moves unexpectedly it goes back to
+ * running on every frame.
+ *
+ * All state is in primitive arrays and nothing is allocated per frame. Not thread-safe, it is
+ * meant to be owned by the detector worker.
+ */
+public class ObjectTracker {
+
+    // detections below this score neither start nor update tracks
+    private static final float MIN_SCORE = 0.4f;
+    // minimum IoU between a prediction and a detection to be the same object
+    private static final float MATCH_IOU = 0.3f;
+    // IoU a match needs for the prediction to count as good enough to skip frames
+    private static final float STABLE_IOU = 0.6f;
+    // detector runs a track may miss before it is dropped
+    private static final int MAX_MISSES = 2;
+    private static final int MAX_DETECTION_INTERVAL = 3;
+
+    // alpha-beta filter gains for position and velocity, size is only smoothed
+    private static final float ALPHA = 0.7f;
+    private static final float BETA = 0.3f;
+    private static final float SIZE_ALPHA = 0.6f;
+
+    private final int capacity;
+    private int count = 0;
+    private int nextId = 0;
+
+    // track state: centre, size and centre velocity in pixels per ms
+    private final float[] cx;
+    private final float[] cy;
+    private final float[] w;
+    private final float[] h;
+    private final float[] vx;
+    private final float[] vy;
+    private final int[] ids;
+    private final int[] classes;
+    private final float[] scores;
+    private final int[] misses;
+    private final boolean[] matched;
+
+    // scratch for matching
+    private final boolean[] detectionUsed;
+    private String[] labels;
+
+    private long lastTimestampMs = -1;
+    private long lastDetectionMs = -1;
+    private int detectionInterval = 1;
+    private int framesSinceDetection = 0;
+
+    public ObjectTracker(int capacity) {
+        this.capacity = capacity;
+        cx = new float[capacity];
+        cy = new float[capacity];
+        w = new float[capacity];
+        h = new float[capacity];
+        vx = new float[capacity];
+        vy = new float[capacity];
+        ids = new int[capacity];
+        classes = new int[capacity];
+        scores = new float[capacity];
+        misses = new int[capacity];
+        matched = new boolean[capacity];
+        detectionUsed = new boolean[capacity];
+    }
+
+    /** Whether the detector should run on the next frame or the tracks can be predicted. */
+    public boolean needsDetection() {
+        return count == 0 || framesSinceDetection + 1 >= detectionInterval;
+    }
+
+    public int getDetectionInterval() {
+        return detectionInterval;
+    }
+
+    public void reset() {
+        count = 0;
+        lastTimestampMs = -1;
+        lastDetectionMs = -1;
+        detectionInterval = 1;
+        framesSinceDetection = 0;
+    }
+
+    /** Moves every track to where its velocity puts it at timestampMs. */
+    public void predict(long timestampMs) {
+        if (lastTimestampMs >= 0) {
+            float dt = timestampMs - lastTimestampMs;
+            if (dt > 0) {
+                for (int t = 0; t < count; t++) {
+                    cx[t] += vx[t] * dt;
+                    cy[t] += vy[t] * dt;
+                }
+            }
+        }
+        lastTimestampMs = timestampMs;
+        framesSinceDetection++;
+    }
+
+    /** Predicts the tracks to timestampMs and corrects them with a new detector result. */
+    public void update(Detections detections, long timestampMs) {
+        // residuals build up over all frames since the last correction
+        float dt = lastDetectionMs >= 0 ? timestampMs - lastDetectionMs : 0;
+        predict(timestampMs);
+        lastDetectionMs = timestampMs;
+        framesSinceDetection = 0;
+        labels = detections.getLabels();
+
+        int n = Math.min(detections.size(), detectionUsed.length);
+        for (int d = 0; d < n; d++) {
+            detectionUsed[d] = detections.getScore(d) < MIN_SCORE;
+        }
+        for (int t = 0; t < count; t++) {
+            matched[t] = false;
+        }
+
+        // greedy matching, always taking the best remaining pair
+        boolean stable = true;
+        while (true) {
+            float bestIou = MATCH_IOU;
+            int bestTrack = -1;
+            int bestDetection = -1;
+            for (int t = 0; t < count; t++) {
+                if (matched[t]) continue;
+                for (int d = 0; d < n; d++) {
+                    if (detectionUsed[d] || detections.getClassIndex(d) != classes[t]) continue;
+                    float iou = iou(t, detections, d);
+                    if (iou > bestIou) {
+                        bestIou = iou;
+                        bestTrack = t;
+                        bestDetection = d;
+                    }
+                }
+            }
+            if (bestTrack < 0) break;
+            if (bestIou < STABLE_IOU) stable = false;
+            correct(bestTrack, detections, bestDetection, dt);
+            matched[bestTrack] = true;
+            detectionUsed[bestDetection] = true;
+        }
+
+        // lost tracks coast on their velocity for a few runs before they are dropped
+        for (int t = count - 1; t >= 0; t--) {
+            if (matched[t]) continue;
+            stable = false;
+            if (++misses[t] > MAX_MISSES) remove(t);
+        }
+
+        // whatever is left is a new object
+        for (int d = 0; d < n; d++) {
+            if (detectionUsed[d]) continue;
+            stable = false;
+            if (count < capacity) start(detections, d);
+        }
+
+        detectionInterval = stable ? Math.min(detectionInterval + 1, MAX_DETECTION_INTERVAL) : 1;
+    }
+
+    /** Writes the current tracks into out, with their track ids. */
+    public void getTracks(Detections out) {
+        out.clear();
+        out.setLabels(labels);
+        for (int t = 0; t < count; t++) {
+            float hw = w[t] / 2;
+            float hh = h[t] / 2;
+            out.add(cx[t] - hw, cy[t] - hh, cx[t] + hw, cy[t] + hh, classes[t], scores[t], ids[t]);
+        }
+    }
+
+    private void correct(int t, Detections detections, int d, float dt) {
+        float mx = (detections.getLeft(d) + detections.getRight(d)) / 2;
+        float my = (detections.getTop(d) + detections.getBottom(d)) / 2;
+        float rx = mx - cx[t];
+        float ry = my - cy[t];
+        cx[t] += ALPHA * rx;
+        cy[t] += ALPHA * ry;
+        if (dt > 0) {
+            vx[t] += BETA * rx / dt;
+            vy[t] += BETA * ry / dt;
+        }
+        w[t] += SIZE_ALPHA * ((detections.getRight(d) - detections.getLeft(d)) - w[t]);
+        h[t] += SIZE_ALPHA * ((detections.getBottom(d) - detections.getTop(d)) - h[t]);
+        scores[t] = detections.getScore(d);
+        misses[t] = 0;
+    }
+
+    private void start(Detections detections, int d) {
+        int t = count++;
+        cx[t] = (detections.getLeft(d) + detections.getRight(d)) / 2;
+        cy[t] = (detections.getTop(d) + detections.getBottom(d)) / 2;
+        w[t] = detections.getRight(d) - detections.getLeft(d);
+        h[t] = detections.getBottom(d) - detections.getTop(d);
+        vx[t] = 0;
+        vy[t] = 0;
+        ids[t] = nextId++;
+        classes[t] = detections.getClassIndex(d);
+        scores[t] = detections.getScore(d);
+        misses[t] = 0;
+        matched[t] = true;
+    }
+
+    /** Removes track t by moving the last track into its place. */
+    private void remove(int t) {
+        int last = --count;
+        if (t == last) return;
+        cx[t] = cx[last];
+        cy[t] = cy[last];
+        w[t] = w[last];
+        h[t] = h[last];
+        vx[t] = vx[last];
+        vy[t] = vy[last];
+        ids[t] = ids[last];
+        classes[t] = classes[last];
+        scores[t] = scores[last];
+        misses[t] = misses[last];
+        matched[t] = matched[last];
+    }
+
+    private float iou(int t, Detections detections, int d) {
+        float left = Math.max(cx[t] - w[t] / 2, detections.getLeft(d));
+        float top = Math.max(cy[t] - h[t] / 2, detections.getTop(d));
+        float right = Math.min(cx[t] + w[t] / 2, detections.getRight(d));
+        float bottom = Math.min(cy[t] + h[t] / 2, detections.getBottom(d));
+        if (right <= left || bottom <= top) return 0;
+        float intersection = (right - left) * (bottom - top);
+        float areaD = (detections.getRight(d) - detections.getLeft(d)) *
+                (detections.getBottom(d) - detections.getTop(d));
+        return intersection / (w[t] * h[t] + areaD - intersection);
+    }
+}
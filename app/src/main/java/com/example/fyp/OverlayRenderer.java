@@ -0,0 +1,125 @@
+package com.example.fyp;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+/**
+ * Drawing helpers for the overlay callbacks that do not allocate once they are warmed up.
+ *
+ * Sprites are decoded from their drawable the first time they are drawn and then kept, and
+ * they are scaled by the canvas through a matrix instead of into a new Bitmap. Labels are put
+ * together in one reused StringBuilder and the lane area in one reused Path.
+ *
+ * UI thread only.
+ */
+class OverlayRenderer {
+
+    private final Resources resources;
+    private final SparseArray<Bitmap> sprites = new SparseArray<>();
+    private final Matrix spriteMatrix = new Matrix();
+    private final RectF spriteSource = new RectF();
+    private final RectF spriteTarget = new RectF();
+    private final StringBuilder text = new StringBuilder();
+    private final Path laneArea = new Path();
+
+    OverlayRenderer(Resources resources) {
+        this.resources = resources;
+    }
+
+    /** The decoded drawable, decoded only on the first call. Null if it can not be decoded. */
+    Bitmap getSprite(int resId) {
+        Bitmap sprite = sprites.get(resId);
+        if (sprite == null) {
+            sprite = BitmapFactory.decodeResource(resources, resId);
+            if (sprite != null) sprites.put(resId, sprite);
+        }
+        return sprite;
+    }
+
+    /** Draws the drawable stretched over the rectangle from left, top to right, bottom. */
+    void drawSprite(Canvas canvas, int resId, float left, float top, float right, float bottom,
+                    Paint paint) {
+        if (right <= left || bottom <= top) return;
+        Bitmap sprite = getSprite(resId);
+        if (sprite == null) return;
+        spriteSource.set(0, 0, sprite.getWidth(), sprite.getHeight());
+        spriteTarget.set(left, top, right, bottom);
+        spriteMatrix.setRectToRect(spriteSource, spriteTarget, Matrix.ScaleToFit.FILL);
+        canvas.drawBitmap(sprite, spriteMatrix, paint);
+    }
+
+    /**
+     * Draws the drawable transformed by matrix, moved to left, top and cut off at width and
+     * height from there.
+     */
+    void drawSprite(Canvas canvas, int resId, Matrix matrix, float left, float top,
+                    float width, float height, Paint paint) {
+        Bitmap sprite = getSprite(resId);
+        if (sprite == null) return;
+        canvas.save();
+        canvas.translate(left, top);
+        canvas.clipRect(0, 0, width, height);
+        canvas.drawBitmap(sprite, matrix, paint);
+        canvas.restore();
+    }
+
+    /** Draws "label , score %" with the score in percent and one decimal. */
+    void drawScore(Canvas canvas, String label, float score, float x, float y, Paint paint) {
+        text.setLength(0);
+        text.append(label).append(" , ");
+        appendOneDecimal(text, score * 100);
+        text.append(" %");
+        canvas.drawText(text, 0, text.length(), x, y, paint);
+    }
+
+    /** Draws the distance in metres with one decimal. */
+    void drawDistance(Canvas canvas, float metres, float x, float y, Paint paint) {
+        text.setLength(0);
+        appendOneDecimal(text, metres);
+        text.append(" m");
+        canvas.drawText(text, 0, text.length(), x, y, paint);
+    }
+
+    /** Draws the label followed by the value. */
+    void drawNumber(Canvas canvas, String label, long value, float x, float y, Paint paint) {
+        text.setLength(0);
+        text.append(label).append(value);
+        canvas.drawText(text, 0, text.length(), x, y, paint);
+    }
+
+    /**
+     * Fills the area between the snapshot's lanes, with departingPaint while the car is
+     * leaving its lane.
+     */
+    void drawLaneArea(Canvas canvas, OverlaySnapshot snapshot, Paint paint, Paint departingPaint) {
+        if (snapshot.getLaneArea(laneArea)) {
+            canvas.drawPath(laneArea, snapshot.isDeparting() ? departingPaint : paint);
+        }
+    }
+
+    /** Rounds like %.1f but appends without a Formatter. */
+    private static void appendOneDecimal(StringBuilder sb, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            sb.append(value);
+            return;
+        }
+        long tenths = Math.round(Math.abs(value) * 10.0);
+        if (value < 0 && tenths > 0) sb.append('-');
+        sb.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    /** Frees the decoded sprites, they are decoded again if the renderer is used afterwards. */
+    void release() {
+        for (int i = 0; i < sprites.size(); i++) {
+            sprites.valueAt(i).recycle();
+        }
+        sprites.clear();
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.fyp;
+
+import android.graphics.Path;
+import android.graphics.PointF;
+
+import java.util.List;
+
+/**
+ * Everything the overlay draws at one moment: the latest results of every worker.
+ *
+ * A snapshot never changes once it is published by {@link OverlayState}; a worker with a new
+ * result builds a new snapshot that shares the other workers' parts with the previous one. The
+ * UI thread can therefore read one without locks while the workers carry on, and sees either
+ * the old or the new result of a worker, never a mix. Do not modify the {@link Detections}
+ * returned by the getters.
+ */
+final class OverlaySnapshot {
+
+    static final OverlaySnapshot EMPTY = new OverlaySnapshot(null, null, null, null, null, false);
+
+    private final Detections objects;
+    // distance of every object in metres, NaN where none was measured
+    private final float[] distances;
+    private final Detections signs;
+    // lane points in frame coordinates as x, y pairs, null when the lanes were not found
+    private final float[] leftLane;
+    private final float[] rightLane;
+    private final boolean departing;
+
+    private OverlaySnapshot(Detections objects, float[] distances, Detections signs,
+                            float[] leftLane, float[] rightLane, boolean departing) {
+        this.objects = objects;
+        this.distances = distances;
+        this.signs = signs;
+        this.leftLane = leftLane;
+        this.rightLane = rightLane;
+        this.departing = departing;
+    }
+
+    /** Tracked objects, null before the first result. */
+    Detections getObjects() {
+        return objects;
+    }
+
+    /** Distance of object i in metres, NaN if it was not measured. */
+    float getDistance(int i) {
+        return distances == null ? Float.NaN : distances[i];
+    }
+
+    /** Traffic signs, null before the first result. */
+    Detections getSigns() {
+        return signs;
+    }
+
+    boolean hasLanes() {
+        return leftLane != null && rightLane != null;
+    }
+
+    /** Whether the car was leaving its lane when the lanes were published. */
+    boolean isDeparting() {
+        return departing;
+    }
+
+    /**
+     * Sets path to the area between the lanes, closed by a horizontal edge at the bottom and
+     * the top.
+     * @return false, leaving path empty, if there are no lanes
+     */
+    boolean getLaneArea(Path path) {
+        path.reset();
+        if (!hasLanes()) return false;
+        int lastLeft = leftLane.length - 2;
+        int lastRight = rightLane.length - 2;
+        float bottom = Math.max(leftLane[lastLeft + 1], rightLane[lastRight + 1]);
+        float top = Math.min(leftLane[1], rightLane[1]);
+        path.moveTo(leftLane[lastLeft], bottom);
+        path.lineTo(rightLane[lastRight], bottom);
+        path.lineTo(rightLane[0], top);
+        path.lineTo(leftLane[0], top);
+        path.close();
+        return true;
+    }
+
+    /**
+     * @param distances distance of every object in metres, NaN where none was measured; null
+     *                  if none were
+     */
+    OverlaySnapshot withObjects(Detections objects, float[] distances) {
+        float[] d = null;
+        if (objects != null && distances != null) {
+            d = new float[objects.size()];
+            System.arraycopy(distances, 0, d, 0, d.length);
+        }
+        return new OverlaySnapshot(copyOf(objects), d, signs, leftLane, rightLane, departing);
+    }
+
+    OverlaySnapshot withSigns(Detections signs) {
+        return new OverlaySnapshot(objects, distances, copyOf(signs), leftLane, rightLane, departing);
+    }
+
+    /** The lists are copied, a side with fewer than two points counts as not found. */
+    OverlaySnapshot withLanes(List<PointF> left, List<PointF> right, boolean departing) {
+        float[] l = copyOf(left);
+        float[] r = copyOf(right);
+        if (l == null || r == null) l = r = null;
+        return new OverlaySnapshot(objects, distances, signs, l, r, departing);
+    }
+
+    private static Detections copyOf(Detections detections) {
+        if (detections == null) return null;
+        Detections copy = new Detections(detections.getCapacity());
+        copy.copyFrom(detections);
+        return copy;
+    }
+
+    private static float[] copyOf(List<PointF> points) {
+        if (points == null || points.size() < 2) return null;
+        float[] copy = new float[points.size() * 2];
+        for (int i = 0; i < points.size(); i++) {
+            PointF p = points.get(i);
+            copy[i * 2] = p.x;
+            copy[i * 2 + 1] = p.y;
+        }
+        return copy;
+    }
+}
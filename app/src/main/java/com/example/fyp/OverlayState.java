@@ -0,0 +1,51 @@
+package com.example.fyp;
+
+import android.graphics.PointF;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the workers' results to the overlay as {@link OverlaySnapshot}s.
+ *
+ * Each publish builds the next snapshot off to the side and swaps it in with a compare and set,
+ * retrying if another worker published in between, so no worker waits for another or for the
+ * UI thread, and a drawing pass that started on the previous snapshot keeps it intact until it
+ * is done.
+ */
+class OverlayState {
+
+    private final AtomicReference<OverlaySnapshot> latest =
+            new AtomicReference<>(OverlaySnapshot.EMPTY);
+
+    /** The latest snapshot, never null. */
+    OverlaySnapshot get() {
+        return latest.get();
+    }
+
+    /** See {@link OverlaySnapshot#withObjects(Detections, float[])}. */
+    void publishObjects(Detections objects, float[] distances) {
+        OverlaySnapshot current;
+        do {
+            current = latest.get();
+        } while (!latest.compareAndSet(current, current.withObjects(objects, distances)));
+    }
+
+    void publishSigns(Detections signs) {
+        OverlaySnapshot current;
+        do {
+            current = latest.get();
+        } while (!latest.compareAndSet(current, current.withSigns(signs)));
+    }
+
+    void publishLanes(List<PointF> left, List<PointF> right, boolean departing) {
+        OverlaySnapshot current;
+        do {
+            current = latest.get();
+        } while (!latest.compareAndSet(current, current.withLanes(left, right, departing)));
+    }
+
+    void clear() {
+        latest.set(OverlaySnapshot.EMPTY);
+    }
+}
@@ -4,10 +4,7 @@ package com.example.fyp;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.RectF;
 import android.os.Trace;
 import android.util.Log;
@@ -15,20 +12,16 @@ import android.util.Log;
 
 import org.jetbrains.annotations.NotNull;
 import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.gpu.GpuDelegate;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
 
+import com.example.fyp.customutilities.FrameTimings;
+import com.example.fyp.customutilities.ImagePreprocessor;
 import com.example.fyp.customutilities.ImageUtilities;
 public class SignDetector{
 
@@ -37,7 +30,7 @@ public class SignDetector{
     private static final float THRESHOLD_SCORE = 0.9f;
     public static final String SIGN_CLASSIFIER_MODEL = "traffic_nomalized.tflite";//"traffic.tflite";//"gtsrb.lite";
 //    public static final String SIGN_CLASSIFIER_MODEL = "traffic.tflite";
-    private static final String SIGN_CLASSIFIER_LABEL = "gtsrb_label.txt";
+    public static final String SIGN_CLASSIFIER_LABEL = "gtsrb_label.txt";
     public static final int SIGN_CLASSIFIER_INPUT_SIZE = 30;//224;
     private static final Boolean SIGN_CLASSIFIER_IS_QUANTIZED = false;
     //only for Sign Classifier model
@@ -61,16 +54,32 @@ public class SignDetector{
     private Matrix frameToCrop;
     private Matrix cropToFrame;
 
-    private int[] intValues;
-
-    private Vector<String> labels = new Vector<String>();
-
-    //output of sign classifier
-    private float[][] outputScore_sign_classifier;
-    private ByteBuffer imgData;
+    // RGB888 copy of the image candidates are cropped from, only filled when there are any
+    private byte[] sourceRgb;
+    // only for the Bitmap entry points
+    private int[] sourcePixels;
+
+    private String[] labels;
+    // results of the last run, reused
+    private Detections signs;
+    private final RectF location = new RectF();
+
+    // the classifier runs once per frame on a [batch, 30, 30, 3] tensor holding every candidate
+    private static final int MAX_BATCH = Detector.getMaxDetections();
+    // batch size the interpreter's input is resized to, it only grows
+    private int currentBatch = 1;
+    // candidate (index into the detector results) of every batch slot
+    private int[] batchCandidates;
+    // class of every batch slot after classification
+    private int[] batchClasses;
+
+    //output of sign classifier, [batch, NUM_CLASS_FOR_SIGN] floats
+    private ByteBuffer outputScore_sign_classifier;
+    private ImagePreprocessor preprocessor;
 //    private ByteBuffer outputBuffer;
 //    private int[] outputValues;
 
+    private InferenceBackend backend;
     private Interpreter tfLite;
     private SignDetector(){}
 
@@ -89,22 +98,43 @@ public class SignDetector{
 
 
     public static SignDetector create(AssetManager assetManager ,int srcWidth,int srcHeight) throws IOException{
-        SignDetector s = new SignDetector();
-        s.detector =  Detector.create(assetManager,Detector.SIGN_DETECTOR_MODEL,srcWidth,  srcHeight);
+        return create(assetManager, srcWidth, srcHeight,
+                InferenceBackend.Options.defaults(), InferenceBackend.Options.defaults());
+    }
 
+    /**
+     * @param detectorOptions backend for the sign detector model
+     * @param classifierOptions backend for the sign classifier model
+     */
+    public static SignDetector create(AssetManager assetManager ,int srcWidth,int srcHeight,
+                                      InferenceBackend.Options detectorOptions,
+                                      InferenceBackend.Options classifierOptions) throws IOException{
+        Detector detector = Detector.create(assetManager,Detector.SIGN_DETECTOR_MODEL,srcWidth,
+                srcHeight, detectorOptions);
         try {
-//            GpuDelegate delegate = new GpuDelegate();
-//            Interpreter.Options options = (new Interpreter.Options()).addDelegate(delegate);
-//            s.tfLite = new Interpreter(loadModelFile(assetManager), options);
-            s.tfLite = new Interpreter(loadModelFile(assetManager));
-        } catch (Exception e) {
-            Log.e(TAG, "create: Exception when loading tflite interpreter with gpu option now trying with gpu option");
-            try {
-                s.tfLite = new Interpreter(loadModelFile(assetManager));
-            } catch (Exception ex){
-                throw e;
-            }
+            return create(detector, loadModelFile(assetManager),
+                    Detector.loadLabels(assetManager, SIGN_CLASSIFIER_LABEL), srcWidth, srcHeight,
+                    classifierOptions);
+        } catch (IOException | RuntimeException e) {
+            detector.close();
+            throw e;
         }
+    }
+
+    /**
+     * Same as {@link #create(AssetManager, int, int, InferenceBackend.Options,
+     * InferenceBackend.Options)} with the models already loaded, e.g. from files by a benchmark.
+     * @param detector made from {@link Detector#SIGN_DETECTOR_MODEL}, closed with this one
+     */
+    public static SignDetector create(Detector detector, ByteBuffer classifierModel,
+                                      String[] classifierLabels, int srcWidth, int srcHeight,
+                                      InferenceBackend.Options classifierOptions) {
+        SignDetector s = new SignDetector();
+        s.detector = detector;
+
+        s.backend = InferenceBackend.create(classifierModel, SIGN_CLASSIFIER_MODEL,
+                classifierOptions);
+        s.tfLite = s.backend.getInterpreter();
         s.srcWidth = srcWidth;
         s.srcHeight = srcHeight;
         s.width = SIGN_CLASSIFIER_INPUT_SIZE;
@@ -122,159 +152,174 @@ public class SignDetector{
                 0,false
         );
 
+        s.labels = classifierLabels;
+        s.signs = new Detections(Detector.getMaxDetections());
+        s.signs.setLabels(s.labels);
 
-        InputStream labelsInput = null;
-        labelsInput = assetManager.open(SIGN_CLASSIFIER_LABEL);
-        BufferedReader br = null;
-        br = new BufferedReader(new InputStreamReader(labelsInput));
-        String line;
-        while ((line = br.readLine()) != null) {
-//            Log.w(TAG,line);
-            s.labels.add(line.toLowerCase().trim());
-        }
-        br.close();
-
-        int numBytesPerChannel;
-        if (s.isModelQuantized) {
-            numBytesPerChannel = 1; // Quantized
-        } else {
-            numBytesPerChannel = 4; // Floating point
-        }
-        int BATCH_SIZE = 1;
-        s.imgData = ByteBuffer.allocateDirect(BATCH_SIZE * SIGN_CLASSIFIER_INPUT_SIZE *
-                                                SIGN_CLASSIFIER_INPUT_SIZE * 3 * numBytesPerChannel);
-        s.imgData.order(ByteOrder.nativeOrder());
-        s.intValues = new int[s.width * s.height];
-        s.outputScore_sign_classifier = new float[1][NUM_CLASS_FOR_SIGN];
+        s.preprocessor = new ImagePreprocessor(s.width, s.height, MAX_BATCH, s.isModelQuantized,
+                IMAGE_MEAN, IMAGE_STD);
+        s.outputScore_sign_classifier = ByteBuffer.allocateDirect(MAX_BATCH * NUM_CLASS_FOR_SIGN * 4);
+        s.outputScore_sign_classifier.order(ByteOrder.nativeOrder());
+        s.batchCandidates = new int[MAX_BATCH];
+        s.batchClasses = new int[MAX_BATCH];
 
         return s;
     }
 
-    private void setImageData(final Bitmap bmp){
-        // Log this method so that it can be analyzed with systrace.
-        Trace.beginSection("recognizeImage");
-
-        Trace.beginSection("preprocessBitmap");
-        // Preprocess the image data from 0-255 int to normalized float based
-        // on the provided parameters.
-        bmp.getPixels(intValues, 0, bmp.getWidth(), 0, 0, bmp.getWidth(), bmp.getHeight());
-
-        imgData.rewind();
-
-        for (int i = 0; i < width; ++i) {
-            for (int j = 0; j < height; ++j) {
-                int pixelValue = intValues[i * width + j];
-                if (isModelQuantized) {
-                    // Quantized model
-                    imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-                    imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-                    imgData.put((byte) (pixelValue & 0xFF));
-                } else { // Float model
-                    imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                }
-            }
-        }
-        Trace.endSection(); // preprocessBitmap
+    /** Frees both interpreters and any GPU delegates. The detector can not be used afterwards. */
+    public void close() {
+        detector.close();
+        backend.close();
+    }
+
+    /** Backend of the sign detector model. */
+    public InferenceBackend getDetectorBackend() {
+        return detector.getBackend();
+    }
+
+    /** Backend of the sign classifier model. */
+    public InferenceBackend getClassifierBackend() {
+        return backend;
     }
 
     public String runOnlyClassification(Bitmap bmp,boolean allowToRecycle){
-        Bitmap resized = ImageUtilities.getResizedBitmap(bmp,SignDetector.SIGN_CLASSIFIER_INPUT_SIZE,
-                SignDetector.SIGN_CLASSIFIER_INPUT_SIZE,false);
-        setImageData(resized);
-        String rec = recognizeSign();
-        if (!resized.isRecycled())resized.recycle();
+        int w = bmp.getWidth();
+        int h = bmp.getHeight();
+        setSourceImage(bmp);
+        preprocessor.packCrop(0, sourceRgb, w, h, 0, 0, w, h);
+        recognizeSigns(1);
+        String rec = labels[batchClasses[0]];
         if (!bmp.isRecycled() && allowToRecycle) bmp.recycle();
         return rec;
     }
 
-    public List<RecognizedObject> run(@NotNull Bitmap bmp,boolean allowToRecycleBitmap) {
-        List<RecognizedObject> recognizedObjects = new ArrayList<>();
-        List<RecognizedObject> recognizedObjects_temp = detector.run(
-                bmp,false);
+    /**
+     * Runs sign detection on an RGB frame. The frame's pixels are only read back when at least
+     * one candidate passes {@link #THRESHOLD_SCORE}, which is rare, so the common case does no
+     * pixel copies at all.
+     *
+     * @return the classified signs, overwritten by the next run
+     */
+    public Detections run(@NotNull FrameBuffer frame) {
+        Detections candidates = detector.run(frame);
+        boolean hasCandidate = false;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (candidates.getScore(i) >= THRESHOLD_SCORE) {
+                hasCandidate = true;
+                break;
+            }
+        }
+        signs.clear();
+        if (!hasCandidate) return signs;
 
-        Bitmap resizeBitmap = null;
-        Bitmap croppedBmp = null ;
-        RectF location;
-        String label;
-        for (RecognizedObject rc :
-                recognizedObjects_temp) {
+        if (sourceRgb == null || sourceRgb.length != frame.getByteSize()) {
+            sourceRgb = new byte[frame.getByteSize()];
+        }
+        frame.getBytes(sourceRgb);
+        classifyCandidates(frame.getWidth(), frame.getHeight(), candidates);
+        return signs;
+    }
 
-            if(rc.getScore() >= THRESHOLD_SCORE) {
-                Log.d(TAG, "run: sign score = "+rc.getScore());
+    public List<RecognizedObject> run(@NotNull Bitmap bmp,boolean allowToRecycleBitmap) {
+        signs.clear();
+        Detections candidates = detector.detect(bmp);
+        setSourceImage(bmp);
+        classifyCandidates(bmp.getWidth(), bmp.getHeight(), candidates);
+        if (!bmp.isRecycled() && allowToRecycleBitmap) bmp.recycle();
+        return signs.toRecognizedObjects();
+    }
 
+    /** Unpacks a bitmap into sourceRgb so it can be cropped like a frame. */
+    private void setSourceImage(Bitmap bmp) {
+        int w = bmp.getWidth();
+        int h = bmp.getHeight();
+        if (sourcePixels == null || sourcePixels.length != w * h) {
+            sourcePixels = new int[w * h];
+        }
+        if (sourceRgb == null || sourceRgb.length != w * h * 3) {
+            sourceRgb = new byte[w * h * 3];
+        }
+        bmp.getPixels(sourcePixels, 0, w, 0, 0, w, h);
+        int b = 0;
+        for (int pixelValue : sourcePixels) {
+            sourceRgb[b++] = (byte) (pixelValue >> 16);
+            sourceRgb[b++] = (byte) (pixelValue >> 8);
+            sourceRgb[b++] = (byte) pixelValue;
+        }
+    }
 
-                location = rc.getLocation();
+    /**
+     * Crops every candidate above the threshold out of sourceRgb, which holds an image of the
+     * detector's input size, straight into the classifier's batch and classifies them at once.
+     */
+    private void classifyCandidates(int sourceWidth, int sourceHeight, Detections candidates) {
+        int batch = 0;
+        long wallStart = FrameTimings.wallNow();
+        long cpuStart = FrameTimings.cpuNow();
+        Trace.beginSection("cropCandidates");
+        for (int i = 0; i < candidates.size() && batch < MAX_BATCH; i++) {
+
+            if(candidates.getScore(i) >= THRESHOLD_SCORE) {
+                candidates.getBox(i, location);
                 // increasing location
                 location.set(location.left,location.top - 10 < 0 ? 0 : location.top - 10,location.right,location.bottom);
                 frameToCrop.mapRect(location);
 
-
-                croppedBmp = getCropBitmapByCPU(bmp,
-                        location,false);
-
-                resizeBitmap = ImageUtilities.getResizedBitmap(croppedBmp,
-                        width,height,
-                        true);
-//                createCustomFile(resizeBitmap,rc.getLabel()+Calendar.getInstance().getTime());
-                setImageData(resizeBitmap);
-                label = recognizeSign();
-                Log.d(TAG, "run: sign label = "+ label);
-
-                cropToFrame.mapRect(location);
-                recognizedObjects.add(
-                        new RecognizedObject(
-                                "" + rc.getId(),   label,
-                                rc.getScore(),         location  )
-                );
-                Log.d(TAG, "run: label : "+rc.getLabel());
-
-                if (!resizeBitmap.isRecycled()) resizeBitmap.recycle();
-                if (!croppedBmp.isRecycled()) croppedBmp.recycle();
+                preprocessor.packCrop(batch, sourceRgb, sourceWidth, sourceHeight,
+                        location.left, location.top, location.right, location.bottom);
+                batchCandidates[batch++] = i;
             }
         }
-        if (!bmp.isRecycled() && allowToRecycleBitmap) bmp.recycle();
-        return recognizedObjects;
+        Trace.endSection(); // cropCandidates
+        if (batch == 0) return;
+
+        recognizeSigns(batch);
+        FrameTimings.record(FrameTimings.Stage.SIGN_CLASSIFY, wallStart, cpuStart);
+        for (int k = 0; k < batch; k++) {
+            int i = batchCandidates[k];
+            candidates.getBox(i, location);
+            // same box the crop was taken from
+            location.set(location.left,location.top - 10 < 0 ? 0 : location.top - 10,location.right,location.bottom);
+            signs.add(location.left, location.top, location.right, location.bottom,
+                    batchClasses[k], candidates.getScore(i));
+        }
     }
 
 
-    private String recognizeSign() {
+    /**
+     * Classifies the first batch images of the input tensor in one interpreter call and stores
+     * the most likely sign class of each in batchClasses.
+     *
+     * A resize reallocates the tensors and makes a GPU or NNAPI delegate prepare the graph
+     * again, so the input is only ever grown, in powers of two, and the slots past batch are
+     * classified along with the rest and ignored.
+     */
+    private void recognizeSigns(int batch) {
+        if (batch > currentBatch) {
+            int size = currentBatch;
+            while (size < batch) size *= 2;
+            currentBatch = Math.min(size, MAX_BATCH);
+            tfLite.resizeInput(0, new int[]{currentBatch, height, width, 3});
+        }
 
         // Run the inference call.
         Trace.beginSection("run");
-        tfLite.run(imgData,outputScore_sign_classifier);
+        outputScore_sign_classifier.rewind();
+        tfLite.run(preprocessor.getBatch(currentBatch),outputScore_sign_classifier);
         Trace.endSection();
 
-        int j=0;
-        int max_index = 0;
-        float max = outputScore_sign_classifier[j][0];
-        for(int i=0; i < labels.size(); i++){
-            if(max < outputScore_sign_classifier[j][i]){
-                max = outputScore_sign_classifier[j][i];
-                max_index = i;
+        for (int j = 0; j < batch; j++) {
+            int row = j * NUM_CLASS_FOR_SIGN * 4;
+            int max_index = 0;
+            float max = outputScore_sign_classifier.getFloat(row);
+            for(int i=1; i < labels.length; i++){
+                float score = outputScore_sign_classifier.getFloat(row + i * 4);
+                if(max < score){
+                    max = score;
+                    max_index = i;
+                }
             }
+            batchClasses[j] = max_index;
         }
-        return labels.get(max_index);
-    }
-    private static Bitmap getCropBitmapByCPU(Bitmap source, RectF cropRectF, boolean allowToRecycleBitmap) {
-        Bitmap resultBitmap = Bitmap.createBitmap((int) cropRectF.width(),
-                (int) cropRectF.height(), Bitmap.Config.ARGB_8888);
-        Canvas cavas = new Canvas(resultBitmap);
-
-        // draw background
-        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-        paint.setColor(Color.WHITE);
-        cavas.drawRect(
-                new RectF(0, 0, cropRectF.width(), cropRectF.height()),
-                paint);
-
-        Matrix matrix = new Matrix();
-        matrix.postTranslate(-cropRectF.left, -cropRectF.top);
-
-        cavas.drawBitmap(source, matrix, paint);
-
-        if (!source.isRecycled() && allowToRecycleBitmap) source.recycle();
-        return resultBitmap;
     }
 }
@@ -0,0 +1,124 @@
+package com.example.fyp;
+
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process wide bus for the car's OBD-II telemetry.
+ *
+ * The OBD reader publishes every value it reads; each {@link Channel} keeps its latest
+ * {@link Reading} in an atomic slot that any thread can read without locking, and subscribed
+ * {@link Listener}s are called right away. Nothing is written to storage, so a consumer that
+ * wants the speed gets it when it changes instead of polling for it.
+ */
+class TelemetryBus {
+
+    enum Channel {
+        /** engine speed, rpm */
+        RPM,
+        /** vehicle speed, km/h */
+        SPEED,
+        /** ambient air temperature, degrees Celsius */
+        AMBIENT_TEMPERATURE,
+        /** stored trouble codes as text, one per line */
+        TROUBLE_CODES;
+
+        private final AtomicReference<Reading> latest = new AtomicReference<>();
+    }
+
+    /** One value of a channel, immutable. */
+    static final class Reading {
+        final Channel channel;
+        /** the value, NaN for text channels and once the reader is disconnected */
+        final float value;
+        /** the text of a text channel, null otherwise */
+        final String text;
+        /** {@link SystemClock#elapsedRealtime()} when it was read */
+        final long timestampMs;
+
+        Reading(Channel channel, float value, String text, long timestampMs) {
+            this.channel = channel;
+            this.value = value;
+            this.text = text;
+            this.timestampMs = timestampMs;
+        }
+    }
+
+    /** Called on the reader's thread, so it has to return quickly. */
+    interface Listener {
+        void onReading(Reading reading);
+    }
+
+    private static class Subscription {
+        final Listener listener;
+        final Channel[] channels;
+
+        Subscription(Listener listener, Channel[] channels) {
+            this.listener = listener;
+            this.channels = channels;
+        }
+
+        boolean wants(Channel channel) {
+            for (Channel c : channels) {
+                if (c == channel) return true;
+            }
+            return false;
+        }
+    }
+
+    private static final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private TelemetryBus() {
+    }
+
+    static void publish(Channel channel, float value) {
+        publish(new Reading(channel, value, null, SystemClock.elapsedRealtime()));
+    }
+
+    static void publishText(Channel channel, String text) {
+        publish(new Reading(channel, Float.NaN, text, SystemClock.elapsedRealtime()));
+    }
+
+    private static void publish(Reading reading) {
+        reading.channel.latest.set(reading);
+        for (Subscription s : subscriptions) {
+            if (s.wants(reading.channel)) s.listener.onReading(reading);
+        }
+    }
+
+    /** Latest reading of the channel, null if nothing was read since the app started. */
+    static Reading getLatest(Channel channel) {
+        return channel.latest.get();
+    }
+
+    /** Latest value of the channel, or fallback if there is none. */
+    static float getValue(Channel channel, float fallback) {
+        Reading r = channel.latest.get();
+        return r == null || Float.isNaN(r.value) ? fallback : r.value;
+    }
+
+    /** Gets every new reading of the given channels, all of them when none are given. */
+    static void subscribe(Listener listener, Channel... channels) {
+        subscriptions.add(new Subscription(listener,
+                channels.length == 0 ? Channel.values() : channels.clone()));
+    }
+
+    static void unsubscribe(Listener listener) {
+        for (Subscription s : subscriptions) {
+            if (s.listener == listener) subscriptions.remove(s);
+        }
+    }
+
+    /**
+     * Publishes NaN on every value channel, e.g. when the reader disconnects, so consumers do
+     * not keep acting on the last speed.
+     */
+    static void disconnected() {
+        for (Channel c : Channel.values()) {
+            if (c != Channel.TROUBLE_CODES) publish(c, Float.NaN);
+        }
+    }
+}
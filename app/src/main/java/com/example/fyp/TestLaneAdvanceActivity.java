@@ -34,6 +34,7 @@ import com.google.android.material.snackbar.Snackbar;
 
 import org.opencv.android.OpenCVLoader;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -54,6 +55,7 @@ public class TestLaneAdvanceActivity extends AppCompatActivity {
 
     private List<Bitmap> bmps;
     private Bitmap resizedFirstBmp=null;
+    private PointF[] roi = null;
 
 
     @Override
@@ -102,6 +104,7 @@ public class TestLaneAdvanceActivity extends AppCompatActivity {
                 sp_ld,sp_ld_key_tp,PointF[].class);
 
         ladv.setPtsResized(pts);
+        roi = pts;
         imageView.setImageBitmap(resizedFirstBmp);
         bmps = new ArrayList<>();
         bmps.add(resizedFirstBmp);
@@ -114,8 +117,18 @@ public class TestLaneAdvanceActivity extends AppCompatActivity {
         }else{
             Log.d(TAG, "onCreate: Opencv Could not load");
         }
+
+        // adb shell am start -n com.example.fyp/.TestLaneAdvanceActivity --ez lane_benchmark true
+        if (getIntent().getBooleanExtra(SharedValues.intent_lane_benchmark, false)) {
+            new LaneBenchmarkTask().execute();
+        }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (ladv != null) ladv.release();
+    }
 
     private void pickFromGallery(){
         bmps.clear();
@@ -310,4 +323,39 @@ public class TestLaneAdvanceActivity extends AppCompatActivity {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Replays the recorded frames in lane_benchmark/ under the app's external files directory
+     * at every lane input width; see {@link LaneBenchmark} for the layout of the directory.
+     */
+    private class LaneBenchmarkTask extends AsyncTask<Object,Object,Object> {
+
+        @Override
+        protected Object doInBackground(Object... objects) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    initSnackbar.setText("running lane benchmark....");
+                    initSnackbar.show();
+                }
+            });
+            String result;
+            try {
+                File dir = new File(getExternalFilesDir(null), "lane_benchmark");
+                result = new LaneBenchmark(dir, roi).run(LaneInputResolution.WIDTHS);
+            } catch (IOException ex) {
+                Log.e(TAG, "LaneBenchmarkTask: ", ex);
+                result = ex.getMessage();
+            }
+            final String msg = result;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    initSnackbar.dismiss();
+                    show(msg);
+                }
+            });
+            return null;
+        }
+    }
+}
@@ -27,9 +27,12 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.google.android.material.snackbar.Snackbar;
 import com.example.fyp.customutilities.ImageUtilities;
+import com.example.fyp.customutilities.SharedValues;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public class TestSignActivity extends AppCompatActivity {
 
@@ -99,6 +102,17 @@ public class TestSignActivity extends AppCompatActivity {
         initSnackbar = Snackbar.make(container, "Initializing...", Snackbar.LENGTH_INDEFINITE);
         new Init().execute();
 
+        // adb shell am start -n com.example.fyp/.TestSignActivity --ez inference_benchmark true
+        if (getIntent().getBooleanExtra(SharedValues.intent_inference_benchmark, false)) {
+            new InferenceBenchmarkTask().execute();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // the models run on the UI thread here, so nothing is using them any more
+        if (recoganizor != null) recoganizor.close();
     }
 
     private void pickFromGallery(){
@@ -225,5 +239,48 @@ public class TestSignActivity extends AppCompatActivity {
         if(image != null && !image.isRecycled()) image.recycle();
     }
 
+    /**
+     * Times the models on every inference backend, see {@link InferenceBenchmark}, and stores
+     * the fastest backend of every model in the inference settings the camera activities read.
+     * Model files to compare go in inference_benchmark/ under the app's external files
+     * directory, which is also where the report ends up.
+     */
+    private class InferenceBenchmarkTask extends AsyncTask<Object, Object, Object> {
 
+        @Override
+        protected Object doInBackground(Object... objects) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    initSnackbar.setText("running inference benchmark....");
+                    initSnackbar.show();
+                }
+            });
+            String report;
+            try {
+                File dir = new File(getExternalFilesDir(null), "inference_benchmark");
+                if (!dir.exists() && !dir.mkdirs()) throw new IOException("could not create " + dir);
+                Bitmap frame = ImageUtilities.getResizedBitmap(
+                        BitmapFactory.decodeResource(getResources(), R.drawable.sign_test_2),
+                        Detector.OBJ_DETECTOR_INPUT_SIZE, Detector.OBJ_DETECTOR_INPUT_SIZE, true);
+                InferenceBenchmark benchmark = new InferenceBenchmark(getAssets(), dir, frame);
+                report = benchmark.run();
+                for (Map.Entry<String, InferenceBackend.Options> best : benchmark.getBest().entrySet()) {
+                    best.getValue().save(getApplicationContext(), best.getKey());
+                }
+            } catch (IOException ex) {
+                Log.e(TAG, "InferenceBenchmarkTask: ", ex);
+                report = ex.getMessage();
+            }
+            final String msg = report;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    initSnackbar.dismiss();
+                    result.setText(msg);
+                }
+            });
+            return null;
+        }
+    }
 }
@@ -0,0 +1,195 @@
+package com.example.fyp.customutilities;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide frame timing instrumentation.
+ *
+ * Every {@link Stage} has a wall clock and a thread CPU time {@link LatencyHistogram}. A stage
+ * is measured by taking {@link #wallNow()} and {@link #cpuNow()} when it starts and passing
+ * both to {@link #record(Stage, long, long)} on the same thread when it ends, which allocates
+ * nothing. Dropped frames are counted separately. Percentiles can be drawn on the debug overlay
+ * via {@link #getSummary(Stage)} or appended to a log file with {@link #writeReport(File)}.
+ */
+public class FrameTimings {
+    private static final String TAG = "FrameTimings";
+
+    /** Name of the report file written by the camera activities. */
+    public static final String REPORT_FILE_NAME = "frame_timings.log";
+
+    public enum Stage {
+        /** YUV to RGB conversion, including the resize to the model size which is fused with it */
+        CONVERT("convert"),
+        /** packing a frame into a model input tensor */
+        PREPROCESS("preprocess"),
+        /** interpreter calls of the detectors */
+        INFERENCE("inference"),
+        /** decoding detector outputs */
+        POSTPROCESS("postprocess"),
+        /** cropping and classifying sign candidates */
+        SIGN_CLASSIFY("sign classify"),
+        /** whole object detection task */
+        OBJECT_TASK("objects"),
+        /** whole sign detection task */
+        SIGN_TASK("signs"),
+        /** whole lane detection task */
+        LANE_TASK("lanes"),
+        /** gray scale and Canny on the lane region of interest */
+        LANE_EDGES("lane edges"),
+        /** bird's eye view warp, fused with undistortion when calibrated */
+        LANE_WARP("lane warp"),
+        /** lane search, fit and mapping the lanes back onto the frame */
+        LANE_SEARCH("lane search"),
+        /** one OverlayView.onDraw */
+        OVERLAY_DRAW("overlay draw");
+
+        private final String label;
+        private final LatencyHistogram wall = new LatencyHistogram();
+        private final LatencyHistogram cpu = new LatencyHistogram();
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public LatencyHistogram getWall() {
+            return wall;
+        }
+
+        public LatencyHistogram getCpu() {
+            return cpu;
+        }
+    }
+
+    public enum DropReason {
+        /** the previous camera frame was still being converted */
+        CAMERA_BUSY,
+        /** every frame of the pool was still in use */
+        POOL_EXHAUSTED,
+        /** a worker got a newer frame before it started on this one */
+        SUPERSEDED
+    }
+
+    private static final AtomicLong[] dropped = new AtomicLong[DropReason.values().length];
+    private static final AtomicLong framesConverted = new AtomicLong(0);
+
+    static {
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = new AtomicLong(0);
+        }
+    }
+
+    private FrameTimings() {}
+
+    public static long wallNow() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public static long cpuNow() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    /** Records a stage that started at the given {@link #wallNow()} / {@link #cpuNow()} values. */
+    public static void record(Stage stage, long wallStart, long cpuStart) {
+        stage.wall.recordNanos(wallNow() - wallStart);
+        stage.cpu.recordNanos(cpuNow() - cpuStart);
+    }
+
+    public static void countConvertedFrame() {
+        framesConverted.incrementAndGet();
+    }
+
+    public static void countDroppedFrame(DropReason reason) {
+        dropped[reason.ordinal()].incrementAndGet();
+    }
+
+    public static long getDroppedFrames(DropReason reason) {
+        return dropped[reason.ordinal()].get();
+    }
+
+    public static long getConvertedFrames() {
+        return framesConverted.get();
+    }
+
+    /** One line with the wall clock percentiles of a stage, for the debug overlay. */
+    public static String getSummary(Stage stage) {
+        LatencyHistogram wall = stage.wall;
+        return String.format(Locale.US, "%s: p50 %.1f p95 %.1f p99 %.1f ms (n=%d)",
+                stage.label,
+                wall.getPercentileMicros(50) / 1000f,
+                wall.getPercentileMicros(95) / 1000f,
+                wall.getPercentileMicros(99) / 1000f,
+                wall.getCount());
+    }
+
+    public static String getDropSummary() {
+        return String.format(Locale.US, "frames %d, dropped: busy %d, pool %d, superseded %d",
+                getConvertedFrames(),
+                getDroppedFrames(DropReason.CAMERA_BUSY),
+                getDroppedFrames(DropReason.POOL_EXHAUSTED),
+                getDroppedFrames(DropReason.SUPERSEDED));
+    }
+
+    /** Appends wall and CPU percentiles of every stage that saw samples to file. */
+    public static void writeReport(File file) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# ")
+                .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date()))
+                .append('\n')
+                .append(getDropSummary())
+                .append('\n');
+        for (Stage stage : Stage.values()) {
+            if (stage.wall.getCount() == 0) continue;
+            sb.append(String.format(Locale.US,
+                    "%-14s n=%-7d wall p50/p95/p99/max %.2f/%.2f/%.2f/%.2f ms, cpu p50/p95/p99 %.2f/%.2f/%.2f ms\n",
+                    stage.label, stage.wall.getCount(),
+                    stage.wall.getPercentileMicros(50) / 1000f,
+                    stage.wall.getPercentileMicros(95) / 1000f,
+                    stage.wall.getPercentileMicros(99) / 1000f,
+                    stage.wall.getMaxMicros() / 1000f,
+                    stage.cpu.getPercentileMicros(50) / 1000f,
+                    stage.cpu.getPercentileMicros(95) / 1000f,
+                    stage.cpu.getPercentileMicros(99) / 1000f));
+        }
+
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            writer.write(sb.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "writeReport: could not write " + file, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /** Clears all histograms and counters, e.g. at the start of a drive. */
+    public static void reset() {
+        for (Stage stage : Stage.values()) {
+            stage.wall.reset();
+            stage.cpu.reset();
+        }
+        for (AtomicLong counter : dropped) {
+            counter.set(0);
+        }
+        framesConverted.set(0);
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.fyp.customutilities;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Packs pixels into a TFLite input tensor of shape [batch, height, width, 3].
+ *
+ * Pixels are packed a whole row at a time into a primitive scratch array and written with one
+ * bulk put per row, instead of one virtual buffer call per channel. Quantized (uint8) and float
+ * models have separate loops so the inner loop never branches on the model type, and float
+ * normalization is a table lookup.
+ *
+ * A preprocessor can hold up to {@code maxBatch} images; {@link #getBatch(int)} returns views
+ * covering exactly the first n of them, which is what an interpreter resized to [n, h, w, 3]
+ * expects as input.
+ *
+ * {@link #packCrop} crops a region of a larger RGB image and bilinearly resizes it straight
+ * into a batch slot, so no intermediate Bitmaps are needed for classifier inputs.
+ */
+public class ImagePreprocessor {
+
+    private final int width;
+    private final int height;
+    private final boolean quantized;
+    private final int maxBatch;
+    // elements (bytes or floats) of one image
+    private final int imageSize;
+
+    private final ByteBuffer buffer;
+    // batchViews[n - 1] covers the first n images
+    private final ByteBuffer[] batchViews;
+    // float view of buffer, only for float models
+    private final FloatBuffer floatBuffer;
+    // (value - mean) / std for every possible channel value
+    private final float[] normalized;
+
+    private final byte[] byteRow;
+    private final float[] floatRow;
+
+    // per destination column of a crop: byte offsets of the two source taps (-1 when outside
+    // the source) and the weight of the right tap
+    private final int[] cropX0;
+    private final int[] cropX1;
+    private final float[] cropWx;
+
+    public ImagePreprocessor(int width, int height, boolean quantized, float mean, float std) {
+        this(width, height, 1, quantized, mean, std);
+    }
+
+    public ImagePreprocessor(int width, int height, int maxBatch, boolean quantized, float mean, float std) {
+        this.width = width;
+        this.height = height;
+        this.quantized = quantized;
+        this.maxBatch = maxBatch;
+        this.imageSize = width * height * 3;
+
+        int numBytesPerChannel = quantized ? 1 : 4;
+        buffer = ByteBuffer.allocateDirect(maxBatch * imageSize * numBytesPerChannel);
+        buffer.order(ByteOrder.nativeOrder());
+        batchViews = new ByteBuffer[maxBatch];
+        for (int n = 1; n <= maxBatch; n++) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(n * imageSize * numBytesPerChannel);
+            view = view.slice();
+            view.order(ByteOrder.nativeOrder());
+            batchViews[n - 1] = view;
+        }
+
+        byteRow = new byte[width * 3];
+        cropX0 = new int[width];
+        cropX1 = new int[width];
+        cropWx = new float[width];
+        if (quantized) {
+            floatBuffer = null;
+            normalized = null;
+            floatRow = null;
+        } else {
+            floatBuffer = buffer.asFloatBuffer();
+            normalized = new float[256];
+            for (int v = 0; v < 256; v++) {
+                normalized[v] = (v - mean) / std;
+            }
+            floatRow = new float[width * 3];
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /** The packed input tensor, rewound and ready to hand to the interpreter. */
+    public ByteBuffer getBuffer() {
+        buffer.rewind();
+        return buffer;
+    }
+
+    /** View of the first n images, rewound and ready to hand to the interpreter. */
+    public ByteBuffer getBatch(int n) {
+        ByteBuffer view = batchViews[n - 1];
+        view.rewind();
+        return view;
+    }
+
+    /**
+     * Packs ARGB_8888 pixels, e.g. from {@link android.graphics.Bitmap#getPixels}, laid out
+     * row-major with a stride of {@code width}.
+     */
+    public ByteBuffer packArgb(int[] pixels) {
+        packArgb(0, pixels);
+        return getBuffer();
+    }
+
+    /** Same as {@link #packArgb(int[])} but into image {@code slot} of the batch. */
+    public void packArgb(int slot, int[] pixels) {
+        if (quantized) {
+            buffer.position(slot * imageSize);
+            packArgbUint8(pixels);
+        } else {
+            floatBuffer.position(slot * imageSize);
+            packArgbFloat(pixels);
+        }
+    }
+
+    /**
+     * Packs an RGB888 buffer of {@code width * height * 3} bytes starting at its current
+     * position. Only needed for float models; uint8 models can take such a buffer as is.
+     */
+    public ByteBuffer packRgb(ByteBuffer rgb) {
+        int rowBytes = width * 3;
+        if (quantized) {
+            buffer.rewind();
+            for (int y = 0; y < height; y++) {
+                rgb.get(byteRow, 0, rowBytes);
+                buffer.put(byteRow, 0, rowBytes);
+            }
+        } else {
+            float[] lut = normalized;
+            floatBuffer.rewind();
+            for (int y = 0; y < height; y++) {
+                rgb.get(byteRow, 0, rowBytes);
+                for (int b = 0; b < rowBytes; b++) {
+                    floatRow[b] = lut[byteRow[b] & 0xFF];
+                }
+                floatBuffer.put(floatRow, 0, rowBytes);
+            }
+        }
+        return getBuffer();
+    }
+
+    /**
+     * Crops {@code [left, right) x [top, bottom)} out of a packed RGB888 image and bilinearly
+     * resizes it into image {@code slot} of the batch. Parts of the crop that fall outside the
+     * source are filled with white.
+     */
+    public void packCrop(int slot, byte[] rgb, int srcWidth, int srcHeight,
+                         float left, float top, float right, float bottom) {
+        float scaleX = (right - left) / width;
+        float scaleY = (bottom - top) / height;
+        for (int x = 0; x < width; x++) {
+            // sample at the centre of the destination pixel
+            float sx = left + (x + 0.5f) * scaleX - 0.5f;
+            int x0 = (int) Math.floor(sx);
+            cropWx[x] = sx - x0;
+            cropX0[x] = x0 >= 0 && x0 < srcWidth ? x0 * 3 : -1;
+            cropX1[x] = x0 + 1 >= 0 && x0 + 1 < srcWidth ? (x0 + 1) * 3 : -1;
+        }
+
+        if (quantized) {
+            buffer.position(slot * imageSize);
+        } else {
+            floatBuffer.position(slot * imageSize);
+        }
+        int srcStride = srcWidth * 3;
+        for (int y = 0; y < height; y++) {
+            float sy = top + (y + 0.5f) * scaleY - 0.5f;
+            int y0 = (int) Math.floor(sy);
+            float wy = sy - y0;
+            int row0 = y0 >= 0 && y0 < srcHeight ? y0 * srcStride : -1;
+            int row1 = y0 + 1 >= 0 && y0 + 1 < srcHeight ? (y0 + 1) * srcStride : -1;
+
+            int b = 0;
+            for (int x = 0; x < width; x++) {
+                int x0 = cropX0[x];
+                int x1 = cropX1[x];
+                float wx = cropWx[x];
+                for (int c = 0; c < 3; c++) {
+                    float top0 = sample(rgb, row0, x0, c);
+                    float top1 = sample(rgb, row0, x1, c);
+                    float bottom0 = sample(rgb, row1, x0, c);
+                    float bottom1 = sample(rgb, row1, x1, c);
+                    float t = top0 + (top1 - top0) * wx;
+                    float v = t + ((bottom0 + (bottom1 - bottom0) * wx) - t) * wy;
+                    byteRow[b++] = (byte) (int) (v + 0.5f);
+                }
+            }
+            if (quantized) {
+                buffer.put(byteRow, 0, b);
+            } else {
+                float[] lut = normalized;
+                for (int i = 0; i < b; i++) {
+                    floatRow[i] = lut[byteRow[i] & 0xFF];
+                }
+                floatBuffer.put(floatRow, 0, b);
+            }
+        }
+    }
+
+    private static float sample(byte[] rgb, int row, int col, int channel) {
+        if (row < 0 || col < 0) return 255f;
+        return rgb[row + col + channel] & 0xFF;
+    }
+
+    private void packArgbUint8(int[] pixels) {
+        int p = 0;
+        for (int y = 0; y < height; y++) {
+            int b = 0;
+            for (int x = 0; x < width; x++) {
+                int pixelValue = pixels[p++];
+                byteRow[b++] = (byte) (pixelValue >> 16);
+                byteRow[b++] = (byte) (pixelValue >> 8);
+                byteRow[b++] = (byte) pixelValue;
+            }
+            buffer.put(byteRow, 0, b);
+        }
+    }
+
+    private void packArgbFloat(int[] pixels) {
+        float[] lut = normalized;
+        int p = 0;
+        for (int y = 0; y < height; y++) {
+            int b = 0;
+            for (int x = 0; x < width; x++) {
+                int pixelValue = pixels[p++];
+                floatRow[b++] = lut[(pixelValue >> 16) & 0xFF];
+                floatRow[b++] = lut[(pixelValue >> 8) & 0xFF];
+                floatRow[b++] = lut[pixelValue & 0xFF];
+            }
+            floatBuffer.put(floatRow, 0, b);
+        }
+    }
+}
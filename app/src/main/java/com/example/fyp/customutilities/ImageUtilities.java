@@ -125,7 +125,7 @@ public class ImageUtilities {
         }
     }
 
-    private static int YUV2RGB(int y, int u, int v) {
+    static int YUV2RGB(int y, int u, int v) {
         // Adjust and check YUV values
         y = (y - 16) < 0 ? 0 : (y - 16);
         u -= 128;
@@ -0,0 +1,205 @@
+package com.example.fyp.customutilities;
+
+/**
+ * Least squares polynomial fit {@code y = c0 + c1 * x + ... + cd * x^d} for small degrees.
+ *
+ * This is a linear problem, so it is solved in closed form from the normal equations
+ * instead of with an iterative optimizer. To keep the normal matrix well conditioned, x is
+ * centred and scaled to [-1, 1] before the sums are formed and the coefficients are converted
+ * back afterwards. Points are kept in primitive arrays that only grow, so a fitter that is
+ * reused every frame does not allocate. The RMS residual of the last fit is available as a
+ * measure of how well the points follow the curve.
+ *
+ * Not thread-safe.
+ */
+public class PolynomialFitter {
+
+    private final int degree;
+    private final int size;
+
+    private double[] xs;
+    private double[] ys;
+    private double[] weights;
+    private int count = 0;
+
+    // normal equations in the scaled variable, augmented with the right hand side
+    private final double[][] normal;
+    private final double[] powers;
+    private final double[] scaled;
+    private final double[] coefficients;
+    private double rmsResidual = 0;
+
+    public PolynomialFitter(int degree) {
+        this(degree, 16);
+    }
+
+    public PolynomialFitter(int degree, int initialCapacity) {
+        this.degree = degree;
+        this.size = degree + 1;
+        xs = new double[initialCapacity];
+        ys = new double[initialCapacity];
+        weights = new double[initialCapacity];
+        normal = new double[size][size + 1];
+        powers = new double[2 * degree + 1];
+        scaled = new double[size];
+        coefficients = new double[size];
+    }
+
+    public int getDegree() {
+        return degree;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    public void add(double x, double y) {
+        add(x, y, 1);
+    }
+
+    public void add(double x, double y, double weight) {
+        if (count == xs.length) grow();
+        xs[count] = x;
+        ys[count] = y;
+        weights[count] = weight;
+        count++;
+    }
+
+    private void grow() {
+        int capacity = xs.length * 2;
+        double[] nx = new double[capacity];
+        double[] ny = new double[capacity];
+        double[] nw = new double[capacity];
+        System.arraycopy(xs, 0, nx, 0, count);
+        System.arraycopy(ys, 0, ny, 0, count);
+        System.arraycopy(weights, 0, nw, 0, count);
+        xs = nx;
+        ys = ny;
+        weights = nw;
+    }
+
+    /**
+     * Fits the points added since the last {@link #clear()}.
+     * @return false if there are too few distinct points for the degree; the coefficients are
+     * left untouched then
+     */
+    public boolean fit() {
+        if (count <= degree) return false;
+
+        double min = xs[0];
+        double max = xs[0];
+        for (int i = 1; i < count; i++) {
+            if (xs[i] < min) min = xs[i];
+            if (xs[i] > max) max = xs[i];
+        }
+        double shift = (max + min) / 2;
+        double scale = (max - min) / 2;
+        if (scale == 0) return false;
+
+        for (int r = 0; r < size; r++) {
+            for (int c = 0; c <= size; c++) {
+                normal[r][c] = 0;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            double t = (xs[i] - shift) / scale;
+            double w = weights[i];
+            powers[0] = w;
+            for (int k = 1; k < powers.length; k++) {
+                powers[k] = powers[k - 1] * t;
+            }
+            for (int r = 0; r < size; r++) {
+                for (int c = r; c < size; c++) {
+                    normal[r][c] += powers[r + c];
+                }
+                normal[r][size] += powers[r] * ys[i];
+            }
+        }
+        for (int r = 1; r < size; r++) {
+            for (int c = 0; c < r; c++) {
+                normal[r][c] = normal[c][r];
+            }
+        }
+        if (!solve()) return false;
+
+        // c_j = sum over k >= j of a_k * C(k, j) * (-shift)^(k - j) / scale^k
+        for (int j = 0; j < size; j++) {
+            coefficients[j] = 0;
+        }
+        double scalePower = 1;
+        for (int k = 0; k < size; k++) {
+            double a = scaled[k] / scalePower;
+            double binomial = 1;
+            double shiftPower = 1;
+            // walk j from k down to 0, building C(k, j) and (-shift)^(k - j) incrementally
+            for (int j = k; j >= 0; j--) {
+                coefficients[j] += a * binomial * shiftPower;
+                binomial = binomial * j / (k - j + 1);
+                shiftPower *= -shift;
+            }
+            scalePower *= scale;
+        }
+
+        double sum = 0;
+        double weightSum = 0;
+        for (int i = 0; i < count; i++) {
+            double r = ys[i] - evaluate(coefficients, xs[i]);
+            sum += weights[i] * r * r;
+            weightSum += weights[i];
+        }
+        rmsResidual = weightSum > 0 ? Math.sqrt(sum / weightSum) : 0;
+        return true;
+    }
+
+    /** Gaussian elimination with partial pivoting on the augmented normal matrix. */
+    private boolean solve() {
+        for (int col = 0; col < size; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < size; r++) {
+                if (Math.abs(normal[r][col]) > Math.abs(normal[pivot][col])) pivot = r;
+            }
+            if (Math.abs(normal[pivot][col]) < 1e-12) return false;
+            if (pivot != col) {
+                double[] tmp = normal[pivot];
+                normal[pivot] = normal[col];
+                normal[col] = tmp;
+            }
+            for (int r = col + 1; r < size; r++) {
+                double f = normal[r][col] / normal[col][col];
+                for (int c = col; c <= size; c++) {
+                    normal[r][c] -= f * normal[col][c];
+                }
+            }
+        }
+        for (int r = size - 1; r >= 0; r--) {
+            double v = normal[r][size];
+            for (int c = r + 1; c < size; c++) {
+                v -= normal[r][c] * scaled[c];
+            }
+            scaled[r] = v / normal[r][r];
+        }
+        return true;
+    }
+
+    /** c0..cd of the last successful fit. The array is reused by the next fit. */
+    public double[] getCoefficients() {
+        return coefficients;
+    }
+
+    /** Weighted root mean square distance of the points from the last fitted curve. */
+    public double getRmsResidual() {
+        return rmsResidual;
+    }
+
+    public static double evaluate(double[] coefficients, double x) {
+        double y = 0;
+        for (int k = coefficients.length - 1; k >= 0; k--) {
+            y = y * x + coefficients[k];
+        }
+        return y;
+    }
+}
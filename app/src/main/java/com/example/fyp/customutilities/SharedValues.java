@@ -22,12 +22,46 @@ public class SharedValues {
                     new Size(4128,2322)
             };
     public static final Size CROP_SIZE = new Size(300,300);
+    // widest camera frame read for the models, the same as the widest lane input in
+    // LaneInputResolution; anything wider only costs conversion time for the 300x300 frames
+    public static final int IMAGE_READER_MAX_WIDTH = 640;
 
     public static final String intent_to_assistant_mode = "lane_points_img_processor";
     public static final String intent_step_info = "directions_steps_info";
     public static final String intent_to_nav_mode = "from_direction";
     public static final String intent_dest_latitude = "dest_lat";
     public static final String intent_dest_longitude = "dest_lng";
+    public static final String intent_lane_benchmark = "lane_benchmark";
+    public static final String intent_inference_benchmark = "inference_benchmark";
+
+    /**
+     * Size of the camera frames for the models, out of the sizes the camera can deliver: the
+     * largest one with the preview's aspect ratio that is at most
+     * {@link #IMAGE_READER_MAX_WIDTH} wide, or if there is none, the smallest wider one with
+     * that aspect ratio. If no size has the preview's aspect ratio, the smallest one that is at
+     * least {@link #IMAGE_READER_MAX_WIDTH} wide, or the largest one.
+     * @param choices the camera's YUV_420_888 output sizes
+     */
+    public static Size getImageReaderSize(Size[] choices, int previewWidth, int previewHeight){
+        Size below = null;
+        Size above = null;
+        Size anyBelow = null;
+        Size anyAbove = null;
+        for (Size size : choices) {
+            boolean sameAspect = size.getWidth() * previewHeight == size.getHeight() * previewWidth;
+            if (size.getWidth() <= IMAGE_READER_MAX_WIDTH) {
+                if (sameAspect && (below == null || size.getWidth() > below.getWidth())) below = size;
+                if (anyBelow == null || size.getWidth() > anyBelow.getWidth()) anyBelow = size;
+            } else {
+                if (sameAspect && (above == null || size.getWidth() < above.getWidth())) above = size;
+                if (anyAbove == null || size.getWidth() < anyAbove.getWidth()) anyAbove = size;
+            }
+        }
+        if (below != null) return below;
+        if (above != null) return above;
+        if (anyAbove != null) return anyAbove;
+        return anyBelow != null ? anyBelow : new Size(previewWidth,previewHeight);
+    }
 
     public static Path getPathFromPointF(PointF[] pts,boolean loop){
         Path path = new Path();
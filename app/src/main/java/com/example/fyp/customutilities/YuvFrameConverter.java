@@ -0,0 +1,201 @@
+package com.example.fyp.customutilities;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts YUV_420_888 planes straight into a packed RGB888 buffer of a different size.
+ * Colour conversion and resizing are fused, so the camera planes are read in place and every
+ * output pixel is written exactly once - no intermediate byte[]/int[] copies of the full frame
+ * and no Bitmaps. The output can also be taken from a crop of the source, which is then the
+ * only part of the planes that is read.
+ *
+ * Up to {@link #FILTER_THRESHOLD} source pixels per output pixel the nearest source pixel is
+ * taken. Beyond that, e.g. a 1280 wide frame going into a 300x300 model input, point sampling
+ * aliases badly, so every output pixel is the average of the box of source pixels it covers.
+ */
+public class YuvFrameConverter {
+
+    static final float FILTER_THRESHOLD = 1.5f;
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int cropLeft;
+    private final int cropTop;
+    private final int cropWidth;
+    private final int cropHeight;
+    private final int dstWidth;
+    private final int dstHeight;
+
+    // source column / row for every destination column / row, the first of its box if filtered
+    private final int[] xMap;
+    private final int[] yMap;
+    // end of every destination column's / row's box, exclusive, null when not filtered
+    private final int[] xEnd;
+    private final int[] yEnd;
+    private final byte[] row;
+
+    public YuvFrameConverter(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        this(srcWidth, srcHeight, 0, 0, srcWidth, srcHeight, dstWidth, dstHeight);
+    }
+
+    /** Converts the crop starting at cropLeft, cropTop of the source into the destination size. */
+    public YuvFrameConverter(int srcWidth, int srcHeight,
+                             int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                             int dstWidth, int dstHeight) {
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.cropLeft = cropLeft;
+        this.cropTop = cropTop;
+        this.cropWidth = cropWidth;
+        this.cropHeight = cropHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+
+        final float scaleX = cropWidth / (float) dstWidth;
+        final float scaleY = cropHeight / (float) dstHeight;
+        xMap = new int[dstWidth];
+        for (int i = 0; i < dstWidth; i++) {
+            xMap[i] = cropLeft + Math.min(cropWidth - 1, (int) (i * scaleX));
+        }
+        yMap = new int[dstHeight];
+        for (int j = 0; j < dstHeight; j++) {
+            yMap[j] = cropTop + Math.min(cropHeight - 1, (int) (j * scaleY));
+        }
+        if (scaleX > FILTER_THRESHOLD || scaleY > FILTER_THRESHOLD) {
+            xEnd = boxEnds(xMap, cropLeft + cropWidth, scaleX);
+            yEnd = boxEnds(yMap, cropTop + cropHeight, scaleY);
+        } else {
+            xEnd = null;
+            yEnd = null;
+        }
+        row = new byte[dstWidth * 3];
+    }
+
+    /**
+     * Box ends for the box starts in map: up to the next box along an axis that is shrunk by
+     * more than {@link #FILTER_THRESHOLD}, the single start pixel along any other axis.
+     */
+    private static int[] boxEnds(int[] map, int limit, float scale) {
+        int[] ends = new int[map.length];
+        for (int i = 0; i < map.length; i++) {
+            int next = i + 1 < map.length ? map[i + 1] : limit;
+            ends[i] = scale > FILTER_THRESHOLD ? Math.max(map[i] + 1, next) : map[i] + 1;
+        }
+        return ends;
+    }
+
+    /** Whether output pixels average a box of source pixels instead of sampling one. */
+    public boolean isFiltered() {
+        return xEnd != null;
+    }
+
+    public boolean matches(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        return matches(srcWidth, srcHeight, 0, 0, srcWidth, srcHeight, dstWidth, dstHeight);
+    }
+
+    public boolean matches(int srcWidth, int srcHeight,
+                           int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                           int dstWidth, int dstHeight) {
+        return this.srcWidth == srcWidth && this.srcHeight == srcHeight &&
+                this.cropLeft == cropLeft && this.cropTop == cropTop &&
+                this.cropWidth == cropWidth && this.cropHeight == cropHeight &&
+                this.dstWidth == dstWidth && this.dstHeight == dstHeight;
+    }
+
+    /**
+     * @param yBuffer Y plane, read with absolute gets so its position is left untouched.
+     * @param uBuffer U plane.
+     * @param vBuffer V plane.
+     * @param out destination, must hold at least dstWidth * dstHeight * 3 bytes.
+     */
+    public void convert(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            ByteBuffer out) {
+        if (xEnd != null) {
+            convertFiltered(yBuffer, uBuffer, vBuffer, yRowStride, uvRowStride, uvPixelStride, out);
+            return;
+        }
+        out.rewind();
+        for (int j = 0; j < dstHeight; j++) {
+            int srcY = yMap[j];
+            int pY = yRowStride * srcY;
+            int pUV = uvRowStride * (srcY >> 1);
+
+            int o = 0;
+            for (int i = 0; i < dstWidth; i++) {
+                int srcX = xMap[i];
+                int uvOffset = pUV + (srcX >> 1) * uvPixelStride;
+                int argb = ImageUtilities.YUV2RGB(
+                        0xff & yBuffer.get(pY + srcX),
+                        0xff & uBuffer.get(uvOffset),
+                        0xff & vBuffer.get(uvOffset));
+                row[o++] = (byte) (argb >> 16);
+                row[o++] = (byte) (argb >> 8);
+                row[o++] = (byte) argb;
+            }
+            out.put(row, 0, o);
+        }
+        out.rewind();
+    }
+
+    /** Like the nearest neighbour loop, but averages Y, U and V over every pixel's box. */
+    private void convertFiltered(
+            ByteBuffer yBuffer,
+            ByteBuffer uBuffer,
+            ByteBuffer vBuffer,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            ByteBuffer out) {
+        out.rewind();
+        for (int j = 0; j < dstHeight; j++) {
+            final int y0 = yMap[j];
+            final int y1 = yEnd[j];
+            // chroma is subsampled 2x2, its box covers the same part of the image
+            final int uvY0 = y0 >> 1;
+            final int uvY1 = ((y1 - 1) >> 1) + 1;
+
+            int o = 0;
+            for (int i = 0; i < dstWidth; i++) {
+                final int x0 = xMap[i];
+                final int x1 = xEnd[i];
+                int ySum = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    final int pY = yRowStride * sy;
+                    for (int sx = x0; sx < x1; sx++) {
+                        ySum += 0xff & yBuffer.get(pY + sx);
+                    }
+                }
+
+                final int uvX0 = x0 >> 1;
+                final int uvX1 = ((x1 - 1) >> 1) + 1;
+                int uSum = 0;
+                int vSum = 0;
+                for (int sy = uvY0; sy < uvY1; sy++) {
+                    final int pUV = uvRowStride * sy;
+                    for (int sx = uvX0; sx < uvX1; sx++) {
+                        final int uvOffset = pUV + sx * uvPixelStride;
+                        uSum += 0xff & uBuffer.get(uvOffset);
+                        vSum += 0xff & vBuffer.get(uvOffset);
+                    }
+                }
+                final int uvCount = (uvY1 - uvY0) * (uvX1 - uvX0);
+
+                int argb = ImageUtilities.YUV2RGB(
+                        ySum / ((y1 - y0) * (x1 - x0)),
+                        uSum / uvCount,
+                        vSum / uvCount);
+                row[o++] = (byte) (argb >> 16);
+                row[o++] = (byte) (argb >> 8);
+                row[o++] = (byte) argb;
+            }
+            out.put(row, 0, o);
+        }
+        out.rewind();
+    }
+}
@@ -2,16 +2,47 @@ package com.example.fyp.customview;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.os.Build;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.View;
 
 import androidx.annotation.Nullable;
 
-import java.util.LinkedList;
+import com.example.fyp.customutilities.FrameTimings;
+
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Draws the results of the models over the camera preview through {@link DrawCallback}s.
+ *
+ * Callbacks can be put on a layer, one bit of an int. A layer {@link #invalidateLayers(int)}
+ * marked dirty is drawn directly. On the next draw that finds it unchanged it is recorded into a
+ * Picture, which is replayed until the layer is dirty again, so a new lane result does not run
+ * the box callbacks again and static content like the lane guide is not redrawn at all. Layers
+ * that change on every frame are never recorded and cost no more than drawing them. Callbacks
+ * without a layer run on every draw. Replaying Pictures on a hardware canvas needs Android 6,
+ * before that every callback runs on every draw.
+ *
+ * Invalidations from any thread are merged into a single redraw on the next vsync, however many
+ * workers ask for one in between.
+ */
 public class OverlayView extends View{
     private static final String TAG = "OverlayView";
+
+    public static final int LAYER_OBJECTS = 1;
+    public static final int LAYER_SIGNS = 1 << 1;
+    public static final int LAYER_LANES = 1 << 2;
+    public static final int LAYER_LANE_GUIDE = 1 << 3;
+    public static final int LAYER_NAVIGATION = 1 << 4;
+    public static final int ALL_LAYERS = -1;
+
+    private static final boolean CACHE_LAYERS = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+
     public OverlayView(Context context) {
         super(context);
         init();
@@ -33,11 +64,38 @@ public class OverlayView extends View{
 //    }
 
 
-    private final List<DrawCallback> callbacks = new LinkedList<DrawCallback>();
+    // callbacks only read snapshots the workers publish, so drawing takes no locks; the list
+    // itself can be added to from any thread while a draw is iterating it
+    private final List<Layer> callbacks = new CopyOnWriteArrayList<Layer>();
+
+    private final AtomicInteger dirtyLayers = new AtomicInteger(ALL_LAYERS);
+    private final AtomicBoolean frameScheduled = new AtomicBoolean(false);
+    private Choreographer choreographer = null;
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameScheduled.set(false);
+            invalidate();
+        }
+    };
 
+    private static class Layer {
+        final int layer;
+        final DrawCallback callback;
+        // UI thread only
+        Picture picture = null;
+        // whether picture holds what the callback draws now
+        boolean recorded = false;
+
+        Layer(int layer, DrawCallback callback) {
+            this.layer = layer;
+            this.callback = callback;
+        }
+    }
 
     public void init(){
-        //
+        // views are created on the UI thread, whose Choreographer the redraws are scheduled on
+        choreographer = Choreographer.getInstance();
     }
 
     /**
@@ -47,15 +105,63 @@ public class OverlayView extends View{
         public void drawCallback(final Canvas canvas);
     }
 
+    /** Adds a callback that runs on every draw. */
     public void addCallback(final DrawCallback callback) {
-        callbacks.add(callback);
+        addCallback(0, callback);
+    }
+
+    /** Adds a callback on the given layer, one of the LAYER_ bits, or 0 for none. */
+    public void addCallback(int layer, final DrawCallback callback) {
+        callbacks.add(new Layer(layer, callback));
+    }
+
+    /**
+     * Marks the given layers as changed and schedules a redraw for the next vsync. With 0 only
+     * the callbacks without a layer run again. Can be called from any thread.
+     */
+    public void invalidateLayers(int layers) {
+        int dirty;
+        do {
+            dirty = dirtyLayers.get();
+        } while (!dirtyLayers.compareAndSet(dirty, dirty | layers));
+        if (frameScheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        choreographer.removeFrameCallback(frameCallback);
+        frameScheduled.set(false);
     }
 
     @Override
-    public synchronized void onDraw(final Canvas canvas) {
+    public void onDraw(final Canvas canvas) {
+        long wallStart = FrameTimings.wallNow();
+        long cpuStart = FrameTimings.cpuNow();
         super.onDraw(canvas);
-        for (final DrawCallback callback : callbacks) {
-            callback.drawCallback(canvas);
+        int dirty = dirtyLayers.getAndSet(0);
+        for (final Layer l : callbacks) {
+            if (l.layer == 0 || !CACHE_LAYERS) {
+                l.callback.drawCallback(canvas);
+                continue;
+            }
+            if ((dirty & l.layer) != 0) {
+                // recording a changed layer only pays off once it holds still
+                l.recorded = false;
+                l.callback.drawCallback(canvas);
+                continue;
+            }
+            if (!l.recorded ||
+                    l.picture.getWidth() != getWidth() || l.picture.getHeight() != getHeight()) {
+                if (l.picture == null) l.picture = new Picture();
+                l.callback.drawCallback(l.picture.beginRecording(getWidth(), getHeight()));
+                l.picture.endRecording();
+                l.recorded = true;
+            }
+            canvas.drawPicture(l.picture);
         }
+        FrameTimings.record(FrameTimings.Stage.OVERLAY_DRAW, wallStart, cpuStart);
     }
 }
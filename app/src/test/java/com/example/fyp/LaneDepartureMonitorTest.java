@@ -0,0 +1,170 @@
+package com.example.fyp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds {@link LaneDepartureMonitor} offsets at the lane worker's frame rate and checks when it
+ * starts, ends and reports departures.
+ */
+public class LaneDepartureMonitorTest {
+
+    private static final long FRAME_MS = 100;
+
+    private final List<Integer> alerts = new ArrayList<>();
+    private LaneDepartureMonitor monitor;
+    private long now;
+
+    @Before
+    public void setUp() {
+        alerts.clear();
+        monitor = new LaneDepartureMonitor(new LaneDepartureMonitor.Listener() {
+            @Override
+            public void onLaneDeparture(int side, float offset, float timeToCrossing) {
+                alerts.add(side);
+            }
+        });
+        now = 0;
+    }
+
+    private void feed(float offCenter, int frames) {
+        for (int i = 0; i < frames; i++) {
+            monitor.update(offCenter, true, now);
+            now += FRAME_MS;
+        }
+    }
+
+    /** Drives the car back to the lane centre until the departure ends. */
+    private void recenter() {
+        feed(0, 10);
+        assertFalse(monitor.isDeparting());
+    }
+
+    @Test
+    public void centredCarIsNotDeparting() {
+        feed(0.3f, 20);
+        assertFalse(monitor.isDeparting());
+        assertEquals(LaneDepartureMonitor.NONE, monitor.getDeparture());
+        assertTrue(alerts.isEmpty());
+    }
+
+    @Test
+    public void departureNeedsThreeFramesInARow() {
+        feed(2.5f, 2);
+        assertFalse(monitor.isDeparting());
+        feed(2.5f, 1);
+        assertEquals(LaneDepartureMonitor.RIGHT, monitor.getDeparture());
+        assertEquals(1, alerts.size());
+        assertEquals(LaneDepartureMonitor.RIGHT, (int) alerts.get(0));
+    }
+
+    @Test
+    public void interruptedFramesRestartTheCount() {
+        // far apart frames are not smoothed into each other
+        for (int i = 0; i < 3; i++) {
+            monitor.update(2.5f, true, now);
+            monitor.update(2.5f, true, now + 2000);
+            monitor.update(0, true, now + 4000);
+            now += 6000;
+        }
+        assertFalse(monitor.isDeparting());
+        assertTrue(alerts.isEmpty());
+    }
+
+    @Test
+    public void leftDeparture() {
+        feed(-2.5f, 3);
+        assertEquals(LaneDepartureMonitor.LEFT, monitor.getDeparture());
+        assertEquals(LaneDepartureMonitor.LEFT, (int) alerts.get(0));
+    }
+
+    @Test
+    public void departureEndsOnlyBelowTheExitOffset() {
+        feed(2.5f, 3);
+        assertTrue(monitor.isDeparting());
+        // between the exit and enter offsets a departure goes on
+        feed(1.2f, 20);
+        assertTrue(monitor.isDeparting());
+        feed(0.5f, 10);
+        assertFalse(monitor.isDeparting());
+        // and the same offset does not start a new one, when the car holds it instead of
+        // drifting towards the line; the gap keeps the jump from reading as lateral speed
+        now += 2000;
+        feed(1.2f, 20);
+        assertFalse(monitor.isDeparting());
+        assertEquals(1, alerts.size());
+    }
+
+    @Test
+    public void driftingOutStartsBeforeTheEnterOffset() {
+        float offset = 0;
+        while (!monitor.isDeparting() && offset < 3) {
+            feed(offset, 1);
+            offset += 0.1f;
+        }
+        assertTrue(monitor.isDeparting());
+        assertTrue(offset < 1.5f);
+        assertTrue(monitor.getTimeToCrossing() < 1);
+    }
+
+    @Test
+    public void alertsAreRateLimited() {
+        feed(2.5f, 3);
+        recenter();
+        feed(2.5f, 3);
+        // a new departure, but too soon after the last one to say it again
+        assertTrue(monitor.isDeparting());
+        assertEquals(1, alerts.size());
+        recenter();
+
+        now += 5000;
+        feed(2.5f, 3);
+        assertEquals(2, alerts.size());
+    }
+
+    @Test
+    public void slowCarIsNotWarned() {
+        monitor.setCarSpeed(30);
+        feed(2.5f, 3);
+        assertTrue(monitor.isDeparting());
+        assertTrue(alerts.isEmpty());
+        recenter();
+
+        monitor.setCarSpeed(60);
+        now += 5000;
+        feed(2.5f, 3);
+        assertEquals(1, alerts.size());
+    }
+
+    @Test
+    public void unknownSpeedIsWarned() {
+        monitor.setCarSpeed(-1);
+        feed(2.5f, 3);
+        assertEquals(1, alerts.size());
+    }
+
+    @Test
+    public void lostLanesEndTheDeparture() {
+        feed(2.5f, 3);
+        assertTrue(monitor.isDeparting());
+        monitor.update(0, false, now);
+        assertTrue(monitor.isDeparting());
+        monitor.update(0, false, now + 1500);
+        assertFalse(monitor.isDeparting());
+    }
+
+    @Test
+    public void framesWithoutLanesAreIgnored() {
+        feed(2.5f, 2);
+        // a garbage offset on a frame without lanes neither counts nor breaks the count
+        monitor.update(0, false, now);
+        now += FRAME_MS;
+        feed(2.5f, 1);
+        assertTrue(monitor.isDeparting());
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.fyp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link Mode01Command} against recorded ELM327 answers, the way the OBD reader does.
+ */
+public class Mode01CommandTest {
+
+    private static final Mode01Command.Pid RPM = Mode01Command.Pid.RPM;
+    private static final Mode01Command.Pid SPEED = Mode01Command.Pid.SPEED;
+    private static final Mode01Command.Pid TEMPERATURE = Mode01Command.Pid.AMBIENT_TEMPERATURE;
+
+    /** Runs the command with the adapter answering answer, the '>' prompt is added. */
+    private static String run(Mode01Command command, String answer) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        command.run(new ByteArrayInputStream((answer + ">").getBytes("US-ASCII")), out);
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void singleEcuCan() throws Exception {
+        Mode01Command command = new Mode01Command(RPM, SPEED);
+        assertEquals("01 0C 0D\r", run(command, "41 0C 1A F8 0D 3C \r\r"));
+        assertEquals(1726f, command.getValue(0), 0f);
+        assertEquals(60f, command.getValue(1), 0f);
+    }
+
+    @Test
+    public void searchingBeforeAnswer() throws Exception {
+        Mode01Command command = new Mode01Command(SPEED, TEMPERATURE);
+        run(command, "SEARCHING...\r41 0D 3C 46 50\r\r");
+        assertEquals(60f, command.getValue(0), 0f);
+        assertEquals(40f, command.getValue(1), 0f);
+    }
+
+    @Test
+    public void multiFrame() throws Exception {
+        Mode01Command command = new Mode01Command(RPM, SPEED, TEMPERATURE);
+        run(command, "008\r0: 41 0C 1A F8 0D 3C\r1: 46 50 00 00 00 00 00\r\r");
+        assertEquals(1726f, command.getValue(0), 0f);
+        assertEquals(60f, command.getValue(1), 0f);
+        assertEquals(40f, command.getValue(2), 0f);
+    }
+
+    @Test
+    public void twoEcus() throws Exception {
+        // the engine answers the RPM, another module the speed
+        Mode01Command command = new Mode01Command(RPM, SPEED);
+        run(command, "41 0C 1A F8\r41 0D 3C\r\r");
+        assertEquals(1726f, command.getValue(0), 0f);
+        assertEquals(60f, command.getValue(1), 0f);
+    }
+
+    @Test
+    public void paddingAfterMultiFrameAnswerIsIgnored() throws Exception {
+        // the padding starts with the speed PID, only the byte count tells it apart
+        Mode01Command command = new Mode01Command(RPM, SPEED, TEMPERATURE);
+        run(command, "007\r0: 41 0C 1A F8 46 50\r1: 0D 00 00 00 00 00 00\r\r");
+        assertEquals(1726f, command.getValue(0), 0f);
+        assertTrue(Float.isNaN(command.getValue(1)));
+        assertEquals(40f, command.getValue(2), 0f);
+    }
+
+    @Test
+    public void paddingAfterSingleFrameAnswerIsIgnored() throws Exception {
+        Mode01Command command = new Mode01Command(RPM, SPEED);
+        run(command, "41 0D 3C 00 00 00 00\r\r");
+        assertTrue(Float.isNaN(command.getValue(0)));
+        assertEquals(60f, command.getValue(1), 0f);
+    }
+
+    @Test
+    public void truncatedAnswer() throws Exception {
+        Mode01Command command = new Mode01Command(SPEED, RPM);
+        run(command, "41 0D 3C 0C 1A\r\r");
+        assertEquals(60f, command.getValue(0), 0f);
+        assertTrue(Float.isNaN(command.getValue(1)));
+    }
+
+    @Test
+    public void reusedCommandForgetsPreviousValues() throws Exception {
+        Mode01Command command = new Mode01Command(RPM, SPEED);
+        run(command, "41 0C 1A F8 0D 3C\r\r");
+        run(command, "41 0D 28\r\r");
+        assertTrue(Float.isNaN(command.getValue(0)));
+        assertEquals(40f, command.getValue(1), 0f);
+    }
+}
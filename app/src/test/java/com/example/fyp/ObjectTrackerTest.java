@@ -0,0 +1,186 @@
+package com.example.fyp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds {@link ObjectTracker} hand made detector results and checks the tracks it keeps, where
+ * it predicts them and how often it asks for the detector.
+ */
+public class ObjectTrackerTest {
+
+    private static final long FRAME_MS = 100;
+    private static final int CAR = 0;
+    private static final int PERSON = 1;
+
+    private final Detections detections = new Detections(10);
+    private final Detections tracks = new Detections(10);
+    private ObjectTracker tracker;
+    private long now;
+
+    @Before
+    public void setUp() {
+        tracker = new ObjectTracker(10);
+        now = 0;
+    }
+
+    /** Runs the detector at the next frame with the given boxes, {left, top, right, bottom, class}. */
+    private void detect(float[]... boxes) {
+        detections.clear();
+        for (float[] b : boxes) {
+            detections.add(b[0], b[1], b[2], b[3], (int) b[4], 0.9f);
+        }
+        tracker.update(detections, now);
+        tracker.getTracks(tracks);
+        now += FRAME_MS;
+    }
+
+    private static float[] box(float left, float top, float size, int classIndex) {
+        return new float[]{left, top, left + size, top + size, classIndex};
+    }
+
+    /** Index of the track with the given id, -1 if there is none. */
+    private int indexOf(int id) {
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.getId(i) == id) return i;
+        }
+        return -1;
+    }
+
+    private float centreX(int i) {
+        return (tracks.getLeft(i) + tracks.getRight(i)) / 2;
+    }
+
+    @Test
+    public void idsPersistAcrossFrames() {
+        detect(box(0, 0, 50, CAR), box(200, 0, 50, PERSON));
+        assertEquals(2, tracks.size());
+        int car = tracks.getId(0);
+        int person = tracks.getId(1);
+        assertNotEquals(car, person);
+
+        for (int i = 1; i <= 5; i++) {
+            // the detector does not keep its order between frames
+            detect(box(200 + 2 * i, 0, 50, PERSON), box(2 * i, 0, 50, CAR));
+            assertEquals(2, tracks.size());
+            assertEquals(CAR, tracks.getClassIndex(indexOf(car)));
+            assertEquals(PERSON, tracks.getClassIndex(indexOf(person)));
+        }
+    }
+
+    @Test
+    public void trackDiesAfterTwoMissedDetections() {
+        detect(box(0, 0, 50, CAR));
+        int id = tracks.getId(0);
+
+        detect();
+        detect();
+        assertEquals(1, tracks.size());
+        assertEquals(id, tracks.getId(0));
+        detect();
+        assertEquals(0, tracks.size());
+
+        // the same place again is a new object
+        detect(box(0, 0, 50, CAR));
+        assertEquals(1, tracks.size());
+        assertNotEquals(id, tracks.getId(0));
+    }
+
+    @Test
+    public void lowScoresDoNotStartTracks() {
+        detections.clear();
+        detections.add(0, 0, 50, 50, CAR, 0.2f);
+        tracker.update(detections, now);
+        tracker.getTracks(tracks);
+        assertEquals(0, tracks.size());
+    }
+
+    @Test
+    public void overlappingBoxesKeepTheirOwnTracks() {
+        // two cars of the same class overlapping by a third
+        detect(box(0, 0, 100, CAR), box(50, 0, 100, CAR));
+        int left = tracks.getId(0);
+        int right = tracks.getId(1);
+
+        for (int i = 1; i <= 3; i++) {
+            detect(box(50 + 5 * i, 0, 100, CAR), box(5 * i, 0, 100, CAR));
+            assertEquals(2, tracks.size());
+            assertTrue(centreX(indexOf(left)) < centreX(indexOf(right)));
+        }
+        assertEquals(65, centreX(indexOf(left)), 5);
+        assertEquals(115, centreX(indexOf(right)), 5);
+    }
+
+    @Test
+    public void classesAreNotMatchedWithEachOther() {
+        detect(box(0, 0, 50, CAR));
+        int car = tracks.getId(0);
+        detect(box(0, 0, 50, PERSON));
+        assertEquals(2, tracks.size());
+        assertEquals(CAR, tracks.getClassIndex(indexOf(car)));
+    }
+
+    @Test
+    public void skippedFramesAreMovedAlong() {
+        // 10 px per frame to the right
+        int frames = 10;
+        for (int i = 0; i < frames; i++) {
+            detect(box(10 * i, 0, 50, CAR));
+        }
+        float corrected = centreX(0);
+
+        tracker.predict(now);
+        tracker.getTracks(tracks);
+        float expected = 10 * frames + 25;
+        assertTrue(centreX(0) > corrected + 5);
+        assertEquals(expected, centreX(0), 2);
+        assertEquals(50, tracks.getRight(0) - tracks.getLeft(0), 0.5f);
+    }
+
+    @Test
+    public void steadyTracksSkipUpToTwoFrames() {
+        assertTrue(tracker.needsDetection());
+        detect(box(0, 0, 50, CAR));
+        // a new object, so the detector keeps running on every frame
+        assertEquals(1, tracker.getDetectionInterval());
+        detect(box(0, 0, 50, CAR));
+        assertEquals(2, tracker.getDetectionInterval());
+        for (int i = 0; i < 5; i++) {
+            detect(box(0, 0, 50, CAR));
+        }
+        assertEquals(3, tracker.getDetectionInterval());
+
+        // every third frame runs the detector
+        tracker.predict(now);
+        now += FRAME_MS;
+        assertFalse(tracker.needsDetection());
+        tracker.predict(now);
+        now += FRAME_MS;
+        assertTrue(tracker.needsDetection());
+    }
+
+    @Test
+    public void newObjectResetsTheInterval() {
+        for (int i = 0; i < 5; i++) {
+            detect(box(0, 0, 50, CAR));
+        }
+        assertEquals(3, tracker.getDetectionInterval());
+        detect(box(0, 0, 50, CAR), box(200, 0, 50, PERSON));
+        assertEquals(1, tracker.getDetectionInterval());
+        assertTrue(tracker.needsDetection());
+    }
+
+    @Test
+    public void unexpectedMoveResetsTheInterval() {
+        for (int i = 0; i < 5; i++) {
+            detect(box(0, 0, 50, CAR));
+        }
+        assertEquals(3, tracker.getDetectionInterval());
+        // still the same car, but far from where it was predicted
+        detect(box(20, 0, 50, CAR));
+        assertEquals(1, tracks.size());
+        assertEquals(1, tracker.getDetectionInterval());
+    }
+}
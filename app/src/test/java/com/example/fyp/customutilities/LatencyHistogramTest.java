@@ -0,0 +1,115 @@
+package com.example.fyp.customutilities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the {@link LatencyHistogram} bucket layout and the percentiles at bucket edges.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int v = 0; v < 16; v++) {
+            assertEquals(v, LatencyHistogram.bucketOf(v));
+            assertEquals(v, LatencyHistogram.upperBoundOf(v));
+        }
+    }
+
+    @Test
+    public void bucketEdges() {
+        // 16..31 is split into 8 buckets of 2
+        assertEquals(16, LatencyHistogram.bucketOf(16));
+        assertEquals(16, LatencyHistogram.bucketOf(17));
+        assertEquals(17, LatencyHistogram.bucketOf(18));
+        assertEquals(23, LatencyHistogram.bucketOf(31));
+        assertEquals(24, LatencyHistogram.bucketOf(32));
+        assertEquals(17, LatencyHistogram.upperBoundOf(16));
+        assertEquals(31, LatencyHistogram.upperBoundOf(23));
+        assertEquals(35, LatencyHistogram.upperBoundOf(24));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        // every bucket ends right before the next one starts
+        for (int b = 0; b < LatencyHistogram.NUM_BUCKETS - 1; b++) {
+            long upper = LatencyHistogram.upperBoundOf(b);
+            assertEquals(b, LatencyHistogram.bucketOf(upper));
+            assertEquals(b + 1, LatencyHistogram.bucketOf(upper + 1));
+        }
+    }
+
+    @Test
+    public void bucketsAreWithinAnEighth() {
+        for (int b = LatencyHistogram.NUM_BUCKETS - 1; b > 8; b--) {
+            long lower = LatencyHistogram.upperBoundOf(b - 1) + 1;
+            long upper = LatencyHistogram.upperBoundOf(b);
+            assertTrue(upper - lower + 1 <= lower / 8);
+        }
+    }
+
+    @Test
+    public void trackedRange() {
+        int last = LatencyHistogram.NUM_BUCKETS - 1;
+        assertEquals((1L << 32) - 1, LatencyHistogram.upperBoundOf(last));
+        assertEquals(last, LatencyHistogram.bucketOf((1L << 32) - 1));
+        assertEquals(last, LatencyHistogram.bucketOf(1L << 32));
+        assertEquals(last, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros(), 0);
+    }
+
+    @Test
+    public void percentileAtBucketEdge() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(15);
+        histogram.record(16);
+        // 15 is the last value of its bucket, 16 the first of the next
+        assertEquals(15, histogram.getPercentileMicros(50));
+        assertEquals(16, histogram.getPercentileMicros(100));
+        assertEquals(15, histogram.getPercentileMicros(0));
+    }
+
+    @Test
+    public void percentileIsBucketUpperBound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(5000);
+        // 1000 is in 960..1023
+        assertEquals(1023, histogram.getPercentileMicros(50));
+        assertEquals(1023, histogram.getPercentileMicros(99));
+        // capped by the largest recorded value rather than its bucket's 5119
+        assertEquals(5000, histogram.getPercentileMicros(99.5));
+        assertEquals(5000, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void percentilePastTrackedRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long hours = 3L * 3600 * 1000 * 1000;
+        histogram.record(hours);
+        assertEquals(hours, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void nanosAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(7999);
+        histogram.record(-3);
+        assertEquals(2, histogram.getCount());
+        assertEquals(7, histogram.getPercentileMicros(100));
+        assertEquals(0, histogram.getPercentileMicros(50));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(100));
+    }
+}
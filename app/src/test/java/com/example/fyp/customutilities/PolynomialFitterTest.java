@@ -0,0 +1,128 @@
+package com.example.fyp.customutilities;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link PolynomialFitter} against polynomials with known coefficients, in the pixel
+ * ranges the lane fit uses.
+ */
+public class PolynomialFitterTest {
+
+    private static final double DELTA = 1e-6;
+
+    private static void addSamples(PolynomialFitter fitter, double[] c, double from, double to,
+                                   int n) {
+        for (int i = 0; i < n; i++) {
+            double x = from + (to - from) * i / (n - 1);
+            fitter.add(x, PolynomialFitter.evaluate(c, x));
+        }
+    }
+
+    @Test
+    public void quadraticFit() {
+        double[] expected = {120, -0.75, 0.004};
+        PolynomialFitter fitter = new PolynomialFitter(2);
+        addSamples(fitter, expected, 0, 300, 30);
+        assertTrue(fitter.fit());
+        assertArrayEquals(expected, fitter.getCoefficients(), DELTA);
+        assertEquals(0, fitter.getRmsResidual(), DELTA);
+    }
+
+    @Test
+    public void cubicFit() {
+        double[] expected = {-40, 2.5, -0.02, 3e-5};
+        PolynomialFitter fitter = new PolynomialFitter(3);
+        addSamples(fitter, expected, 50, 250, 12);
+        assertTrue(fitter.fit());
+        assertArrayEquals(expected, fitter.getCoefficients(), DELTA);
+        assertEquals(0, fitter.getRmsResidual(), DELTA);
+    }
+
+    @Test
+    public void exactlyEnoughPoints() {
+        PolynomialFitter fitter = new PolynomialFitter(2);
+        fitter.add(0, 1);
+        fitter.add(1, 2);
+        fitter.add(2, 5);
+        assertTrue(fitter.fit());
+        assertArrayEquals(new double[]{1, 0, 1}, fitter.getCoefficients(), DELTA);
+    }
+
+    @Test
+    public void rmsResidualOfLineThroughNoise() {
+        // y = 10 +- 1 alternating, the best line is y = 10 and every point is 1 away
+        PolynomialFitter fitter = new PolynomialFitter(1);
+        for (int i = 0; i < 10; i++) {
+            fitter.add(i, i % 2 == 0 ? 11 : 9);
+            fitter.add(i, i % 2 == 0 ? 9 : 11);
+        }
+        assertTrue(fitter.fit());
+        assertArrayEquals(new double[]{10, 0}, fitter.getCoefficients(), DELTA);
+        assertEquals(1, fitter.getRmsResidual(), DELTA);
+    }
+
+    @Test
+    public void weightsPullTheFit() {
+        PolynomialFitter fitter = new PolynomialFitter(0);
+        fitter.add(0, 0, 1);
+        fitter.add(1, 4, 3);
+        assertTrue(fitter.fit());
+        assertEquals(3, fitter.getCoefficients()[0], DELTA);
+        // weighted mean of 3^2 and 1^2
+        assertEquals(Math.sqrt((9 + 3 * 1) / 4.0), fitter.getRmsResidual(), DELTA);
+    }
+
+    @Test
+    public void tooFewPoints() {
+        PolynomialFitter fitter = new PolynomialFitter(2);
+        assertFalse(fitter.fit());
+        fitter.add(0, 1);
+        fitter.add(1, 2);
+        assertFalse(fitter.fit());
+    }
+
+    @Test
+    public void allXEqual() {
+        PolynomialFitter fitter = new PolynomialFitter(2);
+        for (int i = 0; i < 5; i++) {
+            fitter.add(7, i);
+        }
+        assertFalse(fitter.fit());
+    }
+
+    @Test
+    public void tooFewDistinctX() {
+        // three points but only two x values cannot pin down a parabola
+        PolynomialFitter fitter = new PolynomialFitter(2);
+        fitter.add(0, 1);
+        fitter.add(0, 2);
+        fitter.add(5, 3);
+        assertFalse(fitter.fit());
+    }
+
+    @Test
+    public void failedFitKeepsPreviousCoefficients() {
+        double[] expected = {5, 2};
+        PolynomialFitter fitter = new PolynomialFitter(1);
+        addSamples(fitter, expected, 0, 10, 5);
+        assertTrue(fitter.fit());
+        fitter.clear();
+        fitter.add(3, 3);
+        assertFalse(fitter.fit());
+        assertArrayEquals(expected, fitter.getCoefficients(), DELTA);
+    }
+
+    @Test
+    public void clearAndGrow() {
+        double[] expected = {1, -2, 0.5};
+        PolynomialFitter fitter = new PolynomialFitter(2, 2);
+        addSamples(fitter, new double[]{100, 100, 100}, 0, 10, 4);
+        fitter.clear();
+        addSamples(fitter, expected, -20, 20, 40);
+        assertEquals(40, fitter.getCount());
+        assertTrue(fitter.fit());
+        assertArrayEquals(expected, fitter.getCoefficients(), DELTA);
+    }
+}